@@ -1,16 +1,21 @@
 package cn.sonata.vpn.client.app;
 
 import cn.sonata.vpn.client.core.ClientSession;
+import cn.sonata.vpn.client.dispatch.PacketDispatcher;
 import cn.sonata.vpn.client.io.ClientSessionListenerImpl;
 import cn.sonata.vpn.common.packet.Packet;
 import cn.sonata.vpn.common.packet.PacketCodec;
 import cn.sonata.vpn.common.packet.PacketHeader;
 import cn.sonata.vpn.common.packet.PacketType;
 import cn.sonata.vpn.common.protocol.ProtocolFSM;
+import cn.sonata.vpn.common.protocol.ProtocolFeatures;
 import cn.sonata.vpn.common.protocol.ProtocolState;
 import cn.sonata.vpn.common.session.DefaultSession;
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
 import cn.sonata.vpn.common.transport.tcp.JdkTcpConnection;
 import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+import cn.sonata.vpn.common.transport.udp.UdpConnection;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -18,10 +23,16 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.concurrent.TimeoutException;
+import java.util.List;
 
 public class Main {
-    public static void main(String[] args) throws InterruptedException, TimeoutException {
+
+    // 无进度时驱动线程的最长挂起时间（仅作兜底，正常由 session 进度唤醒）
+    private static final Duration IDLE_WAIT = Duration.ofSeconds(1);
+
+    private static final ClientSessionListenerImpl LISTENER = ClientSessionListenerImpl.getInstance();
+
+    public static void main(String[] args) throws InterruptedException {
         ClientSession clientSession = ClientSession.create(createSession());
         clientSession.start();
 
@@ -33,14 +44,20 @@ public class Main {
             // 只有在握手完成（FSM 进入 READY）后才允许发送 DATA，否则 server 端会在 INIT/NEGOTIATING 收到 DATA
             // 并按当前 FSM 规则直接 closeError。
             if (!dataSent && clientSession.getSession().getFsm().getState() == ProtocolState.READY) {
-                packetSendSimulator(clientSession.getSession().getConnection());    //模拟发包
+                DefaultSession session = clientSession.getSession();
+                if (session.getFsm().hasFeature(ProtocolFeatures.MUX)) {
+                    muxSendSimulator(session);      //双方都支持多路复用：两条流交错发包
+                } else {
+                    packetSendSimulator(session.getConnection());    //模拟发包
+                }
                 dataSent = true;
                 clientSession.markReady();
             }
 
             switch (step) {
                 case NOOP:
-                    clientSession.awaitReady(Duration.ofNanos(100));
+                    // 读循环自我驱动，这里只需阻塞等待下一次进度
+                    clientSession.awaitProgress(IDLE_WAIT);
                     break;
                 case PROGRESSED:
                     // PROGRESSED 仅表示触发了一次 onReadable() 调度，不代表握手已完成
@@ -61,12 +78,18 @@ public class Main {
         try {
             InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", 9000);
 
+            // -Dsonata.transport=udp：datagram 模式，需 server 以同样参数启动
+            if ("udp".equalsIgnoreCase(System.getProperty("sonata.transport"))) {
+                TcpConnection conn = UdpConnection.connect(serverAddress, NioEventLoop.create("udp-client"));
+                return DefaultSession.create(conn, ProtocolFSM.create(), LISTENER);
+            }
+
             Socket socket = new Socket();
             socket.connect(serverAddress);
 
             TcpConnection conn = new JdkTcpConnection(socket);
-            return DefaultSession.create(conn, ProtocolFSM.create(), ClientSessionListenerImpl.getInstance());
-        } catch (IOException e) {
+            return DefaultSession.create(conn, ProtocolFSM.create(), LISTENER);
+        } catch (IOException | TransportException e) {
             throw new RuntimeException("[Client] Failed to create session", e);
         }
     }
@@ -98,4 +121,39 @@ public class Main {
             e.printStackTrace();
         }
     }
+
+    /**
+     * 多路复用演示：同一个 session 上打开两条流交错发送，结束后关闭流与 session
+     */
+    private static void muxSendSimulator(DefaultSession session) {
+        PacketDispatcher dispatcher = PacketDispatcher.create(session, new PacketDispatcher.StreamHandler() {
+            @Override
+            public void onData(int streamId, ByteBuffer payload) {
+                String message = StandardCharsets.UTF_8.decode(payload).toString();
+                System.out.println("[client][stream-" + streamId + "] received: " + message);
+            }
+
+            @Override
+            public void onClosed(int streamId) {
+                System.out.println("[client][stream-" + streamId + "] closed by peer");
+            }
+        });
+        LISTENER.bind(dispatcher);
+
+        try {
+            int[] streams = {dispatcher.openStream(), dispatcher.openStream()};
+            for (int i = 1; i <= 5; i++) {
+                int streamId = streams[i % streams.length];
+                byte[] bodyBytes = ("Hello-" + i + " @stream-" + streamId).getBytes(StandardCharsets.UTF_8);
+                dispatcher.send(streamId, ByteBuffer.wrap(bodyBytes));
+                Thread.sleep(2000);
+            }
+            for (int streamId : streams) {
+                dispatcher.closeStream(streamId);
+            }
+            session.send(List.of(Packet.close()));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -23,6 +23,9 @@ public class ClientSession {
      * - ready 必须由协议推进路径中的其他代码设置
      */
     private volatile boolean ready = false;
+
+    // 驱动线程上次观察到的 session 进度，仅 driveOnce / awaitProgress 访问
+    private long seenProgress = 0;
     private final Object sessionLock = new Object();
 
     public enum StepResult {
@@ -71,8 +74,10 @@ public class ClientSession {
      * driveOnce 当前语义：
      * <p>
      * 【阶段性实现】
-     * - 本实现中，driveOnce 直接调用 session.onReadable()
-     * - 即 driveOnce 同时承担 IO 拉取 + 协议推进的职责
+     * - driveOnce 调用 session.onReadable() 启动读循环（幂等，已运行则无操作）
+     * - 读循环自我驱动：每次 read 完成立即发起下一次，不依赖 driveOnce 频率
+     * - 返回 PROGRESSED 表示自上次调用以来 session 处理过数据；否则 NOOP，
+     *   调用方应 awaitProgress() 阻塞等待，而不是自旋
      * <p>
      * 【设计说明】
      * - 严格模型中，IO 拉取、Packet dispatch、FSM 推进应拆分
@@ -89,11 +94,21 @@ public class ClientSession {
                 return StepResult.CLOSED;
             }
 
+            if (session.getState() == SessionState.CLOSED) {
+                return StepResult.CLOSED;
+            }
             if (session.getState() != SessionState.RUNNING) {
                 return StepResult.NOOP;
             }
 
+            // 幂等：读循环已在运行时直接返回
             session.onReadable();
+
+            long now = session.progress();
+            if (now == seenProgress) {
+                return StepResult.NOOP;
+            }
+            seenProgress = now;
             return StepResult.PROGRESSED;
 
         } catch (Throwable t) {
@@ -102,6 +117,19 @@ public class ClientSession {
     }
 
 
+    /**
+     * 阻塞直到 session 有新进度（处理完一次 read / 关闭）
+     * <p>
+     * 作用：
+     * - driveOnce 返回 NOOP 后调用，替代短超时的自旋等待
+     * - 空闲连接上驱动线程一直挂起，不占 CPU
+     * <p>
+     * @return false 表示超时且无新进度
+     */
+    public boolean awaitProgress(Duration timeout) throws InterruptedException {
+        return session.awaitProgress(seenProgress, timeout);
+    }
+
     /**
      * 查询 ready 状态
      * <p>
@@ -1,9 +1,152 @@
 package cn.sonata.vpn.client.dispatch;
 
+import cn.sonata.vpn.common.mux.StreamFrame;
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.session.DefaultSession;
+import cn.sonata.vpn.common.transport.TransportException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * 为Listener提供数据发出的语义
+ * <p>
+ * 协商了 ProtocolFeatures.MUX 的 session 上，按逻辑流收发：
+ * - openStream / send / closeStream 编码成 StreamFrame 经 session 发出
+ * - 入站 DATA 解码后按 streamId 交给 StreamHandler
+ * <p>
+ * 流 id 由 client 分配，从 1 开始递增
+ * <p>
+ * 协商了 FLOW 时：send 按发送信用分段，信用耗尽时阻塞调用方；
+ * 入站数据交给 StreamHandler 后即视为已消费，归还对端信用
  */
 public class PacketDispatcher {
 
+    /**
+     * 入站流事件，在 session 的读回调线程上执行
+     */
+    public interface StreamHandler {
+
+        /**
+         * @param payload 只在本次回调内有效
+         */
+        void onData(int streamId, ByteBuffer payload);
+
+        /**
+         * 对端关闭了该流（upstream 结束或建连失败）
+         */
+        void onClosed(int streamId);
+    }
+
+    private final DefaultSession session;
+    private final StreamHandler handler;
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private final Set<Integer> openStreams = ConcurrentHashMap.newKeySet();
+
+    private PacketDispatcher(DefaultSession session, StreamHandler handler) {
+        this.session = session;
+        this.handler = handler;
+    }
+
+    public static PacketDispatcher create(DefaultSession session, StreamHandler handler) {
+        return new PacketDispatcher(session, handler);
+    }
+
+    /**
+     * 打开一条新流
+     * @return 流 id
+     */
+    public int openStream() throws TransportException {
+        int id = nextStreamId.getAndIncrement();
+        openStreams.add(id);
+        List<Packet> out = new ArrayList<>(2);
+        out.add(StreamFrame.open(id));
+        if (session.isFlowControlled()) {
+            // 登记本端窗口，并把接收窗口扩到配置值
+            Packet update = session.getFlow().openStream(id);
+            if (update != null) {
+                out.add(update);
+            }
+        }
+        session.send(out);
+        return id;
+    }
+
+    /**
+     * 在流上发送数据，超过单帧上限时拆成多帧
+     * 协商了 FLOW 时每帧先取得发送信用，可能阻塞
+     */
+    public void send(int streamId, ByteBuffer payload) throws TransportException {
+        if (!openStreams.contains(streamId)) {
+            throw new IllegalStateException("stream " + streamId + " not open exception");
+        }
+        List<Packet> frames = new ArrayList<>();
+        if (!session.isFlowControlled()) {
+            StreamFrame.appendData(streamId, payload, frames);
+            session.send(frames);
+            return;
+        }
+        ByteBuffer src = payload.duplicate();
+        while (src.hasRemaining()) {
+            int n = session.acquireSendCredit(streamId, Math.min(src.remaining(), StreamFrame.MAX_PAYLOAD));
+            frames.clear();
+            frames.add(StreamFrame.data(streamId, src.slice(src.position(), n)));
+            src.position(src.position() + n);
+            session.send(frames);
+        }
+    }
+
+    /**
+     * 本端关闭一条流
+     */
+    public void closeStream(int streamId) throws TransportException {
+        if (openStreams.remove(streamId)) {
+            session.getFlow().closeStream(streamId);
+            session.send(List.of(StreamFrame.close(streamId)));
+        }
+    }
+
+    public boolean isOpen(int streamId) {
+        return openStreams.contains(streamId);
+    }
 
+    /**
+     * 分发一个入站 packet，仅处理 DATA
+     */
+    public void dispatch(Packet packet) {
+        if (packet.getHeader().getType() != PacketType.DATA) {
+            return;
+        }
+        StreamFrame frame;
+        try {
+            frame = StreamFrame.decode(packet);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[client][dispatch] drop malformed stream frame: " + e.getMessage());
+            return;
+        }
+        int id = frame.getStreamId();
+        switch (frame.getKind()) {
+            case DATA -> {
+                ByteBuffer payload = frame.getPayload();
+                int n = payload.remaining();
+                if (openStreams.contains(id)) {
+                    handler.onData(id, payload);
+                }
+                // 回调返回即视为已消费（未知流的数据直接丢弃），归还信用
+                session.onDataConsumed(id, n);
+            }
+            case CLOSE -> {
+                if (openStreams.remove(id)) {
+                    handler.onClosed(id);
+                }
+            }
+            // 流只由 client 打开
+            case OPEN -> System.err.println("[client][dispatch] unexpected OPEN for stream " + id);
+        }
+    }
 }
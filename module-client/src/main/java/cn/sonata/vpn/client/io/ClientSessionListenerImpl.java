@@ -1,5 +1,6 @@
 package cn.sonata.vpn.client.io;
 
+import cn.sonata.vpn.client.dispatch.PacketDispatcher;
 import cn.sonata.vpn.common.packet.Packet;
 import cn.sonata.vpn.common.session.SessionCloseReason;
 import cn.sonata.vpn.common.session.SessionListener;
@@ -26,6 +27,8 @@ public class ClientSessionListenerImpl implements SessionListener {
 
     private final AppIO appIO = new StringAppIO();
 
+    // 协商了多路复用后绑定，DATA 按流分发
+    private volatile PacketDispatcher dispatcher;
 
     private ClientSessionListenerImpl() {
 
@@ -39,6 +42,13 @@ public class ClientSessionListenerImpl implements SessionListener {
         return new ClientSessionListenerImpl();
     }
 
+    /**
+     * 绑定多路复用分发器，之后收到的 DATA 都按 StreamFrame 解码
+     */
+    public void bind(PacketDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
 
     @Override
     public void exposeReceived(List<Packet> packets) {
@@ -50,7 +60,12 @@ public class ClientSessionListenerImpl implements SessionListener {
 
         for (Packet packet : packets) {
             System.out.println("[client][listener] received packet: " + packet);
-            appIO.onPacket(packet);
+            PacketDispatcher d = dispatcher;
+            if (d != null) {
+                d.dispatch(packet);
+            } else {
+                appIO.onPacket(packet);
+            }
         }
     }
 
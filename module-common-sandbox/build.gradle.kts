@@ -13,3 +13,35 @@ repositories {
 }
 
 
+
+dependencies {
+    implementation(project(":module-common"))
+}
+
+// 线程模式压测：PLATFORM vs VIRTUAL，需 JDK 21+ 才能跑 VIRTUAL
+tasks.register<JavaExec>("runThreadModeLoad") {
+    group = "sandbox"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("cn.sonata.vpn.sandbox.load.ThreadModeLoadDemo")
+}
+
+// ProtocolFSM READY + DATA 热路径的每包分配字节数（期望 0 B/op）
+tasks.register<JavaExec>("runFsmAllocation") {
+    group = "sandbox"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("cn.sonata.vpn.sandbox.fsm.FsmAllocationDemo")
+}
+
+// AEAD 单核吞吐：AES-GCM / ChaCha20-Poly1305 × 缓冲区策略 × 记录大小
+tasks.register<JavaExec>("runAeadThroughput") {
+    group = "sandbox"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("cn.sonata.vpn.sandbox.crypto.AeadThroughputDemo")
+}
+
+// UDP 收发吞吐：JdkUdpTransprot / NioUdpTransport / SelectorUdpTransport（datagrams/s 与每包分配）
+tasks.register<JavaExec>("runUdpThroughput") {
+    group = "sandbox"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("cn.sonata.vpn.sandbox.udp.UdpThroughputDemo")
+}
@@ -0,0 +1,138 @@
+package cn.sonata.vpn.sandbox.fsm;
+
+import cn.sonata.vpn.common.mux.StreamFrame;
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.protocol.ProtocolEffect;
+import cn.sonata.vpn.common.protocol.ProtocolFSM;
+import cn.sonata.vpn.common.protocol.ProtocolFeatures;
+import cn.sonata.vpn.common.protocol.ProtocolState;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProtocolFSM 热路径分配测量：READY + DATA 每包分配的字节数
+ * <p>
+ * 用 com.sun.management.ThreadMXBean#getThreadAllocatedBytes 统计当前线程在测量区间内的堆分配，
+ * 预热后测量，期望结果为 0 B/op。
+ * <p>
+ * 场景：
+ * - plain：未协商任何特性
+ * - mux+flow：协商了 MUX | FLOW，每个 DATA 都要解析 StreamFrame 并扣减接收窗口
+ * - batch：plain 的 DATA 以 BATCH 个为一批走 handlePackets（一次 read 解出多包的情形）
+ * <p>
+ * Usage:
+ *   args[0] = 测量轮次（optional, default 10_000_000）
+ * 运行：gradle :module-common-sandbox:runFsmAllocation
+ */
+public class FsmAllocationDemo {
+
+    private static final int WARMUP = 2_000_000;
+    private static final int STREAM_ID = 1;
+    private static final int PAYLOAD = 64;
+    private static final int BATCH = 16;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+
+        // 测量期间不归还信用：接收窗口开到最大，避免压测途中超窗
+        System.setProperty("sonata.flow.sessionWindow", String.valueOf(Integer.MAX_VALUE));
+        System.setProperty("sonata.flow.streamWindow", String.valueOf(Integer.MAX_VALUE));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("thread allocated memory not supported on this JVM");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.printf("%-9s %12s %10s %10s%n", "scenario", "packets", "ns/op", "B/op");
+        Packet plain = Packet.data(ByteBuffer.allocate(PAYLOAD));
+        run(threads, "plain", ready(0), plain, iterations);
+        runBatch(threads, ready(0), plain, iterations);
+
+        ProtocolFSM mux = ready(ProtocolFeatures.MUX | ProtocolFeatures.FLOW);
+        mux.handlePacket(StreamFrame.open(STREAM_ID));
+        long budget = (long) PAYLOAD * (WARMUP + iterations);
+        if (budget > Integer.MAX_VALUE) {
+            System.out.println("mux+flow  skipped: " + iterations + " packets exceed the 2^31-1 byte receive window");
+            return;
+        }
+        run(threads, "mux+flow", mux, StreamFrame.data(STREAM_ID, ByteBuffer.allocate(PAYLOAD)), iterations);
+    }
+
+    /**
+     * 被动端 FSM 走完握手，进入 READY
+     */
+    private static ProtocolFSM ready(int features) {
+        ProtocolFSM fsm = ProtocolFSM.create(features);
+        fsm.handlePacket(features == 0 ? Packet.hello() : Packet.hello(features));
+        if (fsm.getState() != ProtocolState.READY) {
+            throw new IllegalStateException("handshake failed exception: " + fsm.getState());
+        }
+        return fsm;
+    }
+
+    private static void run(com.sun.management.ThreadMXBean threads, String name, ProtocolFSM fsm, Packet data, int iterations) {
+        long tid = Thread.currentThread().getId();
+        int closes = loop(fsm, data, WARMUP);
+
+        long bytes0 = threads.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        closes += loop(fsm, data, iterations);
+        long elapsed = System.nanoTime() - t0;
+        long allocated = threads.getThreadAllocatedBytes(tid) - bytes0;
+
+        if (closes != 0) {
+            throw new IllegalStateException(name + ": FSM closed during benchmark exception");
+        }
+        System.out.printf("%-9s %12d %10.2f %10.4f%n", name, iterations,
+                (double) elapsed / iterations, (double) allocated / iterations);
+    }
+
+    private static void runBatch(com.sun.management.ThreadMXBean threads, ProtocolFSM fsm, Packet data, int iterations) {
+        List<Packet> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(data);
+        }
+        int rounds = iterations / BATCH;
+        long tid = Thread.currentThread().getId();
+        int closes = loopBatch(fsm, batch, WARMUP / BATCH);
+
+        long bytes0 = threads.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        closes += loopBatch(fsm, batch, rounds);
+        long elapsed = System.nanoTime() - t0;
+        long allocated = threads.getThreadAllocatedBytes(tid) - bytes0;
+
+        if (closes != 0) {
+            throw new IllegalStateException("batch: FSM closed during benchmark exception");
+        }
+        long packets = (long) rounds * BATCH;
+        System.out.printf("%-9s %12d %10.2f %10.4f%n", "batch", packets,
+                (double) elapsed / packets, (double) allocated / packets);
+    }
+
+    private static int loopBatch(ProtocolFSM fsm, List<Packet> batch, int n) {
+        int closes = 0;
+        for (int i = 0; i < n; i++) {
+            if (fsm.handlePackets(batch).getAction() != ProtocolEffect.Action.NONE) {
+                closes++;
+            }
+        }
+        return closes;
+    }
+
+    private static int loop(ProtocolFSM fsm, Packet data, int n) {
+        int closes = 0;
+        for (int i = 0; i < n; i++) {
+            // 使用结果，避免 JIT 消除调用
+            if (fsm.handlePacket(data).getAction() != ProtocolEffect.Action.NONE) {
+                closes++;
+            }
+        }
+        return closes;
+    }
+}
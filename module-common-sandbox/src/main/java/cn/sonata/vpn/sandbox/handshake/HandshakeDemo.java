@@ -1,7 +1,10 @@
 package cn.sonata.vpn.sandbox.handshake;
 
+import cn.sonata.vpn.common.packet.Packet;
 import cn.sonata.vpn.common.protocol.ProtocolFSM;
 import cn.sonata.vpn.common.session.DefaultSession;
+import cn.sonata.vpn.common.session.SessionCloseReason;
+import cn.sonata.vpn.common.session.SessionListener;
 import cn.sonata.vpn.common.session.SessionState;
 import cn.sonata.vpn.common.transport.TransportException;
 import cn.sonata.vpn.common.transport.tcp.JdkTcpConnection;
@@ -11,6 +14,7 @@ import cn.sonata.vpn.common.transport.tcp.TcpServer;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.List;
 
 /**
  * Minimal handshake demo.
@@ -48,8 +52,7 @@ public class HandshakeDemo {
         TcpConnection conn = server.accept();
         System.out.println("[server] accepted: remote=" + conn.getRemoteAddress());
 
-        DefaultSession session = DefaultSession.create(conn, ProtocolFSM.create(), reason ->
-                System.out.println("[server] session closed: " + reason));
+        DefaultSession session = DefaultSession.create(conn, ProtocolFSM.create(), closeLogger("server"));
 
         // server side: passive start; it waits for HELLO from client
         session.startPassive();
@@ -70,8 +73,7 @@ public class HandshakeDemo {
         TcpConnection conn = new JdkTcpConnection(socket);              //  绑定Connection
         System.out.println("[client] connected: remote=" + conn.getRemoteAddress());    //绑定clientIp
 
-        DefaultSession session = DefaultSession.create(conn, ProtocolFSM.create(), reason ->
-                System.out.println("[client] session closed: " + reason));  //连接，fsm, impl方法
+        DefaultSession session = DefaultSession.create(conn, ProtocolFSM.create(), closeLogger("client"));  //连接，fsm, impl方法
 
         // client side: start handshake by sending HELLO
         session.start();        //发一个hello包进行握手
@@ -79,6 +81,22 @@ public class HandshakeDemo {
         driveSession(session, "client");
     }
 
+    /**
+     * Demo listener: only logs session close.
+     */
+    private static SessionListener closeLogger(String role) {
+        return new SessionListener() {
+            @Override
+            public void exposeReceived(List<Packet> packets) {
+            }
+
+            @Override
+            public void onSessionClosed(SessionCloseReason reason) {
+                System.out.println("[" + role + "] session closed: " + reason);
+            }
+        };
+    }
+
     /**
      * Simplest possible driver: repeatedly call onReadable() and sleep a bit.
      *
@@ -0,0 +1,152 @@
+package cn.sonata.vpn.sandbox.load;
+
+import cn.sonata.vpn.common.transport.IoThreads;
+import cn.sonata.vpn.common.transport.tcp.JdkTcpConnection;
+import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JdkTcpConnection 线程模式压测：PLATFORM vs VIRTUAL
+ * <p>
+ * 每个连接：client 先挂起一个 receiveAsync（阻塞 read），全部连上后再发送 64 字节，
+ * server 侧 echo 回来。PLATFORM 模式下每个挂起的 read 都占一个平台线程。
+ * <p>
+ * Usage:
+ *   args[0] = 连接数列表（optional, default 1000,10000,50000）
+ *   args[1] = 模式列表（optional, default PLATFORM,VIRTUAL）
+ * 注意：50k 连接需要调大 ulimit -n（client + server 两端共 100k fd）
+ */
+public class ThreadModeLoadDemo {
+
+    private static final int PAYLOAD = 64;
+
+    public static void main(String[] args) throws Exception {
+        String counts = args.length > 0 ? args[0] : "1000,10000,50000";
+        String modes = args.length > 1 ? args[1] : "PLATFORM,VIRTUAL";
+
+        System.out.printf("%-9s %7s %9s %11s %12s %13s %8s%n",
+                "mode", "conns", "ok", "connect(ms)", "echo(ms)", "peakThreads", "failed");
+
+        for (String m : modes.split(",")) {
+            IoThreads.Mode mode = IoThreads.Mode.valueOf(m.trim().toUpperCase());
+            if (mode == IoThreads.Mode.VIRTUAL && !IoThreads.virtualThreadsSupported()) {
+                System.out.println("VIRTUAL   skipped: JVM " + System.getProperty("java.version") + " has no virtual threads");
+                continue;
+            }
+            for (String c : counts.split(",")) {
+                run(mode, Integer.parseInt(c.trim()));
+                System.gc();
+            }
+        }
+    }
+
+    private static void run(IoThreads.Mode mode, int n) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        ExecutorService executor = IoThreads.newExecutor(mode);
+        List<Socket> sockets = new ArrayList<>(n * 2);
+        List<CompletableFuture<Integer>> echoes = new ArrayList<>(n);
+        List<TcpConnection> clients = new ArrayList<>(n);
+        int failed = 0;
+
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+            InetSocketAddress address = (InetSocketAddress) server.getLocalSocketAddress();
+
+            Thread acceptor = new Thread(() -> acceptLoop(server, executor, sockets), "load-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(address, 3000);
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    TcpConnection conn = new JdkTcpConnection(socket, executor);
+                    clients.add(conn);
+                    // 先挂起 read：PLATFORM 模式下这里会占住一个平台线程
+                    echoes.add(conn.receiveAsync(ByteBuffer.allocate(PAYLOAD)));
+                } catch (Exception e) {
+                    failed = n - i;
+                    System.err.println("[load] connect stopped at " + i + ": " + e.getMessage());
+                    break;
+                }
+            }
+            long t1 = System.nanoTime();
+
+            ByteBuffer payload = ByteBuffer.allocate(PAYLOAD);
+            for (TcpConnection conn : clients) {
+                conn.sendAsync(payload.duplicate());
+            }
+            int ok = 0;
+            for (CompletableFuture<Integer> echo : echoes) {
+                try {
+                    if (echo.get(30, TimeUnit.SECONDS) > 0) {
+                        ok++;
+                    }
+                } catch (Exception e) {
+                    failed++;
+                }
+            }
+            long t2 = System.nanoTime();
+
+            System.out.printf("%-9s %7d %9d %11d %12d %13d %8d%n",
+                    mode, n, ok,
+                    TimeUnit.NANOSECONDS.toMillis(t1 - t0),
+                    TimeUnit.NANOSECONDS.toMillis(t2 - t1),
+                    threads.getPeakThreadCount(),
+                    failed);
+        } finally {
+            synchronized (sockets) {
+                for (Socket s : sockets) {
+                    try {
+                        s.close();
+                    } catch (Exception ignore) {
+                    }
+                }
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * server 侧：每个连接 read 一次并原样 echo
+     */
+    private static void acceptLoop(ServerSocket server, ExecutorService executor, List<Socket> sockets) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                TcpConnection conn = new JdkTcpConnection(socket, executor);
+                ByteBuffer buf = ByteBuffer.allocate(PAYLOAD);
+                conn.receiveAsync(buf).thenCompose(len -> {
+                    buf.flip();
+                    try {
+                        return conn.sendAsync(buf);
+                    } catch (Exception e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                });
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package cn.sonata.vpn.sandbox.udp;
+
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+import cn.sonata.vpn.common.transport.udp.JdkUdpTransprot;
+import cn.sonata.vpn.common.transport.udp.NioUdpTransport;
+import cn.sonata.vpn.common.transport.udp.SelectorUdpTransport;
+import cn.sonata.vpn.common.transport.udp.UdpTransport;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP 收发吞吐（loopback）：JdkUdpTransprot / NioUdpTransport / SelectorUdpTransport
+ * <p>
+ * receive：一个发送线程用普通 DatagramChannel 全速往被测端口打 datagram，统计被测实现每秒收到多少个、
+ * 接收线程每个 datagram 分配多少字节（com.sun.management.ThreadMXBean）。
+ * UDP 不做流控，超出接收能力的部分被内核丢弃，所以看的是收到的速率，丢包率只作参考。
+ * <p>
+ * send：被测实现全速往一个只读不处理的 DatagramChannel 发，统计每秒交给内核的 datagram 数；
+ * SelectorUdpTransport 走 sendAsync + loop 线程成批 flush，按 future 完成计数。
+ * <p>
+ * Usage:
+ *   args[0] = datagram 大小，字节（optional, default 1200）
+ *   args[1] = 每个组合的测量时长，毫秒（optional, default 2000）
+ * 运行：gradle :module-common-sandbox:runUdpThroughput
+ */
+public class UdpThroughputDemo {
+
+    private static final String[] IMPLS = {"jdk", "nio", "selector"};
+    private static final InetSocketAddress LOOPBACK = new InetSocketAddress("127.0.0.1", 0);
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1200;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.printf("datagram=%dB, %dms per run%n", size, millis);
+        System.out.printf("%-8s %-9s %12s %9s %8s %10s%n", "mode", "impl", "datagrams/s", "Mbit/s", "loss", "B/dgram");
+        for (String impl : IMPLS) {
+            // 先跑一轮预热，丢弃结果
+            receive(impl, size, millis / 2, threads);
+            print("receive", impl, size, receive(impl, size, millis, threads));
+        }
+        for (String impl : IMPLS) {
+            send(impl, size, millis / 2, threads);
+            print("send", impl, size, send(impl, size, millis, threads));
+        }
+    }
+
+    private record Result(long datagrams, long offered, long nanos, long allocated) {
+    }
+
+    private static void print(String mode, String impl, int size, Result r) {
+        double pps = r.datagrams / (r.nanos / 1e9);
+        double loss = r.offered == 0 ? 0 : 1 - (double) r.datagrams / r.offered;
+        System.out.printf("%-8s %-9s %12.0f %9.1f %7.1f%% %10.1f%n", mode, impl, pps,
+                pps * size * 8 / 1e6, loss * 100, (double) r.allocated / Math.max(1, r.datagrams));
+    }
+
+    /*=== receive ===*/
+
+    private static Result receive(String impl, int size, long millis, com.sun.management.ThreadMXBean threads)
+            throws Exception {
+        AtomicLong received = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runnable stop;
+        InetSocketAddress target;
+
+        if (impl.equals("selector")) {
+            NioEventLoop loop = NioEventLoop.create("udp-bench");
+            SelectorUdpTransport transport = SelectorUdpTransport.create(LOOPBACK, loop,
+                    batch -> received.addAndGet(batch.size()));
+            target = transport.getLocalAddress();
+            long[] tid = new long[1];
+            loop.execute(() -> {
+                tid[0] = Thread.currentThread().getId();
+                allocated.set(-threads.getThreadAllocatedBytes(tid[0]));
+            });
+            stop = () -> loop.execute(() -> {
+                allocated.addAndGet(threads.getThreadAllocatedBytes(tid[0]));
+                transport.close();
+                loop.close();
+                stopped.countDown();
+            });
+        } else {
+            UdpTransport transport = impl.equals("jdk") ? new JdkUdpTransprot() : new NioUdpTransport();
+            transport.bind(LOOPBACK);
+            target = transport.getLocalAddress();
+            Thread receiver = new Thread(() -> {
+                long tid = Thread.currentThread().getId();
+                long bytes0 = threads.getThreadAllocatedBytes(tid);
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                try {
+                    while (true) {
+                        transport.receive(buffer);
+                        received.incrementAndGet();
+                        // 关闭前在接收线程内统计，close 之后 receive 抛异常退出
+                        allocated.set(threads.getThreadAllocatedBytes(tid) - bytes0);
+                    }
+                } catch (Exception closed) {
+                    stopped.countDown();
+                }
+            }, "udp-bench");
+            receiver.setDaemon(true);
+            receiver.start();
+            stop = () -> {
+                try {
+                    transport.close();
+                } catch (Exception ignore) {
+                }
+            };
+        }
+
+        Thread.sleep(50);
+        long base = received.get();
+        long t0 = System.nanoTime();
+        long offered = blast(target, size, millis);
+        long elapsed = System.nanoTime() - t0;
+        long count = received.get() - base;
+        stop.run();
+        stopped.await();
+        return new Result(count, offered, elapsed, allocated.get());
+    }
+
+    /**
+     * 全速发送 millis 毫秒，返回发出的 datagram 数
+     */
+    private static long blast(InetSocketAddress target, int size, long millis) throws Exception {
+        try (DatagramChannel out = DatagramChannel.open()) {
+            out.connect(target);
+            ByteBuffer payload = ByteBuffer.allocateDirect(size);
+            long deadline = System.nanoTime() + millis * 1_000_000L;
+            long sent = 0;
+            do {
+                for (int i = 0; i < 64; i++) {
+                    payload.clear();
+                    out.write(payload);
+                }
+                sent += 64;
+            } while (System.nanoTime() < deadline);
+            return sent;
+        }
+    }
+
+    /*=== send ===*/
+
+    private static Result send(String impl, int size, long millis, com.sun.management.ThreadMXBean threads)
+            throws Exception {
+        try (DatagramChannel sink = DatagramChannel.open()) {
+            sink.bind(LOOPBACK);
+            InetSocketAddress target = (InetSocketAddress) sink.getLocalAddress();
+            // 对端不读也无妨：UDP 发送只到内核，接收缓冲区满了多出的直接丢弃
+            ByteBuffer payload = ByteBuffer.allocate(size);
+            long tid = Thread.currentThread().getId();
+            long deadline;
+            long sent = 0;
+
+            if (impl.equals("selector")) {
+                NioEventLoop loop = NioEventLoop.create("udp-bench");
+                SelectorUdpTransport transport = SelectorUdpTransport.create(LOOPBACK, loop, batch -> { });
+                AtomicLong completed = new AtomicLong();
+                long bytes0 = threads.getThreadAllocatedBytes(tid);
+                long t0 = System.nanoTime();
+                deadline = t0 + millis * 1_000_000L;
+                do {
+                    // 出站积压超过高水位时把 CPU 让给 loop 线程，和 session 按 writability 背压的做法一致
+                    if (!transport.isWritable()) {
+                        Thread.yield();
+                        continue;
+                    }
+                    for (int i = 0; i < 64; i++) {
+                        transport.sendAsync(payload.duplicate(), target)
+                                .thenRun(completed::incrementAndGet);
+                    }
+                } while (System.nanoTime() < deadline);
+                long elapsed = System.nanoTime() - t0;
+                long allocated = threads.getThreadAllocatedBytes(tid) - bytes0;
+                long count = completed.get();
+                transport.close();
+                loop.close();
+                return new Result(count, 0, elapsed, allocated);
+            }
+
+            UdpTransport transport = impl.equals("jdk") ? new JdkUdpTransprot() : new NioUdpTransport();
+            transport.bind(LOOPBACK);
+            long bytes0 = threads.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            deadline = t0 + millis * 1_000_000L;
+            do {
+                for (int i = 0; i < 64; i++) {
+                    payload.clear();
+                    transport.send(payload, target);
+                }
+                sent += 64;
+            } while (System.nanoTime() < deadline);
+            long elapsed = System.nanoTime() - t0;
+            long allocated = threads.getThreadAllocatedBytes(tid) - bytes0;
+            transport.close();
+            return new Result(sent, 0, elapsed, allocated);
+        }
+    }
+}
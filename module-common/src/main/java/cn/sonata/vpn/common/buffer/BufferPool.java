@@ -0,0 +1,180 @@
+package cn.sonata.vpn.common.buffer;
+
+import cn.sonata.vpn.common.transport.IoThreads;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 分级 ByteBuffer 缓冲池
+ * <p>
+ * - 按容量分级（512B / 2KB / 8KB / 32KB / 64KB），超过最大级别的请求直接分配、不回收
+ * - 每个平台线程有一层 ThreadLocal 缓存，命中时无竞争；未命中再走全局无锁队列
+ * - acquire 返回 refCnt=1 的 RefCountedBuffer，release 归零后自动归还
+ * <p>
+ * 泄漏检测：JVM arg -Dsonata.debug.buffer=true
+ * 被 GC 回收但从未 release 的 buffer 会打印其 acquire 调用栈
+ */
+public final class BufferPool {
+
+    private static final int[] SIZE_CLASSES = {512, 2 * 1024, 8 * 1024, 32 * 1024, 64 * 1024};
+
+    // 每级全局队列最多缓存多少个 buffer
+    private static final int MAX_SHARED_PER_CLASS = 256;
+    // 每线程每级最多缓存多少个 buffer
+    private static final int MAX_LOCAL_PER_CLASS = 32;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.buffer=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.buffer");
+
+    private static final Cleaner LEAK_CLEANER = DEBUG ? Cleaner.create() : null;
+
+    private static final BufferPool DIRECT = new BufferPool(true);
+    private static final BufferPool HEAP = new BufferPool(false);
+
+    private final boolean direct;
+    private final Queue<ByteBuffer>[] shared;
+    private final AtomicInteger[] sharedSize;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> local;
+    // 每级一个预建 recycler，acquire 时不再创建 lambda
+    private final Consumer<ByteBuffer>[] recyclers;
+
+    private final AtomicLong leaks = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+        this.shared = new Queue[SIZE_CLASSES.length];
+        this.sharedSize = new AtomicInteger[SIZE_CLASSES.length];
+        this.recyclers = new Consumer[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            int idx = i;
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedSize[i] = new AtomicInteger();
+            recyclers[i] = b -> recycle(b, idx);
+        }
+        this.local = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+            for (int i = 0; i < caches.length; i++) {
+                caches[i] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+    }
+
+    /**
+     * 进程共享的 direct buffer 池（socket 读写、编解码）
+     */
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+
+    /**
+     * 进程共享的 heap buffer 池（需要 byte[] 的流式 IO）
+     */
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * 调试模式下检测到的泄漏次数
+     */
+    public long leakCount() {
+        return leaks.get();
+    }
+
+    /**
+     * 申请 buffer
+     * 返回的 buffer：position=0，limit=size，capacity 为所在级别大小
+     * @param size 需要的字节数
+     * @return refCnt=1 的 RefCountedBuffer，用完 release()
+     */
+    public RefCountedBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("buffer size must not be negative exception: " + size);
+        }
+        int idx = sizeClass(size);
+        ByteBuffer buffer = null;
+
+        if (idx >= 0) {
+            if (!IoThreads.isVirtualThread()) {
+                buffer = local.get()[idx].pollLast();
+            }
+            if (buffer == null) {
+                buffer = shared[idx].poll();
+                if (buffer != null) {
+                    sharedSize[idx].decrementAndGet();
+                }
+            }
+        }
+        if (buffer == null) {
+            buffer = allocate(idx >= 0 ? SIZE_CLASSES[idx] : size);
+        }
+
+        buffer.clear().limit(size);
+        return track(buffer, idx);
+    }
+
+    private RefCountedBuffer track(ByteBuffer buffer, int idx) {
+        if (!DEBUG) {
+            return idx >= 0 ? RefCountedBuffer.of(buffer, recyclers[idx]) : RefCountedBuffer.wrap(buffer);
+        }
+
+        AtomicBoolean released = new AtomicBoolean(false);
+        RefCountedBuffer ref = RefCountedBuffer.of(buffer, b -> {
+            released.set(true);
+            recycle(b, idx);
+        });
+        Throwable site = new Throwable("buffer acquired here");
+        LEAK_CLEANER.register(ref, () -> {
+            if (!released.get()) {
+                leaks.incrementAndGet();
+                System.err.println("[buffer] LEAK: pooled buffer was GC'd without release()");
+                site.printStackTrace();
+            }
+        });
+        return ref;
+    }
+
+    private void recycle(ByteBuffer buffer, int idx) {
+        if (idx < 0) {
+            return; //超大 buffer 不缓存，交给 GC
+        }
+        if (!IoThreads.isVirtualThread()) {
+            ArrayDeque<ByteBuffer> cache = local.get()[idx];
+            if (cache.size() < MAX_LOCAL_PER_CLASS) {
+                cache.offerLast(buffer);
+                return;
+            }
+        }
+        if (sharedSize[idx].incrementAndGet() <= MAX_SHARED_PER_CLASS) {
+            shared[idx].offer(buffer);
+        } else {
+            sharedSize[idx].decrementAndGet();
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,96 @@
+package cn.sonata.vpn.common.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 引用计数的 ByteBuffer
+ * <p>
+ * 所有权约定：
+ * - 创建时 refCnt = 1，归创建者所有
+ * - 每个共享底层内存的使用者（如零拷贝解码出的 Packet）各持有一次 retain()
+ * - 使用完毕调用 release()；refCnt 归零时把 buffer 交给 recycler 回收
+ * - 归零后任何 slice / view 都不能再访问
+ */
+public final class RefCountedBuffer {
+
+    private final ByteBuffer buffer;
+    private final Consumer<ByteBuffer> recycler;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private RefCountedBuffer(ByteBuffer buffer, Consumer<ByteBuffer> recycler) {
+        if (buffer == null) {
+            throw new NullPointerException("buffer is null exception");
+        }
+        this.buffer = buffer;
+        this.recycler = recycler;
+    }
+
+    /**
+     * 包装一个不需要回收的 buffer（归零后交给 GC）
+     */
+    public static RefCountedBuffer wrap(ByteBuffer buffer) {
+        return new RefCountedBuffer(buffer, null);
+    }
+
+    /**
+     * @param buffer 底层 buffer
+     * @param recycler refCnt 归零时回调，用于归还缓冲池
+     */
+    public static RefCountedBuffer of(ByteBuffer buffer, Consumer<ByteBuffer> recycler) {
+        return new RefCountedBuffer(buffer, recycler);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    /**
+     * 增加一次引用
+     * @throws IllegalStateException 已被释放
+     */
+    public RefCountedBuffer retain() {
+        while (true) {
+            int cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("buffer already released exception");
+            }
+            if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 释放一次引用
+     * @return true 表示本次释放后 refCnt 归零，buffer 已回收
+     * @throws IllegalStateException 重复释放
+     */
+    public boolean release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt > 0) {
+            return false;
+        }
+        if (cnt < 0) {
+            throw new IllegalStateException("buffer over-released exception");
+        }
+        if (recycler != null) {
+            recycler.accept(buffer);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "RefCountedBuffer{" +
+                "capacity=" + buffer.capacity() +
+                ", direct=" + buffer.isDirect() +
+                ", refCnt=" + refCnt.get() +
+                '}';
+    }
+}
@@ -0,0 +1,65 @@
+package cn.sonata.vpn.common.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * HKDF-SHA256（RFC 5869），JDK 17 没有现成的 HKDF，用 HmacSHA256 实现
+ * <p>
+ * - extract：把不均匀的共享秘密压成 32 字节 PRK
+ * - expand：按 info 从 PRK 派生任意长度（<= 255 * 32）的密钥材料
+ */
+public final class Hkdf {
+
+    public static final int HASH_LENGTH = 32;
+
+    private static final String HMAC = "HmacSHA256";
+
+    private Hkdf() {
+    }
+
+    /**
+     * @param salt 可为 null（按 RFC 视为 32 个 0 字节）
+     * @param ikm 输入密钥材料
+     * @return PRK
+     */
+    public static byte[] extract(byte[] salt, byte[] ikm) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt, HMAC));
+        return mac.doFinal(ikm);
+    }
+
+    /**
+     * T(i) = HMAC(PRK, T(i-1) | info | i)，取前 length 字节
+     * @throws IllegalArgumentException length 超过 255 * HASH_LENGTH
+     */
+    public static byte[] expand(byte[] prk, byte[] info, int length) throws GeneralSecurityException {
+        if (length < 0 || length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("hkdf expand length out of range exception: " + length);
+        }
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(prk, HMAC));
+        byte[] out = new byte[length];
+        byte[] t = new byte[0];
+        int written = 0;
+        for (int i = 1; written < length; i++) {
+            mac.update(t);
+            mac.update(info);
+            mac.update((byte) i);
+            t = mac.doFinal();
+            int n = Math.min(t.length, length - written);
+            System.arraycopy(t, 0, out, written, n);
+            written += n;
+        }
+        return out;
+    }
+
+    /**
+     * 以字符串标签为 info 的 expand
+     */
+    public static byte[] expand(byte[] prk, String label, int length) throws GeneralSecurityException {
+        return expand(prk, label.getBytes(StandardCharsets.US_ASCII), length);
+    }
+}
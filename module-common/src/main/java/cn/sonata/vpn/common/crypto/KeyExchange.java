@@ -0,0 +1,237 @@
+package cn.sonata.vpn.common.crypto;
+
+import javax.crypto.KeyAgreement;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+
+/**
+ * 握手中的密钥协商，随 HELLO / HELLO_ACK 完成，不增加往返
+ * <p>
+ * 扩展字段（紧跟在特性位之后）：[suite:2][share:32]
+ * - 发起方在 HELLO 中提出算法并附上自己的临时 X25519 公钥
+ * - 响应方支持该算法时在 HELLO_ACK 中原样回显算法并附上自己的临时公钥，随即派生密钥
+ * - 发起方收到 HELLO_ACK 后派生同样的密钥，握手仍是一个往返
+ * <p>
+ * share 为 X25519 公钥的 u 坐标（RFC 7748，32 字节小端），每个 session 重新生成，
+ * 私钥只存在于本对象中，会话密钥具有前向安全性：
+ * PRK = HKDF-Extract(salt = transcript, ikm = X25519(priv, peerShare) [| psk])
+ * transcript = [clientFeatures:4][len:2][clientExtension][serverFeatures:4][len:2][serverExtension]
+ * <p>
+ * HELLO / HELLO_ACK 本身是明文，特性位与扩展字段都进 salt：途中被改过的握手两端派生出不同的密钥，
+ * 第一条 DATA 记录就会校验失败，而不是悄悄按被改过的特性继续
+ * <p>
+ * 临时 DH 本身不认证对端身份；配置了 -Dsonata.crypto.psk 时把预共享密钥混入 ikm，
+ * 不知道 psk 的中间人派生不出相同的密钥。此时 AEAD 也成为必选（见 isRequired），
+ * 中间人清掉特性位把会话降级成明文的握手会被拒绝
+ */
+public final class KeyExchange {
+
+    public static final int SHARE_LENGTH = 32;
+    public static final int EXTENSION_LENGTH = Short.BYTES + SHARE_LENGTH;
+
+    private static final String CURVE = "X25519";
+
+    private static final boolean AVAILABLE = probe();
+
+    private final AeadSuite suite;
+    private final KeyPair keyPair;
+    private final byte[] share;
+    // 响应方在 respond 时就已派生完成
+    private final RecordLayer records;
+
+    private KeyExchange(AeadSuite suite, KeyPair keyPair, RecordLayer records) {
+        this.suite = suite;
+        this.keyPair = keyPair;
+        this.share = encodeShare(keyPair.getPublic());
+        this.records = records;
+    }
+
+    /**
+     * 当前 JVM 是否支持 X25519（JDK 11+ 自带）
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * 是否必须协商出 AEAD：配置了 psk 或 -Dsonata.crypto.required=true 时，没有 AEAD 的握手按失败处理
+     */
+    public static boolean isRequired() {
+        return preSharedKey() != null || Boolean.getBoolean("sonata.crypto.required");
+    }
+
+    private static boolean probe() {
+        try {
+            KeyAgreement.getInstance("XDH");
+            KeyPairGenerator.getInstance(CURVE);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 发起方：选定算法并生成本端临时密钥对
+     */
+    public static KeyExchange initiate(AeadSuite suite) throws GeneralSecurityException {
+        return new KeyExchange(suite, newKeyPair(), null);
+    }
+
+    /**
+     * 响应方：读取发起方的扩展字段，生成本端 share 并派生记录层
+     * @param clientFeatures HELLO 中收到的特性位
+     * @param peerExtension 发起方的扩展字段（读模式，不移动 position）
+     * @param serverFeatures 将在 HELLO_ACK 中发出的特性位
+     * @throws GeneralSecurityException 算法不可用或对端公钥非法
+     * @throws IllegalArgumentException 扩展字段格式错误
+     */
+    public static KeyExchange respond(int clientFeatures, ByteBuffer peerExtension, int serverFeatures)
+            throws GeneralSecurityException {
+        AeadSuite suite = readSuite(peerExtension);
+        if (!suite.isAvailable()) {
+            throw new NoSuchAlgorithmException("aead suite not available: " + suite);
+        }
+        byte[] peer = readShare(peerExtension);
+        KeyPair local = newKeyPair();
+        KeyExchange exchange = new KeyExchange(suite, local, null);
+        byte[] salt = transcript(clientFeatures, bytes(peerExtension), serverFeatures, exchange.extension());
+        RecordLayer records = RecordLayer.derive(suite, extract(agree(local, peer), salt), false);
+        return new KeyExchange(suite, local, records);
+    }
+
+    /**
+     * 发起方：读取响应方的扩展字段，派生记录层
+     * @param clientFeatures 本端在 HELLO 中发出的特性位
+     * @param serverFeatures HELLO_ACK 中收到的特性位
+     * @param peerExtension 响应方的扩展字段（读模式，不移动 position）
+     * @throws GeneralSecurityException 响应方选择了不同的算法或公钥非法
+     * @throws IllegalArgumentException 扩展字段格式错误
+     */
+    public RecordLayer finish(int clientFeatures, int serverFeatures, ByteBuffer peerExtension)
+            throws GeneralSecurityException {
+        AeadSuite chosen = readSuite(peerExtension);
+        if (chosen != suite) {
+            throw new GeneralSecurityException("aead suite mismatch: offered " + suite + ", got " + chosen);
+        }
+        byte[] peer = readShare(peerExtension);
+        byte[] salt = transcript(clientFeatures, extension(), serverFeatures, bytes(peerExtension));
+        return RecordLayer.derive(suite, extract(agree(keyPair, peer), salt), true);
+    }
+
+    /**
+     * 响应方派生出的记录层；发起方为 null（见 finish）
+     */
+    public RecordLayer getRecords() {
+        return records;
+    }
+
+    public AeadSuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * 写入 HELLO / HELLO_ACK 的扩展字段
+     */
+    public byte[] extension() {
+        ByteBuffer ext = ByteBuffer.allocate(EXTENSION_LENGTH);
+        ext.putShort(suite.getCode());
+        ext.put(share);
+        return ext.array();
+    }
+
+    /**
+     * X25519(本端私钥, 对端公钥)；JDK 对小阶点（共享秘密全 0）抛 InvalidKeyException
+     */
+    private static byte[] agree(KeyPair local, byte[] peerShare) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("XDH");
+        agreement.init(local.getPrivate());
+        agreement.doPhase(decodeShare(peerShare), true);
+        return agreement.generateSecret();
+    }
+
+    private static byte[] extract(byte[] dh, byte[] salt) throws GeneralSecurityException {
+        byte[] psk = preSharedKey();
+        byte[] ikm = dh;
+        if (psk != null) {
+            ikm = new byte[dh.length + psk.length];
+            System.arraycopy(dh, 0, ikm, 0, dh.length);
+            System.arraycopy(psk, 0, ikm, dh.length, psk.length);
+        }
+        return Hkdf.extract(salt, ikm);
+    }
+
+    /**
+     * 握手记录：两端的特性位与完整扩展字段（按收发的原始字节，扩展字段带长度前缀）
+     */
+    private static byte[] transcript(int clientFeatures, byte[] clientExtension, int serverFeatures, byte[] serverExtension) {
+        ByteBuffer buf = ByteBuffer.allocate(2 * (Integer.BYTES + Short.BYTES) + clientExtension.length + serverExtension.length);
+        buf.putInt(clientFeatures).putShort((short) clientExtension.length).put(clientExtension);
+        buf.putInt(serverFeatures).putShort((short) serverExtension.length).put(serverExtension);
+        return buf.array();
+    }
+
+    private static byte[] bytes(ByteBuffer ext) {
+        byte[] out = new byte[ext.remaining()];
+        ext.get(ext.position(), out);
+        return out;
+    }
+
+    private static byte[] preSharedKey() {
+        String psk = System.getProperty("sonata.crypto.psk");
+        return psk == null || psk.isEmpty() ? null : psk.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static KeyPair newKeyPair() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance(CURVE).generateKeyPair();
+    }
+
+    /**
+     * 公钥 -> u 坐标的 32 字节小端编码
+     */
+    private static byte[] encodeShare(PublicKey key) {
+        byte[] be = ((XECPublicKey) key).getU().toByteArray();
+        byte[] le = new byte[SHARE_LENGTH];
+        // toByteArray 是大端且可能带符号字节或更短，逐字节倒序拷贝低 32 字节
+        for (int i = 0; i < SHARE_LENGTH && i < be.length; i++) {
+            le[i] = be[be.length - 1 - i];
+        }
+        return le;
+    }
+
+    /**
+     * 32 字节小端 u 坐标 -> 公钥，最高位按 RFC 7748 忽略
+     */
+    private static PublicKey decodeShare(byte[] le) throws GeneralSecurityException {
+        byte[] be = new byte[SHARE_LENGTH];
+        for (int i = 0; i < SHARE_LENGTH; i++) {
+            be[i] = le[SHARE_LENGTH - 1 - i];
+        }
+        be[0] &= 0x7f;
+        XECPublicKeySpec spec = new XECPublicKeySpec(NamedParameterSpec.X25519, new BigInteger(1, be));
+        return KeyFactory.getInstance("XDH").generatePublic(spec);
+    }
+
+    private static AeadSuite readSuite(ByteBuffer ext) {
+        if (ext == null || ext.remaining() < EXTENSION_LENGTH) {
+            throw new IllegalArgumentException("key exchange extension too short exception: "
+                    + (ext == null ? 0 : ext.remaining()));
+        }
+        return AeadSuite.getAeadSuite(ext.getShort(ext.position()));
+    }
+
+    private static byte[] readShare(ByteBuffer ext) {
+        byte[] share = new byte[SHARE_LENGTH];
+        ext.get(ext.position() + Short.BYTES, share);
+        return share;
+    }
+}
@@ -0,0 +1,163 @@
+package cn.sonata.vpn.common.crypto;
+
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketHeader;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * 单方向的 AEAD 记录加解密（一个 session 两个实例：发送方向 seal，接收方向 open）
+ * <p>
+ * 记录格式（替换 DATA 的 body，header 的 length 改为记录长度）：
+ * [seq:8][ciphertext][tag:16]
+ * - seq：本方向的记录序号，从 0 递增，显式携带，接收方不依赖到达顺序
+ * - nonce：12 字节静态 IV 的后 8 字节与 seq 异或（TLS 1.3 的做法），同一密钥下永不重复
+ * - AAD：packet header（magic / version / type / 记录长度），篡改 header 同样无法通过校验
+ * <p>
+ * 内存：
+ * - seal 把密文直接写进从 direct 池借来的 buffer，返回的 packet 持有它，写出完成后 release
+ * - open 在接收缓冲区上原地解密，返回的明文 packet 接管原 packet 的缓冲区引用
+ * <p>
+ * Cipher 实例不是线程安全的，seal / open 各自加锁
+ */
+public final class RecordCipher {
+
+    public static final int SEQ_LENGTH = Long.BYTES;
+
+    /** 每条记录比明文多出的字节数 */
+    public static final int OVERHEAD = SEQ_LENGTH + AeadSuite.TAG_LENGTH;
+
+    /** 单条记录最多携带的明文，保证记录仍落在 MAX_BODY_LENGTH 以内 */
+    public static final int MAX_PLAINTEXT = PacketHeader.MAX_BODY_LENGTH - OVERHEAD;
+
+    private final AeadSuite suite;
+    private final SecretKeySpec key;
+    private final byte[] iv;
+    private final Cipher cipher;
+
+    // 以下字段由 this 保护，每条记录复用
+    private final byte[] nonce = new byte[AeadSuite.NONCE_LENGTH];
+    private final byte[] aad = new byte[PacketHeader.HEADER_LENGTH];
+    private final ByteBuffer aadView = ByteBuffer.wrap(aad);
+    private long nextSeq = 0;
+
+    private RecordCipher(AeadSuite suite, byte[] key, byte[] iv) throws GeneralSecurityException {
+        if (key.length != suite.getKeyLength() || iv.length != AeadSuite.NONCE_LENGTH) {
+            throw new IllegalArgumentException("record key material length exception: key=" + key.length + ", iv=" + iv.length);
+        }
+        this.suite = suite;
+        this.key = new SecretKeySpec(key, suite.getKeyAlgorithm());
+        this.iv = iv.clone();
+        this.cipher = suite.newCipher();
+    }
+
+    /**
+     * @param key suite.getKeyLength() 字节
+     * @param iv 12 字节静态 IV
+     */
+    public static RecordCipher create(AeadSuite suite, byte[] key, byte[] iv) throws GeneralSecurityException {
+        return new RecordCipher(suite, key, iv);
+    }
+
+    public AeadSuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * 加密一个 packet 的 body，header 类型不变
+     * @param plain 明文 packet，不会被 release
+     * @return 记录 packet，body 在池化 direct buffer 上，发送完成后调用方必须 release
+     * @throws IllegalArgumentException 明文超过 MAX_PLAINTEXT
+     */
+    public synchronized Packet seal(Packet plain) throws GeneralSecurityException {
+        int length = plain.bodyLength();
+        if (length > MAX_PLAINTEXT) {
+            throw new IllegalArgumentException("record plaintext too large exception: " + length);
+        }
+        if (nextSeq < 0) {
+            // 2^63 条记录：实际不可达，但绝不允许 nonce 回绕
+            throw new IllegalStateException("record sequence exhausted exception");
+        }
+        long seq = nextSeq++;
+        PacketHeader in = plain.getHeader();
+        PacketHeader header = new PacketHeader(in.getMagic(), in.getVersion(), in.getType(), length + OVERHEAD);
+
+        RefCountedBuffer record = BufferPool.direct().acquire(header.getLength());
+        try {
+            ByteBuffer dst = record.buffer();
+            dst.clear();
+            dst.putLong(seq);
+            init(Cipher.ENCRYPT_MODE, seq, header);
+            ByteBuffer src = length == 0 ? ByteBuffer.allocate(0) : plain.getBody();
+            cipher.doFinal(src, dst);
+            return Packet.wrap(header, record, 0);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            record.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 校验并解密一条记录
+     * 零拷贝 packet 原地解密：明文覆盖密文所在内存；body 不可写的 packet 解密到新借的池化 buffer。
+     * 成功时 record 的缓冲区引用总是转移给返回值，之后只 release 返回值；失败时 record 不变
+     * @return 明文 packet
+     * @throws AEADBadTagException 记录被篡改、截断或密钥不匹配
+     */
+    public synchronized Packet open(Packet record) throws GeneralSecurityException {
+        int length = record.bodyLength();
+        if (length < OVERHEAD) {
+            throw new AEADBadTagException("record too short: " + length);
+        }
+        long seq = record.bodyLong(0);
+        init(Cipher.DECRYPT_MODE, seq, record.getHeader());
+
+        int cipherLength = length - SEQ_LENGTH;
+        ByteBuffer body = record.mutableBody();
+        if (body != null) {
+            ByteBuffer src = body.slice(body.position() + SEQ_LENGTH, cipherLength);
+            ByteBuffer dst = src.duplicate();
+            int n = cipher.doFinal(src, dst);
+            return record.transfer(SEQ_LENGTH, n);
+        }
+
+        ByteBuffer src = record.getBody();
+        src.position(src.position() + SEQ_LENGTH);
+        PacketHeader in = record.getHeader();
+        PacketHeader header = new PacketHeader(in.getMagic(), in.getVersion(), in.getType(), cipherLength - AeadSuite.TAG_LENGTH);
+        RefCountedBuffer plain = BufferPool.direct().acquire(cipherLength);
+        try {
+            ByteBuffer dst = plain.buffer();
+            dst.clear();
+            cipher.doFinal(src, dst);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            plain.release();
+            throw e;
+        }
+        record.release();
+        return Packet.wrap(header, plain, 0);
+    }
+
+    /**
+     * nonce = iv ^ (0^4 || seq)，AAD = 记录的 packet header
+     */
+    private void init(int mode, long seq, PacketHeader header) throws GeneralSecurityException {
+        System.arraycopy(iv, 0, nonce, 0, AeadSuite.NONCE_LENGTH);
+        for (int i = 0; i < SEQ_LENGTH; i++) {
+            nonce[AeadSuite.NONCE_LENGTH - 1 - i] ^= (byte) (seq >>> (8 * i));
+        }
+        cipher.init(mode, key, suite.parameters(nonce));
+
+        aadView.putInt(0, header.getMagic());
+        aadView.putShort(4, header.getVersion());
+        aadView.putShort(6, header.getType().getCode());
+        aadView.putInt(8, header.getLength());
+        cipher.updateAAD(aad);
+    }
+}
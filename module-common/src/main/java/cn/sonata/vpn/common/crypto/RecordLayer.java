@@ -0,0 +1,132 @@
+package cn.sonata.vpn.common.crypto;
+
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketType;
+
+import javax.crypto.AEADBadTagException;
+import java.security.GeneralSecurityException;
+
+/**
+ * 一个 session 的记录层：发送方向与接收方向各一套密钥、IV 与序号
+ * <p>
+ * 两个方向的密钥都从握手得到的 secret 经 HKDF 派生，标签区分方向，
+ * 所以 client 的发送密钥就是 server 的接收密钥，同一 (key, nonce) 不会在两个方向上各用一次。
+ * 接收方向带一个 ReplayWindow，重放的记录直接丢弃
+ * <p>
+ * 密钥协商完成后，握手包之外的所有类型（DATA、PING / PONG、WINDOW_UPDATE、CLOSE）都以记录收发，见 isRecord
+ */
+public final class RecordLayer {
+
+    private static final String CLIENT_KEY = "sonata c2s key";
+    private static final String CLIENT_IV = "sonata c2s iv";
+    private static final String SERVER_KEY = "sonata s2c key";
+    private static final String SERVER_IV = "sonata s2c iv";
+
+    private final AeadSuite suite;
+    private final RecordCipher sealer;
+    private final RecordCipher opener;
+
+    // 接收方向的防重放窗口，只在接收路径上访问
+    private final ReplayWindow replay = new ReplayWindow();
+    private long replayed = 0;
+
+    private RecordLayer(AeadSuite suite, RecordCipher sealer, RecordCipher opener) {
+        this.suite = suite;
+        this.sealer = sealer;
+        this.opener = opener;
+    }
+
+    /**
+     * 用已知的两套方向密钥构造（基准测试 / 调试用）
+     */
+    public static RecordLayer create(AeadSuite suite, byte[] sendKey, byte[] sendIv,
+                                     byte[] receiveKey, byte[] receiveIv) throws GeneralSecurityException {
+        return new RecordLayer(suite, RecordCipher.create(suite, sendKey, sendIv),
+                RecordCipher.create(suite, receiveKey, receiveIv));
+    }
+
+    /**
+     * 从握手 secret（HKDF PRK）派生本端的记录层
+     * @param prk Hkdf.extract 的结果
+     * @param client 本端是否为握手发起方
+     */
+    public static RecordLayer derive(AeadSuite suite, byte[] prk, boolean client) throws GeneralSecurityException {
+        int keyLength = suite.getKeyLength();
+        byte[] clientKey = Hkdf.expand(prk, CLIENT_KEY, keyLength);
+        byte[] clientIv = Hkdf.expand(prk, CLIENT_IV, AeadSuite.NONCE_LENGTH);
+        byte[] serverKey = Hkdf.expand(prk, SERVER_KEY, keyLength);
+        byte[] serverIv = Hkdf.expand(prk, SERVER_IV, AeadSuite.NONCE_LENGTH);
+        return client
+                ? create(suite, clientKey, clientIv, serverKey, serverIv)
+                : create(suite, serverKey, serverIv, clientKey, clientIv);
+    }
+
+    /**
+     * 协商了 AEAD 时经记录层加密的类型：握手包（HELLO / HELLO_ACK）之外的全部类型。
+     * 控制包同样加密：明文的 CLOSE / WINDOW_UPDATE 谁都能伪造（datagram 模式下只需知道明文的 connection id）
+     */
+    public static boolean isRecord(PacketType type) {
+        return type != PacketType.HELLO && type != PacketType.HELLO_ACK;
+    }
+
+    public AeadSuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * 见 RecordCipher.seal，任意线程可调用
+     */
+    public Packet seal(Packet plain) throws GeneralSecurityException {
+        return sealer.seal(plain);
+    }
+
+    /**
+     * 见 RecordCipher.open，另外按记录序号防重放：
+     * 解密前先查窗口，重放的记录不做 AEAD 运算；通过认证后才登记序号，伪造的记录不会推动窗口
+     * 只在接收路径上调用（同一时刻一个线程）
+     * @return 明文 packet；重放或太旧的记录返回 null，此时 record 不变，由调用方 release
+     * @throws AEADBadTagException 记录被篡改、截断或密钥不匹配
+     */
+    public Packet open(Packet record) throws GeneralSecurityException {
+        if (record.bodyLength() < RecordCipher.OVERHEAD) {
+            return opener.open(record);     // 抛出 AEADBadTagException
+        }
+        long seq = record.bodyLong(0);
+        if (!replay.isFresh(seq)) {
+            replayed++;
+            return null;
+        }
+        Packet plain = opener.open(record);
+        replay.accept(seq);
+        return plain;
+    }
+
+    /**
+     * 只校验不登记：记录是否新鲜且能通过认证（datagram 模式下连接迁移前验证新地址上的记录）
+     * 不推动防重放窗口，record 本身不被修改（调用方传入只读 body 的 packet）；随后该记录照常经 open 处理
+     * 只在接收路径上调用
+     */
+    public boolean authenticate(Packet record) {
+        if (record.bodyLength() < RecordCipher.OVERHEAD || !replay.isFresh(record.bodyLong(0))) {
+            return false;
+        }
+        try {
+            opener.open(record).release();
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 因重放或过旧被丢弃的记录数（诊断用，只在接收路径上更新）
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordLayer{" + suite + '}';
+    }
+}
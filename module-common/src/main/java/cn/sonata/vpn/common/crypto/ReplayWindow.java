@@ -0,0 +1,75 @@
+package cn.sonata.vpn.common.crypto;
+
+/**
+ * 滑动窗口防重放（RFC 6479 的位图做法，IPsec / WireGuard 同款）
+ * <p>
+ * 记住目前见过的最大序号 top，以及 top 之前 WINDOW_SIZE 个序号各自是否出现过：
+ * - 序号 > top：新记录，窗口前移，被挤出窗口的整字直接清零（不逐位移动）
+ * - 落在窗口内：查位图，出现过即为重放
+ * - 比窗口还旧：无法判断，一律拒绝
+ * 位图是固定的 long[WORDS] 环，按 seq / 64 取模定位，内存恒定，乱序到达的记录照样接受。
+ * <p>
+ * 单写者：只在该方向的接收路径上调用（session 的读循环同一时刻只有一个），
+ * 所以既不加锁也不需要 CAS，检查与更新都不分配对象
+ */
+public final class ReplayWindow {
+
+    // 2 的幂，环形下标取模
+    private static final int WORDS = 32;
+    private static final int MASK = WORDS - 1;
+
+    /**
+     * 保证能判断的最大乱序距离：top 所在的字可能刚被清空，只有其余 WORDS - 1 个字是完整的
+     */
+    public static final int WINDOW_SIZE = (WORDS - 1) * Long.SIZE;
+
+    private final long[] bitmap = new long[WORDS];
+    // 已接受的最大序号，-1 表示还没有接受过记录
+    private long top = -1;
+
+    /**
+     * 预检查（不修改状态）：解密前先过滤明显的重放，省掉一次 AEAD 运算
+     * @return false 表示重放或太旧
+     */
+    public boolean isFresh(long seq) {
+        if (seq < 0) {
+            return false;
+        }
+        if (seq > top) {
+            return true;
+        }
+        if (top - seq >= WINDOW_SIZE) {
+            return false;
+        }
+        return (bitmap[(int) ((seq >>> 6) & MASK)] & (1L << (seq & 63))) == 0;
+    }
+
+    /**
+     * 记录通过认证后调用：检查并登记
+     * @return false 表示重放或太旧，状态不变
+     */
+    public boolean accept(long seq) {
+        if (!isFresh(seq)) {
+            return false;
+        }
+        long index = seq >>> 6;
+        if (seq > top) {
+            // 窗口前移：把 top 所在字之后、新序号所在字为止的字清零，最多清一整圈
+            long current = top >> 6;
+            long advance = Math.min(index - current, WORDS);
+            for (long i = 1; i <= advance; i++) {
+                bitmap[(int) ((current + i) & MASK)] = 0;
+            }
+            top = seq;
+        }
+        bitmap[(int) (index & MASK)] |= 1L << (seq & 63);
+        return true;
+    }
+
+    /**
+     * 已接受的最大序号，还没有接受过记录时为 -1
+     */
+    public long top() {
+        return top;
+    }
+}
@@ -0,0 +1,222 @@
+package cn.sonata.vpn.common.flow;
+
+import cn.sonata.vpn.common.packet.Packet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于信用的流控（协商了 ProtocolFeatures.FLOW 时启用）
+ * <p>
+ * 两级窗口，发送一字节 DATA payload 需要同时占用一字节的流窗口与 session 窗口：
+ * - 流窗口：单条逻辑流最多在途的字节数，一条快流不会占满整个 session
+ * - session 窗口：所有流合计，对端内存有上界
+ * <p>
+ * 双方窗口初始都为 INITIAL_WINDOW；接收方配置了更大的窗口时，
+ * 在握手完成 / 流打开时立即发 WINDOW_UPDATE 把差额通告出去。
+ * 接收的数据被应用层消费（例如已写入 upstream）后才归还信用，
+ * 所以对端在途数据永远不超过本端通告的窗口。
+ * <p>
+ * 只统计 StreamFrame DATA 的 payload：OPEN / CLOSE 等控制帧不受流控，不会被阻塞
+ */
+public final class FlowController {
+
+    /** WINDOW_UPDATE 中表示 session 级窗口的流 id（流 id 从 1 开始） */
+    public static final int SESSION_STREAM_ID = 0;
+
+    /** 协议约定的初始窗口：收到任何 WINDOW_UPDATE 之前双方都按它发送 */
+    public static final int INITIAL_WINDOW = 64 * 1024;
+
+    public static final int DEFAULT_SESSION_WINDOW = 1024 * 1024;
+    public static final int DEFAULT_STREAM_WINDOW = 256 * 1024;
+
+    private final int sessionWindow;
+    private final int streamWindow;
+
+    private final SendWindow sessionSend = new SendWindow(INITIAL_WINDOW);
+    private final ReceiveWindow sessionReceive;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    private volatile boolean closed = false;
+
+    private static final class Stream {
+        final SendWindow send = new SendWindow(INITIAL_WINDOW);
+        final ReceiveWindow receive;
+
+        Stream(int window) {
+            this.receive = new ReceiveWindow(window);
+        }
+    }
+
+    private FlowController(int sessionWindow, int streamWindow) {
+        if (sessionWindow < INITIAL_WINDOW || streamWindow < INITIAL_WINDOW) {
+            throw new IllegalArgumentException("flow window smaller than initial window exception: session="
+                    + sessionWindow + ", stream=" + streamWindow);
+        }
+        this.sessionWindow = sessionWindow;
+        this.streamWindow = streamWindow;
+        this.sessionReceive = new ReceiveWindow(sessionWindow);
+    }
+
+    /**
+     * 静态工厂方法：接收窗口取自
+     * -Dsonata.flow.sessionWindow / -Dsonata.flow.streamWindow（字节）
+     */
+    public static FlowController create() {
+        return create(Integer.getInteger("sonata.flow.sessionWindow", DEFAULT_SESSION_WINDOW),
+                Integer.getInteger("sonata.flow.streamWindow", DEFAULT_STREAM_WINDOW));
+    }
+
+    /**
+     * @param sessionWindow 本端 session 级接收窗口，不小于 INITIAL_WINDOW
+     * @param streamWindow 本端每条流的接收窗口，不小于 INITIAL_WINDOW
+     */
+    public static FlowController create(int sessionWindow, int streamWindow) {
+        return new FlowController(sessionWindow, streamWindow);
+    }
+
+    /**
+     * 握手完成
+     * @return 把 session 接收窗口扩到配置值的 WINDOW_UPDATE，无需扩展时为 null
+     */
+    public Packet onReady() {
+        int grow = sessionWindow - INITIAL_WINDOW;
+        return grow > 0 ? Packet.windowUpdate(SESSION_STREAM_ID, grow) : null;
+    }
+
+    /**
+     * 登记一条流（本端打开或收到对端的 OPEN）
+     * @return 把该流接收窗口扩到配置值的 WINDOW_UPDATE，无需扩展或流已存在时为 null
+     */
+    public Packet openStream(int streamId) {
+        if (closed || streams.putIfAbsent(streamId, new Stream(streamWindow)) != null) {
+            return null;
+        }
+        int grow = streamWindow - INITIAL_WINDOW;
+        return grow > 0 ? Packet.windowUpdate(streamId, grow) : null;
+    }
+
+    /**
+     * 注销一条流：阻塞在该流上的发送方返回 -1
+     */
+    public void closeStream(int streamId) {
+        Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.send.close();
+        }
+    }
+
+    public boolean isOpen(int streamId) {
+        return streams.containsKey(streamId);
+    }
+
+    /*=== 接收方向 ===*/
+
+    /**
+     * 收到一段 DATA payload，扣减接收窗口
+     * 未知流（已关闭）只扣 session 窗口，应用层丢弃后同样要 onConsumed 归还
+     * @return false 表示对端超出了通告的窗口
+     */
+    public boolean onReceived(int streamId, int bytes) {
+        boolean ok = sessionReceive.onReceived(bytes);
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            ok &= stream.receive.onReceived(bytes);
+        }
+        return ok;
+    }
+
+    /**
+     * 应用层已消费（转发完成 / 丢弃）一段 payload
+     * @param out 需要发给对端的 WINDOW_UPDATE 追加到这里
+     */
+    public void onConsumed(int streamId, int bytes, List<Packet> out) {
+        if (bytes <= 0 || closed) {
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            int inc = stream.receive.onConsumed(bytes);
+            if (inc > 0) {
+                out.add(Packet.windowUpdate(streamId, inc));
+            }
+        }
+        int inc = sessionReceive.onConsumed(bytes);
+        if (inc > 0) {
+            out.add(Packet.windowUpdate(SESSION_STREAM_ID, inc));
+        }
+    }
+
+    /*=== 发送方向 ===*/
+
+    /**
+     * 对端通告的窗口增量
+     * 已关闭的流忽略（WINDOW_UPDATE 可能与 CLOSE 交错）
+     * @throws IllegalArgumentException 增量非正或窗口溢出（协议错误）
+     */
+    public void onWindowUpdate(int streamId, int increment) {
+        if (streamId == SESSION_STREAM_ID) {
+            sessionSend.release(increment);
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.send.release(increment);
+        } else if (increment <= 0) {
+            throw new IllegalArgumentException("flow window increment must be positive exception: " + increment);
+        }
+    }
+
+    /**
+     * 为一条流取得发送信用，先占流窗口再占 session 窗口，session 不够时把多占的流信用退回
+     * @param max 希望发送的字节数（> 0）
+     * @param timeoutNanos 每一级窗口的最长等待时间
+     * @return 可发送的字节数（1..max）；超时返回 0；流或 session 已关闭返回 -1
+     * @throws InterruptedException 等待被中断
+     */
+    public int acquire(int streamId, int max, long timeoutNanos) throws InterruptedException {
+        Stream stream = streams.get(streamId);
+        if (stream == null || closed) {
+            return -1;
+        }
+        int granted = stream.send.acquire(max, timeoutNanos);
+        if (granted <= 0) {
+            return granted;
+        }
+        int shared = sessionSend.acquire(granted, timeoutNanos);
+        if (shared < granted) {
+            stream.send.release(shared <= 0 ? granted : granted - shared);
+        }
+        return shared;
+    }
+
+    /**
+     * session 级剩余发送信用（诊断用）
+     */
+    public long sessionCredit() {
+        return sessionSend.available();
+    }
+
+    /**
+     * session 关闭：唤醒全部阻塞的发送方
+     */
+    public void close() {
+        closed = true;
+        sessionSend.close();
+        for (Stream stream : streams.values()) {
+            stream.send.close();
+        }
+        streams.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "FlowController{" +
+                "sessionCredit=" + sessionSend.available() +
+                ", streams=" + streams.size() +
+                ", sessionWindow=" + sessionWindow +
+                ", streamWindow=" + streamWindow +
+                '}';
+    }
+}
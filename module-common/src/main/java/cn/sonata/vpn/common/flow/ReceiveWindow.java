@@ -0,0 +1,49 @@
+package cn.sonata.vpn.common.flow;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接收方窗口：本端还愿意接收、尚未被应用层消费的字节数
+ * <p>
+ * - 收到数据时扣减，扣到负数说明对端超发（协议错误）
+ * - 应用层消费后累计，攒够窗口的一半才通告一次，避免每个包都回一个 WINDOW_UPDATE
+ */
+final class ReceiveWindow {
+
+    private final int size;
+
+    // 收包（IO 线程）每包一次，用原子计数，不加锁
+    private final AtomicLong available;
+    // 由 this 保护：消费可能来自多个线程（各条流的 upstream 写完成回调）
+    private long consumed = 0;
+
+    ReceiveWindow(int size) {
+        this.size = size;
+        this.available = new AtomicLong(size);
+    }
+
+    /**
+     * @return false 表示对端超出了通告的窗口
+     */
+    boolean onReceived(int bytes) {
+        return available.addAndGet(-bytes) >= 0;
+    }
+
+    /**
+     * @return 需要通告给对端的增量，未达阈值时为 0
+     */
+    int onConsumed(int bytes) {
+        int increment;
+        synchronized (this) {
+            consumed += bytes;
+            if (consumed < size / 2) {
+                return 0;
+            }
+            increment = (int) consumed;
+            consumed = 0;
+        }
+        // 先放开本端窗口再通告，对端按新窗口发来的数据不会被误判为超发
+        available.addAndGet(increment);
+        return increment;
+    }
+}
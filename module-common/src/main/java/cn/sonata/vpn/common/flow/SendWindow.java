@@ -0,0 +1,109 @@
+package cn.sonata.vpn.common.flow;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 发送方信用：对端允许本端继续发送的字节数
+ * <p>
+ * - acquire 取得信用后才能发送对应字节，信用耗尽时阻塞（可能只取得一部分）
+ * - 收到对端 WINDOW_UPDATE 时 release 增加信用并唤醒等待方
+ * - close 后等待方立即返回 -1
+ * <p>
+ * ReentrantLock：发送方可能是虚拟线程，阻塞时不钉住载体线程
+ */
+public final class SendWindow {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition replenished = lock.newCondition();
+
+    // 以下字段由 lock 保护
+    private long credit;
+    private boolean closed = false;
+
+    public SendWindow(long initialCredit) {
+        this.credit = initialCredit;
+    }
+
+    /**
+     * 当前可用信用
+     */
+    public long available() {
+        lock.lock();
+        try {
+            return credit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取得最多 max 字节的信用，没有信用时阻塞
+     * @param max 希望发送的字节数（> 0）
+     * @param timeoutNanos 最长等待时间
+     * @return 取得的字节数（1..max）；超时返回 0；窗口已关闭返回 -1
+     * @throws InterruptedException 等待被中断
+     */
+    public int acquire(int max, long timeoutNanos) throws InterruptedException {
+        long nanos = timeoutNanos;
+        lock.lock();
+        try {
+            while (credit <= 0 && !closed) {
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = replenished.awaitNanos(nanos);
+            }
+            if (closed) {
+                return -1;
+            }
+            int granted = (int) Math.min(max, credit);
+            credit -= granted;
+            return granted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 增加信用（对端通告 / 归还未用完的部分）
+     * @throws IllegalArgumentException 增量非正或窗口超过 2^31-1
+     */
+    public void release(long increment) {
+        if (increment <= 0) {
+            throw new IllegalArgumentException("flow window increment must be positive exception: " + increment);
+        }
+        lock.lock();
+        try {
+            if (credit + increment > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("flow window overflow exception: " + (credit + increment));
+            }
+            credit += increment;
+            replenished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭窗口：唤醒全部等待方，之后 acquire 立即返回 -1
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            replenished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package cn.sonata.vpn.common.mux;
+
+import cn.sonata.vpn.common.crypto.RecordCipher;
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketType;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 多路复用帧：协商了 ProtocolFeatures.MUX 的 session 中，DATA 的 body 即为 StreamFrame
+ * <p>
+ * 布局：[kind:1][streamId:4][payload...]
+ * - OPEN：打开一条逻辑流，无 payload
+ * - DATA：流上的数据
+ * - CLOSE：关闭一条逻辑流（任一端发送），无 payload
+ * <p>
+ * 解码得到的 payload 是 packet body 的只读视图，生命周期跟随 packet
+ */
+public final class StreamFrame {
+
+    public enum Kind {
+        OPEN((byte) 1),
+        DATA((byte) 2),
+        CLOSE((byte) 3);
+
+        private final byte code;
+
+        Kind(byte code) {
+            this.code = code;
+        }
+
+        public byte getCode() {
+            return code;
+        }
+
+        static Kind of(byte code) {
+            switch (code) {
+                case 1:
+                    return OPEN;
+                case 2:
+                    return DATA;
+                case 3:
+                    return CLOSE;
+                default:
+                    throw new IllegalArgumentException("Invalid stream frame kind " + code);
+            }
+        }
+    }
+
+    public static final int HEADER_LENGTH = 5;
+
+    /**
+     * 单个 DATA 帧最多携带的 payload，超过的数据拆成多帧
+     * 预留了记录层的开销，协商了 AEAD 时加密后的帧仍不超过 MAX_BODY_LENGTH
+     */
+    public static final int MAX_PAYLOAD = RecordCipher.MAX_PLAINTEXT - HEADER_LENGTH;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final Kind kind;
+    private final int streamId;
+    private final ByteBuffer payload;
+
+    private StreamFrame(Kind kind, int streamId, ByteBuffer payload) {
+        this.kind = kind;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return payload 只读视图（OPEN / CLOSE 为空 buffer）
+     */
+    public ByteBuffer getPayload() {
+        return payload.duplicate();
+    }
+
+    /*=== 编码 ===*/
+
+    public static Packet open(int streamId) {
+        return frame(Kind.OPEN, streamId, EMPTY);
+    }
+
+    public static Packet close(int streamId) {
+        return frame(Kind.CLOSE, streamId, EMPTY);
+    }
+
+    /**
+     * 单个 DATA 帧，payload 会被复制（发送是异步的，不依赖调用方 buffer 的生命周期）
+     * @throws IllegalArgumentException payload 超过 MAX_PAYLOAD
+     */
+    public static Packet data(int streamId, ByteBuffer payload) {
+        if (payload.remaining() > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("stream frame payload too large exception: " + payload.remaining());
+        }
+        return frame(Kind.DATA, streamId, payload);
+    }
+
+    /**
+     * 任意长度的数据按 MAX_PAYLOAD 拆成若干 DATA 帧追加到 out
+     */
+    public static void appendData(int streamId, ByteBuffer payload, List<Packet> out) {
+        ByteBuffer src = payload.duplicate();
+        do {
+            int n = Math.min(MAX_PAYLOAD, src.remaining());
+            out.add(frame(Kind.DATA, streamId, src.slice(src.position(), n)));
+            src.position(src.position() + n);
+        } while (src.hasRemaining());
+    }
+
+    private static Packet frame(Kind kind, int streamId, ByteBuffer payload) {
+        ByteBuffer body = ByteBuffer.allocate(HEADER_LENGTH + payload.remaining());
+        body.put(kind.getCode());
+        body.putInt(streamId);
+        body.put(payload.duplicate());
+        body.flip();
+        return Packet.data(body);
+    }
+
+    /*=== 解码 ===*/
+
+    /**
+     * @param packet 协商了 MUX 的 session 收到的 DATA
+     * @throws IllegalArgumentException 不是 DATA、长度不足或 kind 非法
+     */
+    public static StreamFrame decode(Packet packet) {
+        if (packet.getHeader().getType() != PacketType.DATA) {
+            throw new IllegalArgumentException("Stream frame must be carried by DATA, got " + packet.getHeader().getType());
+        }
+        ByteBuffer body = packet.getBody();
+        if (body == null || body.remaining() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Stream frame too short: " + packet.bodyLength());
+        }
+        int pos = body.position();
+        Kind kind = Kind.of(body.get(pos));
+        int streamId = body.getInt(pos + 1);
+        ByteBuffer payload = body.slice(pos + HEADER_LENGTH, body.remaining() - HEADER_LENGTH);
+        return new StreamFrame(kind, streamId, payload);
+    }
+
+    /*=== 不分配对象的字段读取（FSM 热路径），调用方需保证 packet 是 DATA ===*/
+
+    /**
+     * @throws IllegalArgumentException 长度不足或 kind 非法
+     */
+    public static Kind peekKind(Packet packet) {
+        checkHeader(packet);
+        return Kind.of(packet.bodyByte(0));
+    }
+
+    public static int peekStreamId(Packet packet) {
+        checkHeader(packet);
+        return packet.bodyInt(1);
+    }
+
+    public static int peekPayloadLength(Packet packet) {
+        checkHeader(packet);
+        return packet.bodyLength() - HEADER_LENGTH;
+    }
+
+    private static void checkHeader(Packet packet) {
+        if (packet.bodyLength() < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Stream frame too short: " + packet.bodyLength());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamFrame{" +
+                "kind=" + kind +
+                ", streamId=" + streamId +
+                ", payload=" + payload.remaining() +
+                '}';
+    }
+}
@@ -0,0 +1,191 @@
+package cn.sonata.vpn.common.packet;
+
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 有状态的流式帧解码器（TCP 半包/粘包）
+ * <p>
+ * 每个连接一个实例，按到达顺序喂入字节：
+ * - 完整落在本次输入内的帧：直接解码（RefCountedBuffer 输入时 body 为零拷贝 slice）
+ * - 跨越两次输入的帧：只把这一帧的剩余字节拷入组帧缓冲区，凑齐后输出
+ *   （零拷贝模式下组帧缓冲区直接成为该帧 body 的 owner）
+ * - header 一旦读到就先校验 magic / type / length 并记住，后续输入不再重新扫描
+ * <p>
+ * 组帧缓冲区固定为 MAX_BODY_LENGTH，从缓冲池借用，只在存在半包时持有，
+ * 16KB 以内的帧永远不会扩容。
+ * <p>
+ * 非线程安全：同一时刻只能有一个线程调用 decode
+ */
+public final class FrameDecoder {
+
+    // 组帧缓冲区：半包的 header 字节或 pending 帧已到达的 body 字节
+    private RefCountedBuffer partialRef;
+    private ByteBuffer partial;
+
+    // 已解析、等待 body 的帧头
+    private PacketHeader pending;
+
+    /**
+     * 解码，body 复制到独立内存
+     * 适用于调用方会复用输入 buffer 的场景
+     * @param incoming 新到达的字节（读模式），会被全部消费
+     * @param out 解出的 packet 追加到这里
+     * @throws IllegalArgumentException magic / type / length 非法，解码器需 reset 后才能继续使用
+     */
+    public void decode(ByteBuffer incoming, List<Packet> out) {
+        decode(incoming, null, out);
+    }
+
+    /**
+     * 解码，完整落在 incoming 内的帧为零拷贝 slice（每个 retain 一次 incoming）
+     * 调用方自己持有的那次引用仍需自行 release，见 PacketCodec.decodeSliced
+     * @param incoming 新到达的字节（读模式），会被全部消费
+     * @param out 解出的 packet 追加到这里
+     * @throws IllegalArgumentException magic / type / length 非法，解码器需 reset 后才能继续使用
+     */
+    public void decode(RefCountedBuffer incoming, List<Packet> out) {
+        decode(incoming.buffer(), incoming, out);
+    }
+
+    /**
+     * 是否有未完成的半包
+     */
+    public boolean hasPartial() {
+        return pending != null || (partial != null && partial.position() > 0);
+    }
+
+    /**
+     * 丢弃半包状态并归还组帧缓冲区
+     */
+    public void reset() {
+        pending = null;
+        if (partialRef != null) {
+            partialRef.release();
+            partialRef = null;
+            partial = null;
+        }
+    }
+
+    private void decode(ByteBuffer in, RefCountedBuffer owner, List<Packet> out) {
+        // 先把上次剩下的半包补齐
+        if (hasPartial() && !completePartial(in, owner != null, out)) {
+            return;
+        }
+
+        while (in.remaining() >= PacketHeader.HEADER_LENGTH) {
+            int start = in.position();
+            PacketHeader header = parseHeader(in, start);
+            int length = header.getLength();
+
+            if (in.remaining() - PacketHeader.HEADER_LENGTH < length) {
+                // 帧不完整：记住 header，body 已到达部分进组帧缓冲区
+                in.position(start + PacketHeader.HEADER_LENGTH);
+                pending = header;
+                partialBuffer().put(in);
+                return;
+            }
+
+            int bodyStart = start + PacketHeader.HEADER_LENGTH;
+            if (length == 0) {
+                out.add(new Packet(header, null));
+            } else if (owner != null) {
+                owner.retain();
+                out.add(new Packet(header, in.slice(bodyStart, length), owner));
+            } else {
+                out.add(new Packet(header, copy(in, bodyStart, length)));
+            }
+            in.position(bodyStart + length);
+        }
+
+        // 不足一个 header：留到下次
+        if (in.hasRemaining()) {
+            partialBuffer().put(in);
+        }
+    }
+
+    /**
+     * @param sliced true 时补齐的帧直接以组帧缓冲区为 body（所有权转给 packet），不再复制
+     * @return true 表示半包已补齐（或仅剩新数据），可继续解码 in 中的后续字节
+     */
+    private boolean completePartial(ByteBuffer in, boolean sliced, List<Packet> out) {
+        if (pending == null) {
+            int need = PacketHeader.HEADER_LENGTH - partial.position();
+            if (!transfer(in, need)) {
+                return false;
+            }
+            pending = parseHeader(partial, 0);
+            partial.clear();
+        }
+
+        int need = pending.getLength() - partial.position();
+        if (!transfer(in, need)) {
+            return false;
+        }
+
+        PacketHeader header = pending;
+        if (header.getLength() == 0) {
+            out.add(new Packet(header, null));
+        } else if (sliced) {
+            // 组帧缓冲区整块交给 packet，下一个半包重新从池里借
+            out.add(new Packet(header, partial.slice(0, header.getLength()), partialRef));
+            pending = null;
+            partialRef = null;
+            partial = null;
+            return true;
+        } else {
+            out.add(new Packet(header, copy(partial, 0, header.getLength())));
+        }
+        reset();
+        return true;
+    }
+
+    /**
+     * 从 in 向组帧缓冲区搬运最多 need 字节
+     * @return 是否搬满 need
+     */
+    private boolean transfer(ByteBuffer in, int need) {
+        int n = Math.min(need, in.remaining());
+        if (n > 0) {
+            int limit = in.limit();
+            in.limit(in.position() + n);
+            partialBuffer().put(in);
+            in.limit(limit);
+        }
+        return n == need;
+    }
+
+    private ByteBuffer partialBuffer() {
+        if (partial == null) {
+            partialRef = BufferPool.direct().acquire(PacketHeader.MAX_BODY_LENGTH);
+            partial = partialRef.buffer();
+        }
+        return partial;
+    }
+
+    /**
+     * 按绝对位置解析并校验帧头，不移动 position
+     */
+    private static PacketHeader parseHeader(ByteBuffer buf, int index) {
+        int magic = buf.getInt(index);
+        if (magic != PacketHeader.MAGIC) {
+            throw new IllegalArgumentException("Invalid packet magic " + Integer.toHexString(magic));
+        }
+        short version = buf.getShort(index + 4);
+        PacketType type = PacketType.getPacketType(buf.getShort(index + 6));
+        int length = buf.getInt(index + 8);
+        if (length < 0 || length > PacketHeader.MAX_BODY_LENGTH) {
+            throw new IllegalArgumentException("Invalid packet length " + length);
+        }
+        return new PacketHeader(magic, version, type, length);
+    }
+
+    private static ByteBuffer copy(ByteBuffer src, int index, int length) {
+        byte[] bytes = new byte[length];
+        src.get(index, bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -1,11 +1,15 @@
 package cn.sonata.vpn.common.packet;
 
 
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+
 import java.nio.ByteBuffer;
 
 public class    Packet {
     private final PacketHeader header;
     private final ByteBuffer body;
+    // 零拷贝解码时 body 是 owner 的 slice；普通构造为 null
+    private final RefCountedBuffer owner;
 
     /**
      * 构造函数
@@ -28,6 +32,7 @@ public class    Packet {
             }
             this.header = header;
             this.body = null;
+            this.owner = null;
             return;
         }
         //ensure consistency
@@ -38,11 +43,37 @@ public class    Packet {
         }
         this.header = header;
         this.body = body.asReadOnlyBuffer();
+        this.owner = null;
+    }
+
+    /**
+     * 零拷贝构造：body 为 owner 内存上的 slice（对外只经 getBody() 的只读视图暴露）
+     * 调用方需已为本 packet retain 过一次 owner
+     */
+    Packet(PacketHeader header, ByteBuffer slice, RefCountedBuffer owner) {
+        this.header = header;
+        this.body = slice;
+        this.owner = owner;
+    }
+
+    /**
+     * 零拷贝构造：body 为 owner.buffer() 上 [offset, offset + header.length) 的区域
+     * 调用方持有的一次 owner 引用转移给返回的 packet，之后由 packet.release() 归还
+     * @throws IllegalArgumentException 区域越出 owner.buffer() 的 capacity
+     */
+    public static Packet wrap(PacketHeader header, RefCountedBuffer owner, int offset) {
+        int length = header.getLength();
+        ByteBuffer buffer = owner.buffer();
+        if (offset < 0 || offset + length > buffer.capacity()) {
+            throw new IllegalArgumentException("packet wrap out of range exception: offset=" + offset + ", length=" + length);
+        }
+        return new Packet(header, buffer.slice(offset, length), owner);
     }
 
     public Packet() {
         this.header = null;
         this.body = null;
+        this.owner = null;
     }    //无参构造
 
     /**
@@ -65,9 +96,118 @@ public class    Packet {
         return body.asReadOnlyBuffer();
     }
 
+    /**
+     * body 字节数，不创建视图
+     */
+    public int bodyLength() {
+        return body == null ? 0 : body.remaining();
+    }
+
+    /**
+     * 按 body 内偏移读取，不创建视图（热路径用，例如 FSM 解析控制字段）
+     * @param offset 相对 body 起始位置的偏移
+     * @throws IndexOutOfBoundsException 越界或没有 body
+     */
+    public byte bodyByte(int offset) {
+        return bodyAt(offset, Byte.BYTES).get(body.position() + offset);
+    }
+
+    public int bodyInt(int offset) {
+        return bodyAt(offset, Integer.BYTES).getInt(body.position() + offset);
+    }
+
+    public long bodyLong(int offset) {
+        return bodyAt(offset, Long.BYTES).getLong(body.position() + offset);
+    }
+
+    private ByteBuffer bodyAt(int offset, int width) {
+        if (body == null || offset < 0 || offset + width > body.remaining()) {
+            throw new IndexOutOfBoundsException("body read out of range exception: offset=" + offset + ", length=" + bodyLength());
+        }
+        return body;
+    }
+
+    /**
+     * 包内直接访问 body（只读），调用方不得修改其 position/limit
+     * 用于编解码热路径，避免 getBody() 每次创建视图
+     */
+    ByteBuffer bodyUnsafe() {
+        return body;
+    }
+
+    /**
+     * 零拷贝 packet 的可写 body 视图，用于原地变换（例如记录层原地解密）
+     * 调用方独占该 packet 时才能写入；写入后 getBody() 看到的是新内容
+     * @return 与 body 共享内存的可写视图；普通 packet、没有 body 或底层只读时为 null
+     */
+    public ByteBuffer mutableBody() {
+        if (owner == null || body == null || body.isReadOnly()) {
+            return null;
+        }
+        return body.duplicate();
+    }
+
+    /**
+     * 截取 body 的 [offset, offset + length) 作为新 packet 的 body，类型不变，不复制
+     * 零拷贝 packet 的 owner 引用转移给新 packet：之后只 release 返回值，不再 release 本 packet
+     * @throws IndexOutOfBoundsException 区域越界或没有 body
+     */
+    public Packet transfer(int offset, int length) {
+        if (body == null || offset < 0 || length < 0 || offset + length > body.remaining()) {
+            throw new IndexOutOfBoundsException("body transfer out of range exception: offset=" + offset
+                    + ", length=" + length + ", body=" + bodyLength());
+        }
+        PacketHeader h = new PacketHeader(header.getMagic(), header.getVersion(), header.getType(), length);
+        ByteBuffer slice = body.slice(body.position() + offset, length);
+        return owner == null ? new Packet(h, slice) : new Packet(h, slice, owner);
+    }
+
+    /**
+     * body 是否引用了外部（可回收）缓冲区
+     */
+    public boolean isSliced() {
+        return owner != null;
+    }
+
+    /**
+     * 延长 body 的生命周期，需与 release() 成对调用
+     * 普通 packet 为 no-op
+     * @return this
+     */
+    public Packet retain() {
+        if (owner != null) {
+            owner.retain();
+        }
+        return this;
+    }
+
+    /**
+     * 释放对底层缓冲区的引用，之后不能再访问 body
+     * 普通 packet 为 no-op
+     */
+    public void release() {
+        if (owner != null) {
+            owner.release();
+        }
+    }
+
+    /**
+     * 复制出一个不依赖外部缓冲区的 packet（普通 packet 直接返回自身）
+     * 不会释放当前 packet
+     */
+    public Packet detach() {
+        if (owner == null) {
+            return this;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+        copy.put(body.duplicate());
+        copy.flip();
+        return new Packet(header, copy);
+    }
+
     /**
      * 工厂方法构建特殊包
-     * TYPE:HELLO
+     * TYPE:HELLO（无 body：不声明任何可选特性）
      * @return Packet
      */
     public static Packet hello() {
@@ -84,6 +224,75 @@ public class    Packet {
         PacketHeader header = new PacketHeader(0x56504E44, (short) 0x00, PacketType.HELLO_ACK, 0);
         return new Packet(header,null);
     }
+    /**
+     * 工厂方法构建特殊包
+     * TYPE:HELLO，body 为 4 字节特性位（见 ProtocolFeatures）
+     * @param features 本端支持的特性
+     * @return Packet
+     */
+    public static Packet hello(int features) {
+        return withInt(PacketType.HELLO, features);
+    }
+
+    /**
+     * 工厂方法构建特殊包
+     * TYPE:HELLO_ACK，body 为 4 字节特性位：双方都支持、本次会话启用的特性
+     * @param features 协商结果
+     * @return Packet
+     */
+    public static Packet helloACK(int features) {
+        return withInt(PacketType.HELLO_ACK, features);
+    }
+
+    /**
+     * 工厂方法构建特殊包
+     * TYPE:HELLO，body 为 [features:4][extension]，extension 为特性附带的握手数据（如密钥协商）
+     * @param features 本端支持的特性
+     * @param extension 握手扩展字段
+     * @return Packet
+     */
+    public static Packet hello(int features, byte[] extension) {
+        return withExtension(PacketType.HELLO, features, extension);
+    }
+
+    /**
+     * 工厂方法构建特殊包
+     * TYPE:HELLO_ACK，body 为 [features:4][extension]
+     * @param features 协商结果
+     * @param extension 握手扩展字段
+     * @return Packet
+     */
+    public static Packet helloACK(int features, byte[] extension) {
+        return withExtension(PacketType.HELLO_ACK, features, extension);
+    }
+
+    private static Packet withExtension(PacketType type, int features, byte[] extension) {
+        ByteBuffer body = ByteBuffer.allocate(Integer.BYTES + extension.length);
+        body.putInt(features);
+        body.put(extension);
+        body.flip();
+        PacketHeader header = new PacketHeader(0x56504E44, (short) 0x00, type, body.remaining());
+        return new Packet(header, body);
+    }
+
+    /**
+     * 工厂方法构建数据包
+     * TYPE:DATA，body 不复制（只读视图），发送前调用方不得修改
+     * @param body 数据
+     * @return Packet
+     */
+    public static Packet data(ByteBuffer body) {
+        PacketHeader header = new PacketHeader(0x56504E44, (short) 0x00, PacketType.DATA, body.remaining());
+        return new Packet(header, body);
+    }
+
+    private static Packet withInt(PacketType type, int value) {
+        ByteBuffer body = ByteBuffer.allocate(Integer.BYTES);
+        body.putInt(0, value);
+        PacketHeader header = new PacketHeader(0x56504E44, (short) 0x00, type, Integer.BYTES);
+        return new Packet(header, body);
+    }
+
     /**
      * 工厂方法构建特殊包
      * TYPE:CLOSE
@@ -94,6 +303,48 @@ public class    Packet {
         return new Packet(header,null);
     }
 
+    /**
+     * 工厂方法构建特殊包
+     * TYPE:PING，body 为 8 字节发送时间戳（对端原样回显）
+     * @param timestamp 发送方本地时钟（System.nanoTime）
+     * @return Packet
+     */
+    public static Packet ping(long timestamp) {
+        return timestamped(PacketType.PING, timestamp);
+    }
+
+    /**
+     * 工厂方法构建特殊包
+     * TYPE:PONG，回显 PING 携带的时间戳
+     * @param echoedTimestamp PING body 中的时间戳
+     * @return Packet
+     */
+    public static Packet pong(long echoedTimestamp) {
+        return timestamped(PacketType.PONG, echoedTimestamp);
+    }
+
+    /**
+     * 工厂方法构建特殊包
+     * TYPE:WINDOW_UPDATE，body 为 [streamId:4][increment:4]，streamId 0 表示 session 级窗口
+     * @param streamId 流 id
+     * @param increment 本端新增的接收窗口（字节）
+     * @return Packet
+     */
+    public static Packet windowUpdate(int streamId, int increment) {
+        ByteBuffer body = ByteBuffer.allocate(2 * Integer.BYTES);
+        body.putInt(0, streamId);
+        body.putInt(Integer.BYTES, increment);
+        PacketHeader header = new PacketHeader(0x56504E44, (short) 0x00, PacketType.WINDOW_UPDATE, 2 * Integer.BYTES);
+        return new Packet(header, body);
+    }
+
+    private static Packet timestamped(PacketType type, long timestamp) {
+        ByteBuffer body = ByteBuffer.allocate(Long.BYTES);
+        body.putLong(0, timestamp);
+        PacketHeader header = new PacketHeader(0x56504E44, (short) 0x00, type, Long.BYTES);
+        return new Packet(header, body);
+    }
+
     //创建一个toString方法
     @Override
     public String toString() {
@@ -1,5 +1,8 @@
 package cn.sonata.vpn.common.packet;
 
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,42 +21,122 @@ public class PacketCodec {
      */
     public static ByteBuffer encode(Packet packet) {
 
-        PacketHeader header = packet.getHeader();
-        ByteBuffer body = packet.getBody();
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength(packet));
+        encodeInto(packet, buffer);
+
+        buffer.flip();  //Change to write.
+        return buffer;
+
 
-        int bodyLength = (body == null) ? 0 : body.remaining();     //修复前直接remaining可能会导致NPE
+    }
 
-        //packet总长
-        int totalLength = Integer.BYTES + Short.BYTES + Short.BYTES + Integer.BYTES + bodyLength;
+    /**
+     * 编码后的总字节数（header + body）
+     */
+    public static int encodedLength(Packet packet) {
+        return PacketHeader.HEADER_LENGTH + packet.bodyLength();
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(totalLength);
+    /**
+     * 编码到调用方提供的 buffer，不分配内存
+     * 从 dst.position() 开始写入，写完后 position 前移
+     * @param packet 待编码packet
+     * @param dst 目标 buffer（写模式）
+     * @return 写入字节数
+     * @throws BufferOverflowException dst 剩余空间不足（此时 dst 不会被修改）
+     */
+    public static int encodeInto(Packet packet, ByteBuffer dst) {
+        PacketHeader header = packet.getHeader();
+        int bodyLength = packet.bodyLength();
+        int total = PacketHeader.HEADER_LENGTH + bodyLength;
+        if (dst.remaining() < total) {
+            throw new BufferOverflowException();
+        }
 
-        buffer.putInt(header.getMagic());
-        buffer.putShort(header.getVersion());
-        buffer.putShort(header.getType().getCode());
-        buffer.putInt(header.getLength());
+        putHeader(header, dst);
 
-        //同上，防止NPE
+        //绝对位置批量拷贝，不创建 body 视图
         if (bodyLength > 0) {
-            buffer.put(body.slice());
+            ByteBuffer body = packet.bodyUnsafe();
+            dst.put(dst.position(), body, body.position(), bodyLength);
+            dst.position(dst.position() + bodyLength);
         }
+        return total;
+    }
 
-        buffer.flip();  //Change to write.
-        return buffer;
+    /**
+     * 批量编码为 gathering write 用的 ByteBuffer[]
+     * <p>
+     * - 所有 header 写入同一块 buffer，再按 packet 切成 slice
+     * - body 直接使用 packet 的只读视图，不复制
+     * 结果可直接交给 GatheringByteChannel.write / TcpConnection.sendAsync(ByteBuffer[])，
+     * N 个包一次系统调用写出。零拷贝 packet 的 body 在写完之前不能 release。
+     * @param packets 待编码packets
+     * @return 按顺序排列的 [header, body, header, body ...]（空 body 省略）
+     */
+    public static ByteBuffer[] encodeAll(List<Packet> packets) {
+        int n = packets.size();
+        int count = n;
+        for (int i = 0; i < n; i++) {
+            if (packets.get(i).bodyLength() > 0) {
+                count++;
+            }
+        }
 
+        ByteBuffer headers = ByteBuffer.allocate(PacketHeader.HEADER_LENGTH * n);
+        ByteBuffer[] out = new ByteBuffer[count];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            Packet packet = packets.get(i);
+            int start = headers.position();
+            putHeader(packet.getHeader(), headers);
+            out[k++] = headers.slice(start, PacketHeader.HEADER_LENGTH);
+            if (packet.bodyLength() > 0) {
+                out[k++] = packet.getBody();
+            }
+        }
+        return out;
+    }
 
+    private static void putHeader(PacketHeader header, ByteBuffer dst) {
+        dst.putInt(header.getMagic());
+        dst.putShort(header.getVersion());
+        dst.putShort(header.getType().getCode());
+        dst.putInt(header.getLength());
     }
 
 
     /**
      * Packet decoder
+     * body 被复制到独立的 byte[]，packet 与输入 buffer 无关
      * @param buffer    传入byteBuffer
      * @return List<Packet> 如出现错误返回空值
      */
     public static List<Packet> decode(ByteBuffer buffer) {
+        return decode(buffer, null);
+    }
+
+    /**
+     * 零拷贝 Packet decoder
+     * <p>
+     * 从 source.buffer() 的 position..limit 解码，body 为输入内存上的只读 slice，不复制。
+     * 所有权：
+     * - 每个带 body 的 packet 各 retain 一次 source，用完必须 packet.release()
+     * - 调用方自己持有的那一次引用仍需自行 source.release()
+     * - 全部释放后 source 才会被回收，期间不得改写已解码区域
+     * @param source 引用计数的接收缓冲区（读模式）
+     * @return List<Packet> 未解码的半包留在 source.buffer() 中
+     */
+    public static List<Packet> decodeSliced(RefCountedBuffer source) {
+        return decode(source.buffer(), source);
+    }
+
+    private static List<Packet> decode(ByteBuffer buffer, RefCountedBuffer owner) {
         List<Packet> packets = new ArrayList<>();
 
-        int headerLength = Integer.BYTES + Short.BYTES + Short.BYTES + Integer.BYTES;
+        int headerLength = PacketHeader.HEADER_LENGTH;
+        // 零拷贝模式下每次 decode 只建一个只读视图，各 body 从它上面 slice
+        ByteBuffer readOnly = null;
 
         while (true) {
             if (buffer.remaining() < headerLength) {
@@ -72,9 +155,6 @@ public class PacketCodec {
                 break;
             }
 
-            byte[] bodyBytes = new byte[length];
-            buffer.get(bodyBytes);
-
             PacketHeader header = new PacketHeader(
                     magic,
                     version,
@@ -82,7 +162,22 @@ public class PacketCodec {
                     length
             );
 
-            packets.add(new Packet(header, ByteBuffer.wrap(bodyBytes)));
+            if (owner == null) {
+                byte[] bodyBytes = new byte[length];
+                buffer.get(bodyBytes);
+                packets.add(new Packet(header, ByteBuffer.wrap(bodyBytes)));
+            } else if (length == 0) {
+                packets.add(new Packet(header, null));
+            } else {
+                //只读 slice，直接引用接收缓冲区
+                if (readOnly == null) {
+                    readOnly = buffer.asReadOnlyBuffer();
+                }
+                ByteBuffer slice = readOnly.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                owner.retain();
+                packets.add(new Packet(header, slice, owner));
+            }
         }
 
         return packets;
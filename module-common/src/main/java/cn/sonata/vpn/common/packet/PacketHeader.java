@@ -5,6 +5,11 @@ package cn.sonata.vpn.common.packet;
 
 public class PacketHeader {
 
+    public static final int MAGIC = 0x56504E44;
+    // magic(4) + version(2) + type(2) + length(4)
+    public static final int HEADER_LENGTH = Integer.BYTES + Short.BYTES + Short.BYTES + Integer.BYTES;
+    public static final int MAX_BODY_LENGTH = 16 * 1024;
+
     private final int magic;          //    0x56504E44
     private final short version;      //    协议版本
     private final PacketType type;         //    包类型
@@ -4,7 +4,10 @@ public enum PacketType {
     HELLO((short) 1),
     HELLO_ACK((short) 2),
     DATA((short) 3),
-    CLOSE((short) 4);
+    CLOSE((short) 4),
+    PING((short) 5),
+    PONG((short) 6),
+    WINDOW_UPDATE((short) 7);
 
     private final short code;
 
@@ -18,6 +21,12 @@ public enum PacketType {
                 return DATA;
             case 4:
                 return CLOSE;
+            case 5:
+                return PING;
+            case 6:
+                return PONG;
+            case 7:
+                return WINDOW_UPDATE;
             default:
                  throw new IllegalArgumentException("Invalid packet type" + code);
         }
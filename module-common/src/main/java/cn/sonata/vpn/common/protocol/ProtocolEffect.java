@@ -4,6 +4,11 @@ import cn.sonata.vpn.common.packet.Packet;
 
 import java.util.List;
 
+/**
+ * FSM 的输出：一个动作 + 可选的待发送 packet
+ * <p>
+ * 不可变：NONE / CLOSE_GRACEFUL / CLOSE_ERROR 没有输出，使用共享单例，热路径上不分配对象
+ */
 public final class ProtocolEffect {
 
     public enum Action {
@@ -13,6 +18,10 @@ public final class ProtocolEffect {
         CLOSE_ERROR
     }
 
+    private static final ProtocolEffect NONE = new ProtocolEffect(Action.NONE, null);
+    private static final ProtocolEffect CLOSE_GRACEFUL = new ProtocolEffect(Action.CLOSE_GRACEFUL, null);
+    private static final ProtocolEffect CLOSE_ERROR = new ProtocolEffect(Action.CLOSE_ERROR, null);
+
     private final Action action;
     private final List<Packet> outputs;
 
@@ -25,44 +34,50 @@ public final class ProtocolEffect {
      * @return ProtocolEffect
      */
     public static ProtocolEffect none() {
-        return new ProtocolEffect(Action.NONE, null);
+        return NONE;
     }
 
     /**
      *
      * 发包方法可用于应用层dispatch/专用Session的构建
-     * @param outputs
-     * @return
+     * @param outputs 待发送 packet，交出后调用方不得再修改
+     * @return ProtocolEffect
      */
     public static ProtocolEffect send(List<Packet> outputs) {
         return new ProtocolEffect(Action.SEND, outputs);
     }
 
     public static ProtocolEffect closeGraceful() {
-        return new ProtocolEffect(Action.CLOSE_GRACEFUL, null);
+        return CLOSE_GRACEFUL;
     }
 
     public static ProtocolEffect closeError() {
-        return new ProtocolEffect(Action.CLOSE_ERROR, null);
+        return CLOSE_ERROR;
     }
 
     /**
-     * 向 outputs 添加一条应用层数据
+     * 批处理合并：动作取最后一个（关闭优先），outputs 为此前累积的待发送包
+     * 关闭类 effect 带 outputs 时，执行方应先发出 outputs 再关闭
      */
-    public void addOutput(Packet packet) {
-        if (packet != null) {
-            outputs.add(packet);
+    static ProtocolEffect merged(Action action, List<Packet> outputs) {
+        if (outputs == null || outputs.isEmpty()) {
+            switch (action) {
+                case NONE:
+                    return NONE;
+                case CLOSE_GRACEFUL:
+                    return CLOSE_GRACEFUL;
+                case CLOSE_ERROR:
+                    return CLOSE_ERROR;
+                default:
+                    break;
+            }
         }
+        return new ProtocolEffect(action, outputs);
     }
 
     /**
-     * 向 outputs 批量添加应用层数据
+     * @return 待发送 packet；NONE 与单独的关闭 effect 为 null
      */
-    public void addOutputs(List<Packet> packets) {
-        if (packets != null && !packets.isEmpty()) {
-            outputs.addAll(packets);
-        }
-    }
     public List<Packet> getOutputs() {
         return outputs;
     }
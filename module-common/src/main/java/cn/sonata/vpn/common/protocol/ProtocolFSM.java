@@ -1,42 +1,117 @@
 package cn.sonata.vpn.common.protocol;
 
+import cn.sonata.vpn.common.crypto.AeadSuite;
+import cn.sonata.vpn.common.crypto.KeyExchange;
+import cn.sonata.vpn.common.crypto.RecordLayer;
+import cn.sonata.vpn.common.flow.FlowController;
+import cn.sonata.vpn.common.mux.StreamFrame;
 import cn.sonata.vpn.common.packet.Packet;
 import cn.sonata.vpn.common.packet.PacketType;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * this ProtocolFSM is used to ctrl the system scheduling of protocol.
- *
+ * <p>
+ * 转移表：(ProtocolState, PacketType) -> Transition，按 ordinal 索引的二维数组，全部 FSM 实例共享；
+ * 表中没有的组合一律 CLOSE_ERROR。
+ * READY + DATA 是热路径：不构造 effect（NONE / CLOSE_* 为共享单例），不拼接调试字符串，
+ * 协商了 FLOW 时也只做绝对下标读取，整个路径不分配对象。
  */
 public class ProtocolFSM {
 
     private ProtocolState state;
 
+    // 本端支持的特性，与握手后双方协商出的结果（见 ProtocolFeatures）
+    private final int localFeatures;
+    private volatile int features = 0;
+
+    // 最近一次 handlePackets 实际处理的包数（遇到关闭时提前停止）
+    private int batchProcessed = 0;
+
+    // PING/PONG 测得的往返时间，READY 后持续更新
+    private final RttEstimator rtt = new RttEstimator();
+
+    // 协商了 FLOW 时的流控窗口：收到 DATA 扣减，收到 WINDOW_UPDATE 增加发送信用
+    private final FlowController flow = FlowController.create();
+
+    // 协商了 AEAD 时：发起方在 HELLO 时创建 keyExchange，握手完成后得到记录层
+    private KeyExchange keyExchange;
+    private volatile RecordLayer records;
+
     // Debug flag: enable with JVM arg -Dsonata.debug.fsm=true
     private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.fsm");
 
+    // 调用方先判断 DEBUG 再拼接字符串：DEBUG 是编译期常量，关闭时整段被消除
     private static void dbg(String msg) {
-        if (DEBUG) {
-            System.out.println("[fsm] " + msg);
+        System.out.println("[fsm] " + msg);
+    }
+
+    /**
+     * 一条状态转移：在 fsm 上处理 packet，返回要执行的副作用
+     */
+    @FunctionalInterface
+    private interface Transition {
+        ProtocolEffect apply(ProtocolFSM fsm, Packet packet);
+    }
+
+    private static final Transition REJECT = ProtocolFSM::reject;
+
+    private static final Transition[][] TRANSITIONS = buildTransitions();
+
+    private static Transition[][] buildTransitions() {
+        Transition[][] table = new Transition[ProtocolState.values().length][PacketType.values().length];
+        for (Transition[] row : table) {
+            Arrays.fill(row, REJECT);
         }
+        // 被动端：收到 HELLO 回 HELLO_ACK，握手完成
+        on(table, ProtocolState.INIT, PacketType.HELLO, ProtocolFSM::onHello);
+        // 主动端：等待 HELLO_ACK；最小容错：握手阶段收到应用层 DATA 时先忽略，避免直接关闭连接
+        on(table, ProtocolState.NEGOTIATING, PacketType.HELLO_ACK, ProtocolFSM::onHelloAck);
+        on(table, ProtocolState.NEGOTIATING, PacketType.DATA, ProtocolFSM::ignore);
+        on(table, ProtocolState.READY, PacketType.DATA, ProtocolFSM::onData);
+        on(table, ProtocolState.READY, PacketType.PING, ProtocolFSM::onPing);
+        on(table, ProtocolState.READY, PacketType.PONG, ProtocolFSM::onPong);
+        on(table, ProtocolState.READY, PacketType.WINDOW_UPDATE, ProtocolFSM::onWindowUpdate);
+        on(table, ProtocolState.READY, PacketType.CLOSE, ProtocolFSM::onClose);
+        return table;
+    }
+
+    private static void on(Transition[][] table, ProtocolState state, PacketType type, Transition transition) {
+        table[state.ordinal()][type.ordinal()] = transition;
     }
 
     /**
      * 私有构造函数，工厂方法
      */
-    private ProtocolFSM() {
+    private ProtocolFSM(int localFeatures) {
 
         this.state = ProtocolState.INIT;
+        // JVM 不支持 X25519 时不声明 AEAD，对端看到的就是一个不支持加密的实现
+        this.localFeatures = KeyExchange.isAvailable() ? localFeatures : localFeatures & ~ProtocolFeatures.AEAD;
 
     }
 
     /**
      *静态工厂方法构造FSM
+     * 声明本实现支持的全部特性
      * @return protocolFSM
      */
     public static ProtocolFSM create() {
-        return new ProtocolFSM();
+        return new ProtocolFSM(ProtocolFeatures.SUPPORTED);
+    }
+
+    /**
+     * 静态工厂方法构造FSM
+     * @param localFeatures 本端愿意启用的特性（ProtocolFeatures 位组合）
+     * @return protocolFSM
+     */
+    public static ProtocolFSM create(int localFeatures) {
+        return new ProtocolFSM(localFeatures);
     }
 
     /*===getter===*/
@@ -48,21 +123,76 @@ public class ProtocolFSM {
         return this.state == ProtocolState.CLOSE;
     }
 
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    /**
+     * 流控窗口，仅在 hasFeature(ProtocolFeatures.FLOW) 时生效
+     */
+    public FlowController getFlow() {
+        return flow;
+    }
+
+    /**
+     * 协商了 AEAD 时的记录层，握手完成前或未协商时为 null
+     */
+    public RecordLayer getRecordLayer() {
+        return records;
+    }
+
+    /**
+     * 握手协商出的特性，READY 之前为 0
+     */
+    public int getFeatures() {
+        return features;
+    }
+
+    public boolean hasFeature(int feature) {
+        return ProtocolFeatures.has(features, feature);
+    }
+
     /**
      * 主动发送请求
      * @return  ProtocolEffect
      */
     public ProtocolEffect onSessionStart() {
         if (state != ProtocolState.INIT) {
-            dbg("onSessionStart in non-INIT state=" + state + " -> CLOSE_ERROR");
+            if (DEBUG) dbg("onSessionStart in non-INIT state=" + state + " -> CLOSE_ERROR");
             return ProtocolEffect.closeError();
         }
         // 客户端侧协议：主动发 HELLO
         // IMPORTANT: after sending HELLO, we must expect HELLO_ACK next.
         // So we advance to NEGOTIATING here.
         state = ProtocolState.NEGOTIATING;  //激活本地fsm
-        dbg("onSessionStart: send HELLO, next state=" + state);
-        return ProtocolEffect.send(List.of(Packet.hello()));
+        if (DEBUG) dbg("onSessionStart: send HELLO, next state=" + state);
+        if (ProtocolFeatures.has(localFeatures, ProtocolFeatures.AEAD)) {
+            // HELLO 携带临时公钥，密钥协商与特性协商共用这一个往返
+            try {
+                keyExchange = KeyExchange.initiate(AeadSuite.configured());
+                return ProtocolEffect.send(List.of(Packet.hello(localFeatures, keyExchange.extension())));
+            } catch (GeneralSecurityException e) {
+                if (DEBUG) dbg("onSessionStart: key generation failed -> offer without AEAD: " + e.getMessage());
+            }
+        }
+        if (KeyExchange.isRequired()) {
+            if (DEBUG) dbg("onSessionStart: AEAD required but not offered -> CLOSE_ERROR");
+            return ProtocolEffect.closeError();
+        }
+        return ProtocolEffect.send(List.of(Packet.hello(localFeatures & ~ProtocolFeatures.AEAD)));
+    }
+
+    /**
+     * session 在一个 keepalive 周期内没有发出数据时调用
+     * READY：发 PING（携带本地时间戳），对端回 PONG 同时刷新双方的 idle 计时并产生 RTT 样本
+     * @return  ProtocolEffect
+     */
+    public ProtocolEffect onKeepalive() {
+        if (state != ProtocolState.READY) {
+            return ProtocolEffect.none();
+        }
+        if (DEBUG) dbg("keepalive: send PING");
+        return ProtocolEffect.send(List.of(Packet.ping(System.nanoTime())));
     }
 
     /**
@@ -77,61 +207,239 @@ public class ProtocolFSM {
     public ProtocolEffect handlePacket(Packet packet) {
 
         if (packet == null) {
-            dbg("handlePacket: null packet in state=" + state + " -> CLOSE_ERROR");
+            if (DEBUG) dbg("handlePacket: null packet in state=" + state + " -> CLOSE_ERROR");
             return ProtocolEffect.closeError();
         }
-        PacketType type = packet.getHeader().getType();
-        dbg("handlePacket: state=" + state + ", type=" + type);
-
-        switch (this.state) {
-            case INIT:
-                if(packet.getHeader().getType() == PacketType.HELLO)
-                {
-                    state = ProtocolState.NEGOTIATING;
-                    Packet ack = Packet.helloACK();
-                    dbg("INIT: recv HELLO -> send HELLO_ACK, next state=" + state);
-                    return ProtocolEffect.send(List.of(ack));
-                }
+        if (DEBUG) dbg("handlePacket: state=" + state + ", type=" + packet.getHeader().getType());
 
-                dbg("INIT: unexpected type=" + type + " -> CLOSE_ERROR");
-                return ProtocolEffect.closeError();
-            case NEGOTIATING:
-                if(packet.getHeader().getType() == PacketType.HELLO_ACK)
-                {
+        return TRANSITIONS[state.ordinal()][packet.getHeader().getType().ordinal()].apply(this, packet);
+    }
 
-                    state = ProtocolState.READY;
-                    dbg("NEGOTIATING: recv HELLO_ACK -> NONE, next state=" + state);
-                    return ProtocolEffect.none();
+    /**
+     * 批量处理一次 read 解出的 packet，合并为一个 effect
+     * <p>
+     * - 各包的 SEND 输出按顺序合并为一次发送
+     * - 某个包产生 CLOSE_* 时立即停止，返回带有此前输出的关闭 effect，之后的包不处理
+     * - 全部是 NONE 时返回共享的 NONE，不分配对象
+     * 实际处理的包数见 getBatchProcessed()
+     * @param packets 按到达顺序排列的 packet
+     * @return 合并后的 ProtocolEffect
+     */
+    public ProtocolEffect handlePackets(List<Packet> packets) {
+        List<Packet> outputs = null;
+        int n = packets.size();
+        for (int i = 0; i < n; i++) {
+            ProtocolEffect effect = handlePacket(packets.get(i));
+            switch (effect.getAction()) {
+                case NONE -> {
                 }
-                // 最小容错：握手阶段收到应用层 DATA 时先忽略，避免直接关闭连接
-                if (packet.getHeader().getType() == PacketType.DATA) {
-                    dbg("NEGOTIATING: recv DATA -> NONE (ignored)");
-                    return ProtocolEffect.none();
+                case SEND -> {
+                    if (outputs == null) {
+                        outputs = new ArrayList<>(effect.getOutputs().size() + 2);
+                    }
+                    outputs.addAll(effect.getOutputs());
                 }
-                dbg("NEGOTIATING: unexpected type=" + type + " -> CLOSE_ERROR");
-                return ProtocolEffect.closeError();
-            case READY:
-                if(packet.getHeader().getType() == PacketType.DATA)
-                {
-                    dbg("READY: recv DATA -> NONE (no output)");
-                    return ProtocolEffect.none();
+                default -> {
+                    batchProcessed = i + 1;
+                    if (DEBUG) dbg("batch stopped at " + (i + 1) + "/" + n + " -> " + effect.getAction());
+                    return ProtocolEffect.merged(effect.getAction(), outputs);
                 }
-                if(packet.getHeader().getType() == PacketType.CLOSE) {
+            }
+        }
+        batchProcessed = n;
+        return ProtocolEffect.merged(outputs == null ? ProtocolEffect.Action.NONE : ProtocolEffect.Action.SEND, outputs);
+    }
 
-                    state = ProtocolState.CLOSE;
-                    dbg("READY: recv CLOSE -> CLOSE_GRACEFUL, next state=" + state);
-                    return ProtocolEffect.closeGraceful();
-                }
-                dbg("READY: unexpected type=" + type + " -> CLOSE_ERROR");
+    /**
+     * 最近一次 handlePackets 处理的包数：等于批大小，或到触发关闭的包为止（含）
+     */
+    public int getBatchProcessed() {
+        return batchProcessed;
+    }
+
+    /*=== 转移 ===*/
+
+    private ProtocolEffect reject(Packet packet) {
+        if (DEBUG) dbg(state + ": unexpected type=" + packet.getHeader().getType() + " -> CLOSE_ERROR");
+        return ProtocolEffect.closeError();
+    }
+
+    private ProtocolEffect ignore(Packet packet) {
+        if (DEBUG) dbg(state + ": recv " + packet.getHeader().getType() + " -> NONE (ignored)");
+        return ProtocolEffect.none();
+    }
+
+    /**
+     * INIT + HELLO：被动端回 HELLO_ACK 后握手即完成，之后到达的只会是 READY 阶段的包
+     */
+    private ProtocolEffect onHello(Packet packet) {
+        state = ProtocolState.READY;
+        int offered = ProtocolFeatures.read(packet);
+        int negotiated = ProtocolFeatures.negotiate(localFeatures, offered);
+        byte[] extension = null;
+        if (ProtocolFeatures.has(negotiated, ProtocolFeatures.AEAD)) {
+            // 发起方的算法本端不支持或扩展字段有误：退回明文，由 HELLO_ACK 告知对方
+            try {
+                keyExchange = KeyExchange.respond(offered, ProtocolFeatures.extension(packet), negotiated);
+                records = keyExchange.getRecords();
+                extension = keyExchange.extension();
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                if (DEBUG) dbg("INIT: key exchange declined -> drop AEAD: " + e.getMessage());
+                negotiated &= ~ProtocolFeatures.AEAD;
+            }
+        }
+        if (lacksRequiredAead(negotiated)) {
+            if (DEBUG) dbg("INIT: AEAD required, offered=" + ProtocolFeatures.describe(offered) + " -> CLOSE_ERROR");
+            return ProtocolEffect.closeError();
+        }
+        features = negotiated;
+        List<Packet> outputs = new ArrayList<>(2);
+        outputs.add(extension == null ? Packet.helloACK(features) : Packet.helloACK(features, extension));
+        addReadyOutputs(outputs);
+        if (DEBUG) dbg("INIT: recv HELLO -> send HELLO_ACK, features=" + ProtocolFeatures.describe(features) + ", next state=" + state);
+        return ProtocolEffect.send(outputs);
+    }
+
+    /**
+     * NEGOTIATING + HELLO_ACK：只接受本端声明过的特性
+     */
+    private ProtocolEffect onHelloAck(Packet packet) {
+        int accepted = ProtocolFeatures.read(packet);
+        int negotiated = ProtocolFeatures.negotiate(localFeatures, accepted);
+        if (lacksRequiredAead(negotiated)) {
+            if (DEBUG) dbg("NEGOTIATING: AEAD required, accepted=" + ProtocolFeatures.describe(accepted) + " -> CLOSE_ERROR");
+            return ProtocolEffect.closeError();
+        }
+        if (ProtocolFeatures.has(negotiated, ProtocolFeatures.AEAD)) {
+            // 对端已按加密会话派生了密钥，这里失败就无法继续通信
+            ByteBuffer extension = ProtocolFeatures.extension(packet);
+            if (keyExchange == null) {
+                // HELLO 没有提出 AEAD，HELLO_ACK 却回了 AEAD
+                if (DEBUG) dbg("NEGOTIATING: AEAD not offered -> CLOSE_ERROR");
                 return ProtocolEffect.closeError();
-            default:
-                dbg("DEFAULT: state=" + state + ", type=" + type + " -> CLOSE_ERROR");
+            }
+            try {
+                records = keyExchange.finish(localFeatures, accepted, extension);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                if (DEBUG) dbg("NEGOTIATING: key exchange failed -> CLOSE_ERROR: " + e.getMessage());
                 return ProtocolEffect.closeError();
+            }
+        }
+        features = negotiated;
+        state = ProtocolState.READY;
+        List<Packet> outputs = new ArrayList<>(1);
+        addReadyOutputs(outputs);
+        if (DEBUG) dbg("NEGOTIATING: recv HELLO_ACK -> " + (outputs.isEmpty() ? "NONE" : "SEND") + ", features=" + ProtocolFeatures.describe(features) + ", next state=" + state);
+        return outputs.isEmpty() ? ProtocolEffect.none() : ProtocolEffect.send(outputs);
+    }
 
+    /**
+     * 配置要求加密（见 KeyExchange.isRequired）而协商结果没有 AEAD：可能是特性位在途中被清掉，不能降级成明文
+     */
+    private static boolean lacksRequiredAead(int negotiated) {
+        return !ProtocolFeatures.has(negotiated, ProtocolFeatures.AEAD) && KeyExchange.isRequired();
+    }
 
+    /**
+     * READY + DATA：热路径，不分配对象
+     */
+    private ProtocolEffect onData(Packet packet) {
+        if (hasFeature(ProtocolFeatures.FLOW)) {
+            return onFlowData(packet);
         }
+        return ProtocolEffect.none();
     }
 
+    private ProtocolEffect onPing(Packet packet) {
+        if (packet.bodyLength() != Long.BYTES) {
+            if (DEBUG) dbg("READY: malformed PING length=" + packet.bodyLength() + " -> CLOSE_ERROR");
+            return ProtocolEffect.closeError();
+        }
+        if (DEBUG) dbg("READY: recv PING -> send PONG");
+        return ProtocolEffect.send(List.of(Packet.pong(packet.bodyLong(0))));
+    }
+
+    private ProtocolEffect onPong(Packet packet) {
+        if (packet.bodyLength() != Long.BYTES) {
+            if (DEBUG) dbg("READY: malformed PONG length=" + packet.bodyLength() + " -> CLOSE_ERROR");
+            return ProtocolEffect.closeError();
+        }
+        // 时间戳是本端发 PING 时写入的，直接与本地时钟相减
+        rtt.update(System.nanoTime() - packet.bodyLong(0));
+        if (DEBUG) dbg("READY: recv PONG -> " + rtt);
+        return ProtocolEffect.none();
+    }
+
+    private ProtocolEffect onClose(Packet packet) {
+        state = ProtocolState.CLOSE;
+        if (DEBUG) dbg("READY: recv CLOSE -> CLOSE_GRACEFUL, next state=" + state);
+        return ProtocolEffect.closeGraceful();
+    }
+
+    /**
+     * 握手完成后立即发出的包：协商了 FLOW 时把 session 接收窗口扩到配置值
+     */
+    private void addReadyOutputs(List<Packet> outputs) {
+        if (hasFeature(ProtocolFeatures.FLOW)) {
+            Packet update = flow.onReady();
+            if (update != null) {
+                outputs.add(update);
+            }
+        }
+    }
 
+    /**
+     * FLOW：按 StreamFrame 维护接收窗口
+     * OPEN 登记流并通告其窗口，DATA 扣减窗口（超发即协议错误），CLOSE 注销流
+     */
+    private ProtocolEffect onFlowData(Packet packet) {
+        StreamFrame.Kind kind;
+        int id;
+        try {
+            kind = StreamFrame.peekKind(packet);
+            id = StreamFrame.peekStreamId(packet);
+        } catch (IllegalArgumentException e) {
+            if (DEBUG) dbg("READY: malformed stream frame -> CLOSE_ERROR: " + e.getMessage());
+            return ProtocolEffect.closeError();
+        }
+        switch (kind) {
+            case DATA -> {
+                int n = StreamFrame.peekPayloadLength(packet);
+                if (!flow.onReceived(id, n)) {
+                    if (DEBUG) dbg("READY: stream=" + id + " exceeded flow window by DATA " + n + " -> CLOSE_ERROR");
+                    return ProtocolEffect.closeError();
+                }
+                return ProtocolEffect.none();
+            }
+            case OPEN -> {
+                Packet update = flow.openStream(id);
+                if (DEBUG) dbg("READY: recv OPEN stream=" + id + " -> " + (update == null ? "NONE" : "SEND WINDOW_UPDATE"));
+                return update == null ? ProtocolEffect.none() : ProtocolEffect.send(List.of(update));
+            }
+            case CLOSE -> {
+                flow.closeStream(id);
+                return ProtocolEffect.none();
+            }
+            default -> {
+                return ProtocolEffect.none();
+            }
+        }
+    }
 
+    private ProtocolEffect onWindowUpdate(Packet packet) {
+        if (!hasFeature(ProtocolFeatures.FLOW) || packet.bodyLength() != 2 * Integer.BYTES) {
+            if (DEBUG) dbg("READY: unexpected WINDOW_UPDATE length=" + packet.bodyLength() + " -> CLOSE_ERROR");
+            return ProtocolEffect.closeError();
+        }
+        int id = packet.bodyInt(0);
+        int increment = packet.bodyInt(Integer.BYTES);
+        try {
+            flow.onWindowUpdate(id, increment);
+        } catch (IllegalArgumentException e) {
+            if (DEBUG) dbg("READY: bad WINDOW_UPDATE stream=" + id + " -> CLOSE_ERROR: " + e.getMessage());
+            return ProtocolEffect.closeError();
+        }
+        if (DEBUG) dbg("READY: recv WINDOW_UPDATE stream=" + id + ", increment=" + increment);
+        return ProtocolEffect.none();
+    }
 }
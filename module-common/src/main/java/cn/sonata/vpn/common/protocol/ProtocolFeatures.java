@@ -0,0 +1,88 @@
+package cn.sonata.vpn.common.protocol;
+
+import cn.sonata.vpn.common.packet.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 握手协商的可选特性位
+ * <p>
+ * HELLO 的 body 携带发起方支持的特性，HELLO_ACK 的 body 携带双方交集；
+ * 没有 body 的 HELLO / HELLO_ACK（旧版本对端）视为不支持任何特性，行为与原协议一致。
+ * 特性位之后可以跟扩展字段（见 extension），目前只有 AEAD 的密钥协商使用
+ */
+public final class ProtocolFeatures {
+
+    /** DATA body 为 StreamFrame：单个 session 上承载多条逻辑流 */
+    public static final int MUX = 1;
+
+    /** 基于信用的流控（WINDOW_UPDATE），按 StreamFrame 计量，只能与 MUX 一起启用 */
+    public static final int FLOW = 2;
+
+    /**
+     * DATA body 经 AEAD 记录层加密（见 crypto.RecordLayer），握手扩展字段携带密钥协商数据；
+     * 记录长度按 StreamFrame 的帧长上限预留，只能与 MUX 一起启用
+     */
+    public static final int AEAD = 4;
+
+    /** 本实现支持的全部特性 */
+    public static final int SUPPORTED = MUX | FLOW | AEAD;
+
+    private ProtocolFeatures() {
+    }
+
+    public static boolean has(int features, int feature) {
+        return (features & feature) == feature;
+    }
+
+    /**
+     * 协商：双方都支持的特性，去掉缺少前置特性的位
+     * @param local 本端支持的特性
+     * @param remote 对端声明的特性
+     */
+    public static int negotiate(int local, int remote) {
+        int features = local & remote;
+        if (!has(features, MUX)) {
+            features &= ~(FLOW | AEAD);
+        }
+        return features;
+    }
+
+    /**
+     * 读取 HELLO / HELLO_ACK 中声明的特性位
+     * @return 没有 body 时为 0
+     */
+    public static int read(Packet packet) {
+        ByteBuffer body = packet.getBody();
+        if (body == null || body.remaining() < Integer.BYTES) {
+            return 0;
+        }
+        return body.getInt(body.position());
+    }
+
+    /**
+     * HELLO / HELLO_ACK 中特性位之后的扩展字段
+     * @return 只读视图；没有扩展字段时为 null
+     */
+    public static ByteBuffer extension(Packet packet) {
+        ByteBuffer body = packet.getBody();
+        if (body == null || body.remaining() <= Integer.BYTES) {
+            return null;
+        }
+        return body.position(body.position() + Integer.BYTES).slice();
+    }
+
+    public static String describe(int features) {
+        StringBuilder sb = new StringBuilder("[");
+        if (has(features, MUX)) {
+            sb.append("MUX");
+        }
+        if (has(features, FLOW)) {
+            sb.append(sb.length() > 1 ? "," : "").append("FLOW");
+        }
+        if (has(features, AEAD)) {
+            sb.append(sb.length() > 1 ? "," : "").append("AEAD");
+        }
+        return sb.append(']').toString();
+    }
+}
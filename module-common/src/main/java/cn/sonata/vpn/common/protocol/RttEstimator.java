@@ -0,0 +1,126 @@
+package cn.sonata.vpn.common.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 平滑 RTT 估计（RFC 6298）
+ * <p>
+ * - 首个样本：SRTT = R，RTTVAR = R / 2
+ * - 之后：RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|，SRTT = 7/8 SRTT + 1/8 R
+ * - RTO = SRTT + max(G, 4 * RTTVAR)，限制在 [minRto, maxRto]
+ * <p>
+ * 由单个线程（session 的 IO 回调线程）更新；读取方可在任意线程调用 getter
+ */
+public final class RttEstimator {
+
+    // 时钟粒度 G：与时间轮默认 tick 对齐
+    private static final long GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long DEFAULT_MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long DEFAULT_MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // 尚无样本时的 RTO（RFC 6298 建议 1s）
+    private static final long INITIAL_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long minRtoNanos;
+    private final long maxRtoNanos;
+
+    private volatile long srttNanos = -1;
+    private volatile long rttVarNanos = 0;
+    private volatile long latestNanos = -1;
+    private volatile long rtoNanos = INITIAL_RTO_NANOS;
+    private volatile long samples = 0;
+
+    public RttEstimator() {
+        this(DEFAULT_MIN_RTO_NANOS, DEFAULT_MAX_RTO_NANOS);
+    }
+
+    public RttEstimator(long minRtoNanos, long maxRtoNanos) {
+        if (minRtoNanos <= 0 || maxRtoNanos < minRtoNanos) {
+            throw new IllegalArgumentException("invalid rto bounds exception: min=" + minRtoNanos + ", max=" + maxRtoNanos);
+        }
+        this.minRtoNanos = minRtoNanos;
+        this.maxRtoNanos = maxRtoNanos;
+    }
+
+    /**
+     * 加入一个 RTT 样本
+     * @param rttNanos 测得的往返时间，非正值忽略
+     */
+    public void update(long rttNanos) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        long srtt = srttNanos;
+        long var;
+        if (srtt < 0) {
+            srtt = rttNanos;
+            var = rttNanos / 2;
+        } else {
+            var = rttVarNanos - (rttVarNanos >> 2) + (Math.abs(srtt - rttNanos) >> 2);
+            srtt = srtt - (srtt >> 3) + (rttNanos >> 3);
+        }
+        rttVarNanos = var;
+        srttNanos = srtt;
+        latestNanos = rttNanos;
+        rtoNanos = computeRto(srtt, var);
+        samples++;
+    }
+
+    private long computeRto(long srtt, long var) {
+        return Math.min(maxRtoNanos, Math.max(minRtoNanos, srtt + Math.max(GRANULARITY_NANOS, 4 * var)));
+    }
+
+    /**
+     * 重传超时后退避（RFC 6298 5.5）：RTO 翻倍，不超过上限
+     */
+    public void backoff() {
+        rtoNanos = Math.min(maxRtoNanos, rtoNanos * 2);
+    }
+
+    /**
+     * 撤销此前的退避，RTO 回到按当前估计算出的值（超时已查明不是拥塞或 RTT 变化造成的，例如路径 MTU 黑洞）
+     */
+    public void resetBackoff() {
+        long srtt = srttNanos;
+        rtoNanos = srtt < 0 ? INITIAL_RTO_NANOS : computeRto(srtt, rttVarNanos);
+    }
+
+    public boolean hasSample() {
+        return samples > 0;
+    }
+
+    public long sampleCount() {
+        return samples;
+    }
+
+    /**
+     * @return 平滑 RTT，无样本时为 -1
+     */
+    public long getSmoothedRttNanos() {
+        return srttNanos;
+    }
+
+    public long getRttVarNanos() {
+        return rttVarNanos;
+    }
+
+    /**
+     * @return 最近一次样本，无样本时为 -1
+     */
+    public long getLatestRttNanos() {
+        return latestNanos;
+    }
+
+    public long getRtoNanos() {
+        return rtoNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RttEstimator{" +
+                "srttMs=" + srttNanos / 1e6 +
+                ", rttVarMs=" + rttVarNanos / 1e6 +
+                ", rtoMs=" + rtoNanos / 1e6 +
+                ", samples=" + samples +
+                '}';
+    }
+}
@@ -1,12 +1,26 @@
 package cn.sonata.vpn.common.session;
 
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.crypto.RecordLayer;
+import cn.sonata.vpn.common.flow.FlowController;
 import cn.sonata.vpn.common.packet.*;
 import cn.sonata.vpn.common.protocol.*;
+import cn.sonata.vpn.common.timer.HierarchicalWheelTimer;
+import cn.sonata.vpn.common.timer.Timeout;
 import cn.sonata.vpn.common.transport.TransportException;
 import cn.sonata.vpn.common.transport.tcp.*;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.time.Duration;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class DefaultSession implements Session {
@@ -15,11 +29,42 @@ public class DefaultSession implements Session {
     private final ProtocolFSM fsm;
     private final SessionListener listener;
 
-    private SessionState state = SessionState.INIT;
+    // 驱动线程与 IO 回调线程都会读取
+    private volatile SessionState state = SessionState.INIT;
 
-    // Ensure at most one in-flight receive to avoid piling up blocking reads.
+    // 读循环是否在运行：同一时刻最多一个 in-flight receive
+    // 每次 receive 完成后由回调立即发起下一次，不依赖外部轮询
     private final AtomicBoolean receiving = new AtomicBoolean(false);
 
+    // 进度计数：每处理完一次 read 或 session 关闭 +1，驱动方据此阻塞等待而不是自旋
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition progressed = progressLock.newCondition();
+    private volatile long progress = 0;
+
+    // 流式组帧：跨两次 read 的半包由 decoder 保留，不会丢失
+    // 仅在 receive 回调内访问（同一时刻最多一个 in-flight receive）
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final List<Packet> decoded = new ArrayList<>();
+    // 导出给 listener 的批次（去掉 session 控制包），每次读复用同一个列表与只读视图
+    private final List<Packet> exposed = new ArrayList<>();
+    private final List<Packet> exposedView = Collections.unmodifiableList(exposed);
+
+    // 背压：为 true 时不再发起新的 receive，对端的数据留在内核缓冲区里
+    private volatile boolean readPaused = false;
+
+    // 握手 deadline / idle / keepalive，全部挂在共享时间轮上，不为每个 session 建调度线程
+    private final SessionTimeouts timeouts;
+    private final HierarchicalWheelTimer timer;
+    private volatile Timeout handshakeTimer;
+    private volatile Timeout idleTimer;
+    private volatile Timeout keepaliveTimer;
+    // 最近一次收到 / 发出数据的时间（System.nanoTime），idle 与 keepalive 据此判断，不必每次读写都重排定时器
+    private volatile long lastReadNanos;
+    private volatile long lastWriteNanos;
+
+    // 等待发送信用时的轮询间隔：WINDOW_UPDATE 到达会立即唤醒，这里只兜底检查 session 状态
+    private static final long CREDIT_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     // Debug flag: enable with JVM arg -Dsonata.debug.session=true
     private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.session");
 
@@ -34,7 +79,17 @@ public class DefaultSession implements Session {
      * 避免暴露内部接口
      */
     public static DefaultSession create(TcpConnection connection, ProtocolFSM fsm, SessionListener listener) {
-        return new DefaultSession(connection, fsm, listener);
+        return new DefaultSession(connection, fsm, listener, SessionTimeouts.defaults(), HierarchicalWheelTimer.shared());
+    }
+
+    /**
+     * 指定超时参数与时间轮
+     * @param timeouts 握手 / idle / keepalive 参数
+     * @param timer 超时调度所用时间轮（通常为 HierarchicalWheelTimer.shared()）
+     */
+    public static DefaultSession create(TcpConnection connection, ProtocolFSM fsm, SessionListener listener,
+                                        SessionTimeouts timeouts, HierarchicalWheelTimer timer) {
+        return new DefaultSession(connection, fsm, listener, timeouts, timer);
     }
 
     /**
@@ -43,10 +98,15 @@ public class DefaultSession implements Session {
      * @param connection 绑定TcpConnection
      * @param fsm 绑定协议状态机
      */
-    private DefaultSession(TcpConnection connection, ProtocolFSM fsm, SessionListener listener) {
+    private DefaultSession(TcpConnection connection, ProtocolFSM fsm, SessionListener listener,
+                           SessionTimeouts timeouts, HierarchicalWheelTimer timer) {
         this.connection = connection;
         this.fsm = fsm;
         this.listener = listener;
+        this.timeouts = timeouts;
+        this.timer = timer;
+        connection.setWritabilityListener(this::onWritabilityChanged);
+        connection.setPeerAuthenticator(this::authenticatePeer);
     }
 
 
@@ -59,12 +119,104 @@ public class DefaultSession implements Session {
         return fsm;
     }
 
+    /**
+     * 本 session 的 RTT 估计（由 keepalive PING/PONG 更新）
+     */
+    public RttEstimator getRtt() {
+        return fsm.getRtt();
+    }
+
+    /**
+     * 流控窗口（见 FlowController），仅在 isFlowControlled() 时生效
+     */
+    public FlowController getFlow() {
+        return fsm.getFlow();
+    }
+
+    public boolean isFlowControlled() {
+        return fsm.hasFeature(ProtocolFeatures.FLOW);
+    }
+
 
     public SessionState getState() {
         return state;
     }
+
+    public boolean isReadingPaused() {
+        return readPaused;
+    }
+
+    /**
+     * 当前进度计数，配合 awaitProgress 使用
+     */
+    public long progress() {
+        return progress;
+    }
     /*===getter===*/
 
+    /**
+     * 阻塞直到进度计数离开 seen 或 session 已关闭
+     * @param seen 调用方上次观察到的 progress()
+     * @param timeout 最长等待时间
+     * @return false 表示超时
+     * @throws InterruptedException 等待被中断
+     */
+    public boolean awaitProgress(long seen, Duration timeout) throws InterruptedException {
+        long nanos = timeout.toNanos();
+        progressLock.lock();
+        try {
+            while (progress == seen && state != SessionState.CLOSED) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = progressed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    private void signalProgress() {
+        progressLock.lock();
+        try {
+            progress++;
+            progressed.signalAll();
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    /**
+     * 暂停读取对端
+     * 已在进行中的一次 receive 仍会完成，之后不再发起新的 receive
+     * 用于下游（如 upstream）不可写时向对端施加背压
+     */
+    public void pauseReading() {
+        if (!readPaused) {
+            readPaused = true;
+            dbg("pauseReading()");
+        }
+    }
+
+    /**
+     * 恢复读取对端，并立即尝试调度一次 receive
+     */
+    public void resumeReading() {
+        if (readPaused) {
+            readPaused = false;
+            dbg("resumeReading()");
+            onReadable();
+        }
+    }
+
+    private void onWritabilityChanged(boolean writable) {
+        dbg("writability changed: writable=" + writable);
+        if (listener != null) {
+            listener.onWritabilityChanged(writable);
+        }
+    }
+
     /**
      * state指的是session
      * 启动session
@@ -79,6 +231,7 @@ public class DefaultSession implements Session {
 
         dbg("start(): state=" + state + ", fsm=" + fsm.getState() + ", local=" + connection.getLocalAddress() + ", remote=" + connection.getRemoteAddress());
 
+        armTimers();
         ProtocolEffect effect = fsm.onSessionStart();
         apply(effect);
     }
@@ -94,65 +247,89 @@ public class DefaultSession implements Session {
         }
         state = SessionState.RUNNING;   //sessionState.Running 不发包
         dbg("startPassive(): state=" + state + ", fsm=" + fsm.getState() + ", local=" + connection.getLocalAddress() + ", remote=" + connection.getRemoteAddress());
+        armTimers();
     }
 
     /**
      *向应用层传输数据，调度fsm, 控制io
+     * <p>
+     * 幂等的启动入口：读循环未运行时启动它，已在运行则直接返回。
+     * 读循环启动后自我驱动：每次 receive 完成、处理完 packet 后立即发起下一次，
+     * 直到 session 关闭或 pauseReading()；空闲时只有一个挂起的 receive，不占 CPU。
      */
     @Override
     public void onReadable() {
-        if (state != SessionState.RUNNING)
+        if (state != SessionState.RUNNING || readPaused)
             return;
 
-        // 如果已有一次异步 read 在进行中，则本次调度直接跳过。
-        // 降低竞态和任务堆积
-        // driveOnce() 可能非常频繁调用；JdkTcpConnection.receiveAsync() 内部是阻塞 read，堆积任务会放大竞态。
+        // 已有一次 receive 在进行中：读循环已在运行，无需再调度
         if (!receiving.compareAndSet(false, true)) {
             return;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        // 接收缓冲区从 direct 缓冲池借用；零拷贝 packet 全部 release 后自动归还
+        RefCountedBuffer received = BufferPool.direct().acquire(4096);
+        ByteBuffer buffer = received.buffer();
 
-        dbg("onReadable(): schedule receiveAsync, fsm=" + fsm.getState() + ", thread=" + Thread.currentThread().getName());
+        if (DEBUG) dbg("onReadable(): schedule receiveAsync, fsm=" + fsm.getState() + ", thread=" + Thread.currentThread().getName());
 
         try{
-            connection.receiveAsync(buffer).thenAccept(n -> {
+            connection.receiveAsync(buffer).whenCompleteAsync((n, error) -> {
                 try {
-                    dbg("receiveAsync completed: n=" + n + ", thread=" + Thread.currentThread().getName() + ", fsm=" + fsm.getState());
+                    if (DEBUG) dbg("receiveAsync completed: n=" + n + ", thread=" + Thread.currentThread().getName() + ", fsm=" + fsm.getState());
 
-                    if(n == null || n < 0)
+                    if(error != null || n == null || n < 0)
                     {
-                        dbg("receiveAsync: remote closed -> close()");
+                        dbg("receiveAsync: remote closed or failed -> close()");
+                        received.release();
+                        decoder.reset();
                         close();
                         return;
                     }
 
+                    lastReadNanos = System.nanoTime();
                     buffer.flip();
-                    var packets = PacketCodec.decode(buffer);
-                    dbg("decode: packets=" + (packets == null ? "null" : packets.size()));
+                    // 零拷贝解码：完整帧的 body 直接是接收缓冲区的只读 slice
+                    var packets = decoded;
+                    packets.clear();
+                    try {
+                        decoder.decode(received, packets);
+                    } catch (IllegalArgumentException e) {
+                        // 非法帧（magic / type / length）：字节流已不可信，按协议错误关闭
+                        dbg("decode failed: " + e.getMessage() + " -> CLOSE_ERROR");
+                        for (Packet packet : packets) {
+                            packet.release();
+                        }
+                        packets.clear();
+                        received.release();
+                        decoder.reset();
+                        apply(ProtocolEffect.closeError());
+                        return;
+                    }
+                    if (DEBUG) dbg("decode: packets=" + (packets == null ? "null" : packets.size()));
 
-                    for (Packet packet : packets)
-                    {
-                        dbg("dispatch packet: " + packet);
-                        ProtocolEffect effect = fsm.handlePacket(packet);
-                        apply(effect);
-                        if(state != SessionState.RUNNING)
-                            return;
-
-                        //向应用层导出数据
-                        if (listener != null) {
-                            listener.exposeReceived(List.of(packet));
+                    try {
+                        deliver(packets);
+                    } finally {
+                        for (int i = 0; i < packets.size(); i++) {
+                            packets.get(i).release();
                         }
+                        packets.clear();
+                        received.release();
                     }
                 } finally {
                     receiving.set(false);
+                    signalProgress();
                 }
-            });
+                // 立即发起下一次 receive（关闭或暂停时 onReadable 自行返回）
+                onReadable();
+            }, connection.callbackExecutor());     //解码与 FSM 推进串行执行：NIO / UDP 连接在所属 loop 上，阻塞连接经 SerialExecutor
 
 
 
         }catch (TransportException e)
         {
+            received.release();
             receiving.set(false);
             dbg("onReadable(): TransportException -> close(): " + e.getMessage());
             close();
@@ -161,12 +338,262 @@ public class DefaultSession implements Session {
 
     }
 
+    /**
+     * 一次 read 解出的整批 packet：FSM 一次处理、合并成一个 effect，listener 一次回调
+     * <p>
+     * FSM 在某个包上决定关闭时，之前的包照常导出（先于 onSessionClosed），之后的包丢弃
+     * <p>
+     * 握手包之后同批到达的记录要用这个握手刚派生的密钥解开：批次在握手包之后一分为二，前一半处理完再解后一半
+     * （例如 UDP 上退避后重传的 HELLO_ACK 与对端的 keepalive PING 一起按序交付）
+     */
+    private void deliver(List<Packet> packets) {
+        if (DEBUG) dbg("deliver batch: " + packets.size() + " packets");
+        RecordLayer records = fsm.getRecordLayer();
+        int handshake = records == null ? indexOfHandshake(packets) : -1;
+        if (handshake >= 0 && handshake < packets.size() - 1) {
+            // 子列表上的替换与移除直接作用在 packets 上，调用方照常逐个 release
+            deliverBatch(packets.subList(0, handshake + 1), null);
+            if (state == SessionState.RUNNING) {
+                deliverBatch(packets.subList(handshake + 1, packets.size()), fsm.getRecordLayer());
+            }
+            return;
+        }
+        deliverBatch(packets, records);
+    }
+
+    private static int indexOfHandshake(List<Packet> packets) {
+        for (int i = 0; i < packets.size(); i++) {
+            PacketType type = packets.get(i).getHeader().getType();
+            if (type == PacketType.HELLO || type == PacketType.HELLO_ACK) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param records 解开本批记录所用的记录层，未协商 AEAD 时为 null
+     */
+    private void deliverBatch(List<Packet> packets, RecordLayer records) {
+        if (records != null && !openRecords(records, packets)) {
+            apply(ProtocolEffect.closeError());
+            decoder.reset();
+            return;
+        }
+        ProtocolEffect effect = fsm.handlePackets(packets);
+        int processed = fsm.getBatchProcessed();
+        boolean closing = effect.getAction() == ProtocolEffect.Action.CLOSE_GRACEFUL
+                || effect.getAction() == ProtocolEffect.Action.CLOSE_ERROR;
+        // 触发关闭的那个包不导出
+        int deliverable = closing ? processed - 1 : processed;
+
+        if (!closing) {
+            apply(effect);
+        }
+        if (handshakeTimer != null && fsm.getState() == ProtocolState.READY) {
+            onHandshakeComplete();
+        }
+
+        //向应用层导出数据，listener 需要保留 packet 时自行 retain()
+        //PING/PONG、WINDOW_UPDATE 属于 session 自身的控制包，不导出
+        if (listener != null && (state == SessionState.RUNNING || closing)) {
+            exposed.clear();
+            for (int i = 0; i < deliverable; i++) {
+                Packet packet = packets.get(i);
+                if (!isSessionControl(packet)) {
+                    exposed.add(packet);
+                }
+            }
+            if (!exposed.isEmpty()) {
+                try {
+                    listener.exposeReceived(exposedView);
+                } finally {
+                    exposed.clear();
+                }
+            }
+        }
+
+        if (closing) {
+            apply(effect);
+        }
+        if (state != SessionState.RUNNING) {
+            decoder.reset();
+        }
+    }
+
+    /**
+     * 协商了 AEAD 时，批次中的记录（握手包之外的全部类型，见 RecordLayer.isRecord）原地解密，列表中的元素替换为明文 packet
+     * （明文 packet 接管记录的缓冲区引用，调用方照常逐个 release 列表中的元素）
+     * <p>
+     * 批次中不含握手包（与握手包同批的记录由 deliver 拆到握手包之后再解）
+     * 重放的记录从批次中移除并释放，不影响 session
+     * @return false 表示记录校验失败，按协议错误关闭
+     */
+    private boolean openRecords(RecordLayer records, List<Packet> packets) {
+        for (int i = 0; i < packets.size(); i++) {
+            Packet packet = packets.get(i);
+            if (!isRecord(packet.getHeader().getType())) {
+                continue;
+            }
+            try {
+                Packet plain = records.open(packet);
+                if (plain == null) {
+                    if (DEBUG) dbg("replayed record dropped, total=" + records.getReplayed());
+                    packet.release();
+                    packets.remove(i--);
+                    continue;
+                }
+                packets.set(i, plain);
+            } catch (GeneralSecurityException e) {
+                dbg("record open failed: " + e + " -> CLOSE_ERROR");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 连接迁移的认证：只有协商了 AEAD 的 session 才能证明新地址上的对端仍是同一个（记录能用本 session 的密钥解开）
+     * DATA 与 keepalive 的 PING / PONG 都是记录，空闲的对端换了地址也能凭 keepalive 迁移
+     * 在 connection.callbackExecutor() 上调用，与接收路径同一线程
+     */
+    private boolean authenticatePeer(Packet record) {
+        RecordLayer records = fsm.getRecordLayer();
+        return records != null && state == SessionState.RUNNING
+                && isRecord(record.getHeader().getType()) && records.authenticate(record);
+    }
+
+    private static boolean isRecord(PacketType type) {
+        return RecordLayer.isRecord(type);
+    }
+
+    /**
+     * 编码并写出；协商了 AEAD 时握手包之外的 packet 先经记录层加密
+     * 加密出的记录 packet 持有池化 buffer，写出完成（或失败）后归还
+     * <p>
+     * 打头的握手包单独写出，其后的记录（HELLO_ACK 之后的初始 WINDOW_UPDATE）另起一次写，
+     * datagram 模式下两者不会装进同一个 datagram
+     */
+    private CompletableFuture<Integer> write(List<Packet> packets) throws TransportException {
+        RecordLayer records = fsm.getRecordLayer();
+        if (records == null) {
+            return connection.sendAsync(PacketCodec.encodeAll(packets));
+        }
+        int handshake = 0;
+        while (handshake < packets.size() && !isRecord(packets.get(handshake).getHeader().getType())) {
+            handshake++;
+        }
+        if (handshake > 0 && handshake < packets.size()) {
+            connection.sendAsync(PacketCodec.encodeAll(packets.subList(0, handshake)));
+            return write(packets.subList(handshake, packets.size()));
+        }
+        List<Packet> wire = new ArrayList<>(packets.size());
+        try {
+            for (Packet packet : packets) {
+                wire.add(isRecord(packet.getHeader().getType()) ? records.seal(packet) : packet);
+            }
+        } catch (GeneralSecurityException | RuntimeException e) {
+            releaseSealed(packets, wire);
+            throw new TransportException("record seal exception: " + e.getMessage(), e);
+        }
+        CompletableFuture<Integer> written;
+        try {
+            written = connection.sendAsync(PacketCodec.encodeAll(wire));
+        } catch (TransportException e) {
+            releaseSealed(packets, wire);
+            throw e;
+        }
+        written.whenComplete((n, error) -> releaseSealed(packets, wire));
+        return written;
+    }
+
+    /**
+     * 只释放 write 自己加密出的记录，调用方的 packet 不动
+     */
+    private static void releaseSealed(List<Packet> packets, List<Packet> wire) {
+        for (int i = 0; i < wire.size(); i++) {
+            if (wire.get(i) != packets.get(i)) {
+                wire.get(i).release();
+            }
+        }
+    }
+
+    /**
+     * 应用层主动发送（例如多路复用的 stream 帧），任意线程可调用
+     * 多个 packet 合并为一次 gathering write；packet body 在写出完成前不得被修改或释放
+     * @param packets 待发送 packet，按顺序写出
+     * @throws TransportException session 未运行或传输层失败
+     */
+    public void send(List<Packet> packets) throws TransportException {
+        if (state != SessionState.RUNNING) {
+            throw new TransportException("session send exception: session not running");
+        }
+        write(packets);
+        lastWriteNanos = System.nanoTime();
+    }
+
+    /**
+     * 为流上的一段 DATA payload 取得发送信用，信用耗尽时阻塞，不要在 IO loop 线程上调用
+     * 未协商 FLOW 时直接返回 max
+     * @param streamId 流 id
+     * @param max 希望发送的字节数
+     * @return 本次可发送的字节数（1..max）
+     * @throws TransportException 流或 session 已关闭，或等待被中断
+     */
+    public int acquireSendCredit(int streamId, int max) throws TransportException {
+        if (!isFlowControlled()) {
+            return max;
+        }
+        try {
+            while (true) {
+                int n = fsm.getFlow().acquire(streamId, max, CREDIT_WAIT_NANOS);
+                if (n > 0) {
+                    return n;
+                }
+                if (n < 0 || state != SessionState.RUNNING) {
+                    throw new TransportException("flow credit exception: stream " + streamId + " closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransportException("flow credit exception: interrupted", e);
+        }
+    }
+
+    /**
+     * 应用层已消费（转发完成 / 丢弃）一段流上的 payload，任意线程可调用
+     * 累计够阈值时向对端发 WINDOW_UPDATE 归还信用；未协商 FLOW 时为 no-op
+     * @param streamId 流 id
+     * @param bytes 消费的 payload 字节数
+     */
+    public void onDataConsumed(int streamId, int bytes) {
+        if (!isFlowControlled() || state != SessionState.RUNNING) {
+            return;
+        }
+        List<Packet> updates = new ArrayList<>(2);
+        fsm.getFlow().onConsumed(streamId, bytes, updates);
+        if (updates.isEmpty()) {
+            return;
+        }
+        try {
+            send(updates);
+        } catch (TransportException e) {
+            dbg("window update failed: " + e.getMessage());
+        }
+    }
+
     @Override
     public void close() {
+        close(SessionCloseReason.LOCAL_CLOSE);
+    }
+
+    private void close(SessionCloseReason reason) {
         if(state == SessionState.CLOSED)
             return;
 
         state = SessionState.CLOSED;
+        cancelTimers();
+        fsm.getFlow().close();
         try{
             connection.closeAsync();
 
@@ -176,9 +603,111 @@ public class DefaultSession implements Session {
         }
 
         if (listener != null) {
-            listener.onSessionClosed(SessionCloseReason.LOCAL_CLOSE);
+            listener.onSessionClosed(reason);
         }
+        signalProgress();
+    }
 
+    private static boolean isSessionControl(Packet packet) {
+        PacketType type = packet.getHeader().getType();
+        return type == PacketType.PING || type == PacketType.PONG || type == PacketType.WINDOW_UPDATE;
+    }
+
+    /*=== 定时器：到期回调转交 connection.callbackExecutor()，与读路径串行推进（不会与 deliver 同时执行） ===*/
+
+    private void armTimers() {
+        long now = System.nanoTime();
+        lastReadNanos = now;
+        lastWriteNanos = now;
+        if (!timeouts.getHandshake().isZero()) {
+            handshakeTimer = schedule(this::onHandshakeTimeout, timeouts.getHandshake().toNanos());
+        }
+        if (!timeouts.getIdle().isZero()) {
+            idleTimer = schedule(this::onIdleCheck, timeouts.getIdle().toNanos());
+        }
+    }
+
+    private Timeout schedule(Runnable task, long delayNanos) {
+        return timer.schedule(() -> connection.callbackExecutor().execute(task), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void onHandshakeComplete() {
+        Timeout t = handshakeTimer;
+        handshakeTimer = null;
+        if (t != null) {
+            t.cancel();
+        }
+        dbg("handshake complete, fsm=" + fsm.getState());
+        if (!timeouts.getKeepalive().isZero() && state == SessionState.RUNNING) {
+            keepaliveTimer = schedule(this::onKeepalive, timeouts.getKeepalive().toNanos());
+        }
+    }
+
+    private void onHandshakeTimeout() {
+        handshakeTimer = null;
+        if (state == SessionState.RUNNING && fsm.getState() != ProtocolState.READY) {
+            dbg("handshake timeout, fsm=" + fsm.getState() + " -> close");
+            close(SessionCloseReason.HANDSHAKE_TIMEOUT);
+        }
+    }
+
+    /**
+     * idle 检查：到期时若期间有读，按剩余时间重排，不在每次读时取消/重建定时器
+     */
+    private void onIdleCheck() {
+        if (state != SessionState.RUNNING) {
+            return;
+        }
+        long idleNanos = timeouts.getIdle().toNanos();
+        long silent = System.nanoTime() - lastReadNanos;
+        if (silent >= idleNanos) {
+            dbg("idle timeout: silent=" + TimeUnit.NANOSECONDS.toMillis(silent) + "ms -> close");
+            close(SessionCloseReason.IDLE_TIMEOUT);
+            return;
+        }
+        idleTimer = schedule(this::onIdleCheck, idleNanos - silent);
+    }
+
+    /**
+     * keepalive：一个周期内没有发出任何数据时，由 FSM 决定发什么
+     */
+    private void onKeepalive() {
+        if (state != SessionState.RUNNING) {
+            return;
+        }
+        long intervalNanos = timeouts.getKeepalive().toNanos();
+        long quiet = System.nanoTime() - lastWriteNanos;
+        if (quiet >= intervalNanos) {
+            dbg("keepalive: quiet=" + TimeUnit.NANOSECONDS.toMillis(quiet) + "ms");
+            apply(fsm.onKeepalive());
+            quiet = 0;
+        }
+        if (state == SessionState.RUNNING) {
+            keepaliveTimer = schedule(this::onKeepalive, intervalNanos - quiet);
+        }
+    }
+
+    private void cancelTimers() {
+        Timeout t;
+        if ((t = handshakeTimer) != null) {
+            t.cancel();
+        }
+        if ((t = idleTimer) != null) {
+            t.cancel();
+        }
+        if ((t = keepaliveTimer) != null) {
+            t.cancel();
+        }
+    }
+
+    /**
+     * 批处理合并出的关闭 effect 可能带有关闭前要发出的包
+     */
+    private void flushOutputs(ProtocolEffect effect) throws TransportException {
+        List<Packet> outputs = effect.getOutputs();
+        if (outputs != null && !outputs.isEmpty()) {
+            write(outputs);
+        }
     }
 
     /**
@@ -192,7 +721,7 @@ public class DefaultSession implements Session {
             return;
         }
 
-        dbg("apply(): action=" + effect.getAction() + ", outputs=" + (effect.getOutputs() == null ? 0 : effect.getOutputs().size()) + ", fsm=" + fsm.getState());
+        if (DEBUG) dbg("apply(): action=" + effect.getAction() + ", outputs=" + (effect.getOutputs() == null ? 0 : effect.getOutputs().size()) + ", fsm=" + fsm.getState());
 
         try{
             //控制tcp连接
@@ -201,13 +730,12 @@ public class DefaultSession implements Session {
                 //TODO:可以加入default暴露问题语义，暂时不做处理
                 case NONE -> {}
                 case SEND -> {
-                    for(Packet packet : effect.getOutputs())
-                    {
-                        ByteBuffer buffer = PacketCodec.encode(packet);
-                        connection.sendAsync(buffer);
-                    }
+                    //一次 gathering write 发出全部输出
+                    write(effect.getOutputs());
+                    lastWriteNanos = System.nanoTime();
                 }
                 case CLOSE_GRACEFUL -> {
+                    flushOutputs(effect);
                     connection.shutdownAsync();
                     state = SessionState.CLOSED;
                     if (listener != null) {
@@ -215,6 +743,7 @@ public class DefaultSession implements Session {
                     }
                 }
                 case CLOSE_ERROR -> {
+                    flushOutputs(effect);
                     connection.closeAsync();
                     state = SessionState.CLOSED;
                     if (listener != null) {
@@ -235,6 +764,12 @@ public class DefaultSession implements Session {
                 listener.onSessionClosed(SessionCloseReason.IO_ERROR);
             }
         }
+
+        if (state == SessionState.CLOSED) {
+            cancelTimers();
+            fsm.getFlow().close();      //唤醒阻塞在发送信用上的线程
+            signalProgress();   //唤醒阻塞在 awaitProgress 的驱动方
+        }
     }
 
 
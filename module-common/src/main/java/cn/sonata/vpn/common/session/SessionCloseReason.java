@@ -5,5 +5,7 @@ public enum SessionCloseReason {
     NORMAL,
     PROTOCOL_ERROR,
     IO_ERROR,
-    LOCAL_CLOSE
+    LOCAL_CLOSE,
+    HANDSHAKE_TIMEOUT,
+    IDLE_TIMEOUT
 }
@@ -8,9 +8,23 @@ public interface SessionListener {
     /**
      * 推荐用Executor实现
      * 内部消化packets
+     * <p>
+     * packet body 可能是接收缓冲区的零拷贝 slice，仅在本次回调内有效；
+     * 回调结束后仍需使用的 packet 必须 retain()，用完 release()（或 detach() 复制一份）
+     * <p>
+     * packets 是一次 read 解出的整批数据（不含 PING/PONG 等 session 控制包），
+     * 只读且由 session 复用：不要在回调之外持有这个列表本身
      */
     public void exposeReceived(List<Packet> packets);
 
     void onSessionClosed(SessionCloseReason reason);
 
+    /**
+     * 本 session 连接的出站可写状态翻转（见 TcpConnection#setWriteWatermarks）
+     * writable=false 时应暂停向该 session 写入的生产方，直到再次回调 true
+     * 可能在 IO 线程上回调，不要阻塞
+     */
+    default void onWritabilityChanged(boolean writable) {
+    }
+
 }
@@ -0,0 +1,72 @@
+package cn.sonata.vpn.common.session;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * session 的时间相关参数（Duration.ZERO 表示关闭该项）
+ * <p>
+ * - handshake：从 start 到 FSM 进入 READY 的最长时间
+ * - idle：连续多久没有收到任何数据即关闭
+ *   对端存活时 keepalive PING/PONG 会持续刷新读时间，因此 idle 即失联检测时间（默认 3 个 keepalive 周期）
+ * - keepalive：READY 后多久没有发出数据就主动发一次保活
+ * <p>
+ * 默认值可用 JVM arg 覆盖（毫秒）：
+ * -Dsonata.session.handshakeTimeoutMs / -Dsonata.session.idleTimeoutMs / -Dsonata.session.keepaliveMs
+ */
+public final class SessionTimeouts {
+
+    private static final SessionTimeouts DEFAULTS = new SessionTimeouts(
+            Duration.ofMillis(Long.getLong("sonata.session.handshakeTimeoutMs", 10_000)),
+            Duration.ofMillis(Long.getLong("sonata.session.idleTimeoutMs", 15_000)),
+            Duration.ofMillis(Long.getLong("sonata.session.keepaliveMs", 5_000))
+    );
+
+    private static final SessionTimeouts DISABLED = new SessionTimeouts(Duration.ZERO, Duration.ZERO, Duration.ZERO);
+
+    private final Duration handshake;
+    private final Duration idle;
+    private final Duration keepalive;
+
+    private SessionTimeouts(Duration handshake, Duration idle, Duration keepalive) {
+        this.handshake = Objects.requireNonNull(handshake, "handshake must not be null");
+        this.idle = Objects.requireNonNull(idle, "idle must not be null");
+        this.keepalive = Objects.requireNonNull(keepalive, "keepalive must not be null");
+        if (handshake.isNegative() || idle.isNegative() || keepalive.isNegative()) {
+            throw new IllegalArgumentException("session timeouts must not be negative exception");
+        }
+    }
+
+    public static SessionTimeouts defaults() {
+        return DEFAULTS;
+    }
+
+    public static SessionTimeouts disabled() {
+        return DISABLED;
+    }
+
+    public static SessionTimeouts of(Duration handshake, Duration idle, Duration keepalive) {
+        return new SessionTimeouts(handshake, idle, keepalive);
+    }
+
+    public Duration getHandshake() {
+        return handshake;
+    }
+
+    public Duration getIdle() {
+        return idle;
+    }
+
+    public Duration getKeepalive() {
+        return keepalive;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionTimeouts{" +
+                "handshake=" + handshake +
+                ", idle=" + idle +
+                ", keepalive=" + keepalive +
+                '}';
+    }
+}
@@ -0,0 +1,296 @@
+package cn.sonata.vpn.common.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 分层哈希时间轮
+ * <p>
+ * - 4 层 × 256 槽，每层覆盖上一层的 256 倍时长（10ms tick 时约 497 天）
+ * - schedule / cancel 都是 O(1)：调用线程只入无锁队列，由 timer 线程挂入/摘除桶内双向链表
+ * - 高层槽在低层转完一圈时整体下沉（cascade），到期判断只发生在第 0 层
+ * - 精度为一个 tick：任务在到期后的第一个 tick 边界执行，不会提前
+ * <p>
+ * 全部任务在单个 timer 线程上执行，任务内不要阻塞；需要线程归属的任务应自行转交执行器
+ * 没有任何待执行任务时 timer 线程 park，不做空转
+ */
+public final class HierarchicalWheelTimer implements AutoCloseable {
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    private static volatile HierarchicalWheelTimer shared;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Bucket[][] wheels = new Bucket[LEVELS][WHEEL_SIZE];
+
+    private final Queue<Timeout> pendingAdds = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> pendingCancels = new ConcurrentLinkedQueue<>();
+    // 已 schedule、尚未到期或取消的任务数
+    private final AtomicLong active = new AtomicLong();
+
+    private final Thread worker;
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+
+    /*=== 仅 timer 线程访问 ===*/
+    // 下一个待处理的 tick
+    private long tick = 0;
+
+    /**
+     * 桶：Timeout 组成的双向链表
+     */
+    static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+
+        /**
+         * 整桶取出，返回原链表头（节点仍保留 next 指针供遍历）
+         */
+        Timeout drain() {
+            Timeout h = head;
+            head = null;
+            tail = null;
+            return h;
+        }
+    }
+
+    private HierarchicalWheelTimer(String name, long tickNanos) {
+        this.tickNanos = tickNanos;
+        for (int l = 0; l < LEVELS; l++) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheels[l][i] = new Bucket();
+            }
+        }
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * 静态工厂方法：默认 10ms tick
+     */
+    public static HierarchicalWheelTimer create(String name) {
+        return create(name, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static HierarchicalWheelTimer create(String name, long tick, TimeUnit unit) {
+        long nanos = unit.toNanos(tick);
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("timer tick must be positive exception: " + tick + " " + unit);
+        }
+        HierarchicalWheelTimer timer = new HierarchicalWheelTimer(name, nanos);
+        timer.worker.start();
+        return timer;
+    }
+
+    /**
+     * 进程共享的 timer（session 超时、keepalive 等）
+     */
+    public static HierarchicalWheelTimer shared() {
+        HierarchicalWheelTimer timer = shared;
+        if (timer == null) {
+            synchronized (HierarchicalWheelTimer.class) {
+                timer = shared;
+                if (timer == null) {
+                    timer = create("sonata-timer");
+                    shared = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * 延迟执行任务
+     * @param task 在 timer 线程上执行，不要阻塞
+     * @param delay 延迟
+     * @param unit 单位
+     * @return 可取消的句柄
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task is null exception");
+        }
+        if (!running) {
+            throw new IllegalStateException("timer already closed exception");
+        }
+        long elapsed = System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay));
+        // 向上取整：不早于 delay 触发
+        long deadlineTick = (elapsed + tickNanos - 1) / tickNanos;
+
+        Timeout timeout = new Timeout(this, task, deadlineTick);
+        active.incrementAndGet();
+        pendingAdds.offer(timeout);
+        if (idle) {
+            LockSupport.unpark(worker);
+        }
+        return timeout;
+    }
+
+    /**
+     * 尚未到期且未取消的任务数
+     */
+    public long pendingTimeouts() {
+        return active.get();
+    }
+
+    void onCancelled(Timeout timeout) {
+        pendingCancels.offer(timeout);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    /*=== timer 线程 ===*/
+
+    private void run() {
+        while (running) {
+            processCancels();
+            transferAdds();
+
+            long now = currentTick();
+            while (tick <= now) {
+                processTick(tick);
+                tick++;
+                // 执行任务期间可能又有新任务加入
+                transferAdds();
+            }
+
+            if (active.get() == 0) {
+                idle = true;
+                // park 前复查，避免错过刚入队的任务
+                if (pendingAdds.isEmpty() && pendingCancels.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                processCancels();
+                // 轮子是空的，直接快进到当前 tick
+                tick = Math.max(tick, currentTick());
+            } else {
+                long nextTickNanos = startNanos + tick * tickNanos;
+                long sleep = nextTickNanos - System.nanoTime();
+                if (sleep > 0) {
+                    LockSupport.parkNanos(this, sleep);
+                }
+            }
+        }
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void processCancels() {
+        Timeout t;
+        while ((t = pendingCancels.poll()) != null) {
+            t.unlink();
+            active.decrementAndGet();
+        }
+    }
+
+    private void transferAdds() {
+        Timeout t;
+        while ((t = pendingAdds.poll()) != null) {
+            if (t.isCancelled()) {
+                continue;   //计数由 processCancels 扣除
+            }
+            place(t);
+        }
+    }
+
+    /**
+     * 按剩余 tick 数选择层级与槽位
+     */
+    private void place(Timeout t) {
+        long target = Math.max(t.deadlineTick, tick);
+        long delta = target - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        int idx = (int) ((target >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        wheels[level][idx].add(t);
+    }
+
+    private void processTick(long t) {
+        // 高层先下沉：从高层落下来的任务可能还要继续落到更低层
+        for (int level = LEVELS - 1; level >= 1; level--) {
+            long lowMask = (1L << (WHEEL_BITS * level)) - 1;
+            if ((t & lowMask) == 0) {
+                cascade(level, (int) ((t >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+            }
+        }
+
+        Timeout timeout = wheels[0][(int) (t & WHEEL_MASK)].drain();
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            if (!timeout.isCancelled()) {
+                if (timeout.deadlineTick <= t) {
+                    if (timeout.expire()) {
+                        active.decrementAndGet();
+                    }
+                } else {
+                    place(timeout);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void cascade(int level, int idx) {
+        Timeout timeout = wheels[level][idx].drain();
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            if (!timeout.isCancelled()) {
+                place(timeout);
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package cn.sonata.vpn.common.timer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HierarchicalWheelTimer 返回的定时任务句柄
+ * <p>
+ * 同时也是时间轮桶内双向链表的节点：链接字段只由 timer 线程访问，
+ * cancel() 只做状态 CAS + 入队，真正的摘除由 timer 线程 O(1) 完成
+ */
+public final class Timeout {
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final HierarchicalWheelTimer timer;
+    private final Runnable task;
+    private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+    /*=== 以下字段仅在 timer 线程访问 ===*/
+    // 绝对到期 tick
+    final long deadlineTick;
+    Timeout prev;
+    Timeout next;
+    HierarchicalWheelTimer.Bucket bucket;
+
+    Timeout(HierarchicalWheelTimer timer, Runnable task, long deadlineTick) {
+        this.timer = timer;
+        this.task = task;
+        this.deadlineTick = deadlineTick;
+    }
+
+    /**
+     * 取消任务
+     * @return true 表示本次调用取消成功；已到期或已取消返回 false
+     */
+    public boolean cancel() {
+        if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+            return false;
+        }
+        timer.onCancelled(this);
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return state.get() == ST_CANCELLED;
+    }
+
+    public boolean isExpired() {
+        return state.get() == ST_EXPIRED;
+    }
+
+    /**
+     * timer 线程调用：到期执行
+     * @return false 表示已被并发取消，未执行
+     */
+    boolean expire() {
+        if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+            return false;
+        }
+        try {
+            task.run();
+        } catch (Throwable t) {
+            System.err.println("[timer] task error: " + t);
+        }
+        return true;
+    }
+
+    /**
+     * 从所在桶中摘除（timer 线程）
+     */
+    void unlink() {
+        if (bucket != null) {
+            bucket.remove(this);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package cn.sonata.vpn.common.transport;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 阻塞式 IO 的线程来源
+ * <p>
+ * - PLATFORM：平台线程（cached pool / 独立线程），默认
+ * - VIRTUAL：虚拟线程，阻塞 read/write 只挂起虚拟线程，不占用平台线程
+ * <p>
+ * 开启方式：JVM arg -Dsonata.io.virtual=true
+ * 虚拟线程需要 JDK 21+，通过反射获取，低版本运行时自动回退到 PLATFORM
+ */
+public final class IoThreads {
+
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    // Thread.ofVirtual().factory()，运行时不支持则为 null
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+
+    // Executors.newVirtualThreadPerTaskExecutor()，运行时不支持则为 null
+    private static final Method VIRTUAL_EXECUTOR = lookupVirtualExecutor();
+
+    // Thread.isVirtual()，运行时不支持则为 null
+    private static final Method IS_VIRTUAL = lookupIsVirtual();
+
+    private static final Mode DEFAULT_MODE = resolveDefaultMode();
+
+    private static volatile ExecutorService shared;
+
+    private IoThreads() {
+    }
+
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Method lookupVirtualExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Method lookupIsVirtual() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Mode resolveDefaultMode() {
+        if (!Boolean.getBoolean("sonata.io.virtual")) {
+            return Mode.PLATFORM;
+        }
+        if (!virtualThreadsSupported()) {
+            System.err.println("[io] virtual threads not supported by this JVM, fallback to PLATFORM");
+            return Mode.PLATFORM;
+        }
+        return Mode.VIRTUAL;
+    }
+
+    public static boolean virtualThreadsSupported() {
+        return VIRTUAL_FACTORY != null && VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * 当前线程是否为虚拟线程
+     * 虚拟线程按任务创建，不适合挂 ThreadLocal 缓存
+     */
+    public static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 由 -Dsonata.io.virtual 决定的默认模式
+     */
+    public static Mode defaultMode() {
+        return DEFAULT_MODE;
+    }
+
+    /**
+     * 进程共享的 IO 执行器（默认模式）
+     */
+    public static ExecutorService sharedExecutor() {
+        ExecutorService executor = shared;
+        if (executor == null) {
+            synchronized (IoThreads.class) {
+                executor = shared;
+                if (executor == null) {
+                    executor = newExecutor(DEFAULT_MODE);
+                    shared = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 创建新的 IO 执行器
+     * PLATFORM：cached pool；VIRTUAL：每任务一个虚拟线程（虚拟线程不池化）
+     */
+    public static ExecutorService newExecutor(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            if (!virtualThreadsSupported()) {
+                throw new IllegalStateException("virtual threads not supported exception");
+            }
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("virtual executor create exception", e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * 以默认模式启动一个长驻线程（如 pump / driver 循环）
+     */
+    public static Thread start(String name, Runnable task) {
+        return start(DEFAULT_MODE, name, task);
+    }
+
+    public static Thread start(Mode mode, String name, Runnable task) {
+        Thread t;
+        if (mode == Mode.VIRTUAL) {
+            t = requireVirtualFactory().newThread(task);
+        } else {
+            t = new Thread(task);
+            t.setDaemon(true);
+        }
+        t.setName(name);
+        t.start();
+        return t;
+    }
+
+    private static ThreadFactory requireVirtualFactory() {
+        if (VIRTUAL_FACTORY == null) {
+            throw new IllegalStateException("virtual threads not supported exception");
+        }
+        return VIRTUAL_FACTORY;
+    }
+}
@@ -0,0 +1,80 @@
+package cn.sonata.vpn.common.transport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 串行执行器：任务按提交顺序在底层执行器上逐个执行，同一时刻最多一个在运行
+ * <p>
+ * 给没有固定 IO 线程的连接（如 JdkTcpConnection）当 callbackExecutor：读完成回调与 session 的定时器回调
+ * 都经它执行，上层的状态机因此不会被两个线程同时推进
+ * <p>
+ * MPSC 队列 + 单 drainer 标记（同 JdkTcpConnection 的出站队列）；drainer 不持有任何锁，任务里可以再提交任务
+ */
+public final class SerialExecutor implements Executor {
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.io=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.io");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[io] " + msg);
+        }
+    }
+
+    private final Executor delegate;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    /**
+     * @param delegate 实际执行任务的执行器（可以是多线程的）
+     */
+    public SerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException 底层执行器已关闭（任务留在队列里，下次提交时再尝试）
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("serial executor exception: null task");
+        }
+        tasks.offer(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                delegate.execute(this::drain);
+            } catch (RuntimeException e) {
+                draining.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    // 单个任务出错不能让队列停摆
+                    dbg("task error: " + t);
+                }
+            }
+
+            draining.set(false);
+            // 退出前复查：入队发生在 set(false) 之前但 CAS 失败的任务不能被遗漏
+            if (tasks.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package cn.sonata.vpn.common.transport;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 出站积压字节数的高低水位线
+ * <p>
+ * - 入队时 incr，写出（或失败）后 decr
+ * - 积压超过 high：变为不可写；回落到 low 及以下：恢复可写
+ * - 两个阈值之间不翻转，避免在临界点来回抖动
+ * <p>
+ * 状态翻转时回调 listener（在触发翻转的线程上执行，回调里不要阻塞）
+ */
+public final class WritabilityTracker {
+
+    public static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+    public static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+
+    private volatile int low = DEFAULT_LOW_WATERMARK;
+    private volatile int high = DEFAULT_HIGH_WATERMARK;
+    private volatile Consumer<Boolean> listener;
+
+    /**
+     * @param low 恢复可写的阈值（含）
+     * @param high 变为不可写的阈值（超过即不可写）
+     */
+    public void setWatermarks(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("invalid write watermarks exception: low=" + low + ", high=" + high);
+        }
+        this.low = low;
+        this.high = high;
+        update(pending.get());
+    }
+
+    public void setListener(Consumer<Boolean> listener) {
+        this.listener = listener;
+    }
+
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * 当前已入队但尚未写出的字节数
+     */
+    public long pendingBytes() {
+        return pending.get();
+    }
+
+    public void incr(int bytes) {
+        update(pending.addAndGet(bytes));
+    }
+
+    public void decr(int bytes) {
+        update(pending.addAndGet(-bytes));
+    }
+
+    private void update(long now) {
+        if (now > high) {
+            if (writable.compareAndSet(true, false)) {
+                fire(false);
+                // 翻转期间其它线程可能已经写出：复查，避免卡在不可写
+                if (pending.get() <= low && writable.compareAndSet(false, true)) {
+                    fire(true);
+                }
+            }
+        } else if (now <= low) {
+            if (writable.compareAndSet(false, true)) {
+                fire(true);
+            }
+        }
+    }
+
+    private void fire(boolean state) {
+        Consumer<Boolean> l = listener;
+        if (l != null) {
+            l.accept(state);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package cn.sonata.vpn.common.transport.nio;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * 注册到 NioEventLoop 的 channel 回调
+ * 所有回调都在所属 event loop 线程上执行
+ */
+public interface NioChannelHandler {
+
+    /**
+     * selector 报告就绪事件
+     * @param key 就绪的 SelectionKey（readyOps 已更新）
+     */
+    void onReady(SelectionKey key);
+}
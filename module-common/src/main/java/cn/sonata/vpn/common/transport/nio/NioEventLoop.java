@@ -0,0 +1,166 @@
+package cn.sonata.vpn.common.transport.nio;
+
+import cn.sonata.vpn.common.transport.TransportException;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 单线程 Selector 事件循环
+ * <p>
+ * 一个 NioEventLoop = 一个 Selector + 一个线程：
+ * - 就绪事件回调 NioChannelHandler
+ * - execute() 提交的任务按提交顺序在同一线程执行
+ * <p>
+ * 注意：register / interestOps 等 selector 相关操作只能在 loop 线程内调用
+ */
+public final class NioEventLoop implements Executor, AutoCloseable {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // 避免每次 execute 都调用 selector.wakeup()（系统调用）
+    private final AtomicBoolean wakenUp = new AtomicBoolean(false);
+    private volatile boolean running = true;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.nio=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.nio");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[nio] " + msg);
+        }
+    }
+
+    private NioEventLoop(Selector selector, String name) {
+        this.selector = selector;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 静态工厂方法：创建并启动事件循环线程
+     * @param name 线程名
+     * @return NioEventLoop
+     * @throws TransportException selector 打开失败
+     */
+    public static NioEventLoop create(String name) throws TransportException {
+        try {
+            NioEventLoop loop = new NioEventLoop(Selector.open(), name);
+            loop.thread.start();
+            return loop;
+        } catch (IOException e) {
+            throw new TransportException("nio selector open exception", e);
+        }
+    }
+
+    /**
+     * 当前线程是否为本 loop 线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 提交任务到 loop 线程（总是排队，不会在调用线程内联执行）
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task is null exception");
+        }
+        tasks.offer(task);
+        if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 注册 channel，仅限 loop 线程调用
+     * @param channel 非阻塞 channel
+     * @param ops 初始 interestOps
+     * @param handler 就绪回调
+     * @return SelectionKey
+     * @throws ClosedChannelException channel 已关闭
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, NioChannelHandler handler)
+            throws ClosedChannelException {
+        if (!inEventLoop()) {
+            throw new IllegalStateException("register must be called in event loop exception");
+        }
+        return channel.register(selector, ops, handler);
+    }
+
+    private void run() {
+        dbg("loop started: " + thread.getName());
+        while (running) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                // 必须在 select 返回后、执行任务前复位
+                wakenUp.set(false);
+
+                processSelectedKeys();
+                runTasks();
+            } catch (Throwable t) {
+                // 单个 handler 出错不能拖垮整个 loop
+                dbg("loop error: " + t);
+            }
+        }
+
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+        dbg("loop stopped: " + thread.getName());
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            ((NioChannelHandler) key.attachment()).onReady(key);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                dbg("task error: " + t);
+            }
+        }
+    }
+
+    /**
+     * 停止事件循环，已排队任务仍会被执行
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,72 @@
+package cn.sonata.vpn.common.transport.nio;
+
+import cn.sonata.vpn.common.transport.TransportException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组 NioEventLoop
+ * <p>
+ * next() 轮询分配 loop，连接一旦分配就固定在该 loop 上（生命周期内不迁移），
+ * 因此同一连接上的 IO 回调 / Session / FSM 推进始终是单线程的，无需加锁。
+ */
+public final class NioEventLoopGroup implements AutoCloseable {
+
+    private final NioEventLoop[] loops;
+    private final AtomicInteger index = new AtomicInteger(0);
+
+    private NioEventLoopGroup(NioEventLoop[] loops) {
+        this.loops = loops;
+    }
+
+    /**
+     * 默认 loop 数量 = CPU 核数
+     */
+    public static NioEventLoopGroup create(String namePrefix) throws TransportException {
+        return create(Runtime.getRuntime().availableProcessors(), namePrefix);
+    }
+
+    /**
+     * @param nThreads loop 数量（>0）
+     * @param namePrefix 线程名前缀
+     * @return NioEventLoopGroup
+     * @throws TransportException selector 打开失败
+     */
+    public static NioEventLoopGroup create(int nThreads, String namePrefix) throws TransportException {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("nThreads must be positive exception: " + nThreads);
+        }
+        NioEventLoop[] loops = new NioEventLoop[nThreads];
+        try {
+            for (int i = 0; i < nThreads; i++) {
+                loops[i] = NioEventLoop.create(namePrefix + "-" + i);
+            }
+        } catch (TransportException e) {
+            for (NioEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.close();
+                }
+            }
+            throw e;
+        }
+        return new NioEventLoopGroup(loops);
+    }
+
+    /**
+     * 轮询选择下一个 loop
+     */
+    public NioEventLoop next() {
+        return loops[Math.floorMod(index.getAndIncrement(), loops.length)];
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    @Override
+    public void close() {
+        for (NioEventLoop loop : loops) {
+            loop.close();
+        }
+    }
+}
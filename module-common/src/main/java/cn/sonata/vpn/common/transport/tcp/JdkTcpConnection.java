@@ -1,6 +1,11 @@
 package cn.sonata.vpn.common.transport.tcp;
 
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.transport.IoThreads;
+import cn.sonata.vpn.common.transport.SerialExecutor;
 import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.WritabilityTracker;
 
 
 import java.io.IOException;
@@ -9,23 +14,51 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
 
 public class JdkTcpConnection implements TcpConnection {
 
-    private static final ExecutorService IO_EXECUTOR = Executors.newCachedThreadPool();
+    //阻塞 IO 执行器：默认平台线程，-Dsonata.io.virtual=true 时为虚拟线程
+    private final ExecutorService ioExecutor;
+    //回调执行器：阻塞读在 ioExecutor 的任意线程上完成，回调（以及 session 的定时器）经它串行执行
+    private final Executor callbacks;
+    //用 ReentrantLock 而不是 synchronized：虚拟线程在 synchronized 内阻塞会钉住载体线程（pinning）
+    private final ReentrantLock receiveLock = new ReentrantLock();    //加锁
+
+    //单次合并写的字节上限
+    private static final int COALESCE_LIMIT = 64 * 1024;
+    //出站 MPSC 队列 + 单 drainer 标记，写顺序由队列保证，不再需要 sendLock
+    private final Queue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    //出站积压水位：按入队字节计，写出或失败后扣除
+    private final WritabilityTracker writability = new WritabilityTracker();
     //创建本地socket
-    private final Object receiveLock = new Object();    //加锁
-    private final Object sendLock = new Object();       //类字段
     private final Socket socket;
     public JdkTcpConnection(Socket socket) {
+        this(socket, IoThreads.sharedExecutor());
+    }
+
+    /**
+     * @param socket 已连接的 socket
+     * @param ioExecutor 执行阻塞读写的执行器（见 IoThreads）
+     */
+    public JdkTcpConnection(Socket socket, ExecutorService ioExecutor) {
         this.socket = socket;
+        this.ioExecutor = ioExecutor;
+        this.callbacks = new SerialExecutor(ioExecutor);
     }
 
 
@@ -49,53 +82,184 @@ public class JdkTcpConnection implements TcpConnection {
         return socket.isClosed();
     }
 
+    /**
+     * 没有固定的 IO 线程：回调在 ioExecutor 上串行执行，同一时刻最多一个
+     */
     @Override
-    public CompletableFuture<Integer> sendAsync(ByteBuffer data) throws TransportException {
+    public Executor callbackExecutor() {
+        return callbacks;
+    }
 
-        return CompletableFuture.supplyAsync(() -> {
-            try {
+    @Override
+    public boolean isWritable() {
+        return writability.isWritable();
+    }
+
+    @Override
+    public void setWriteWatermarks(int low, int high) {
+        writability.setWatermarks(low, high);
+    }
 
-                OutputStream out = socket.getOutputStream();    //获取socket输出流
-                int len = data.remaining();                     //获取待发送数据长度
-                byte[] tmp = new byte[len];                     //创建暂用字节数组
+    @Override
+    public void setWritabilityListener(Consumer<Boolean> listener) {
+        writability.setListener(listener);
+    }
+
+    @Override
+    public CompletableFuture<Integer> sendAsync(ByteBuffer data) throws TransportException {
+        return sendAsync(new ByteBuffer[]{data});
+    }
 
-                data.get(tmp, 0, len);
+    /**
+     * 出站队列：任意线程入队，同一时刻只有一个 drainer 在 ioExecutor 上写 socket
+     * - 严格按 sendAsync 的提交顺序写出
+     * - drainer 把队列里已有的多次调用合并成一次 write + flush（上限 COALESCE_LIMIT）
+     * - 每个调用的 future 以它自己的字节数完成
+     */
+    @Override
+    public CompletableFuture<Integer> sendAsync(ByteBuffer[] srcs) throws TransportException {
+        if (socket.isClosed()) {
+            throw new TransportException("tcp send exception: connection closed");
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        PendingWrite pw = new PendingWrite(srcs, future);
+        writability.incr(pw.length);
+        writeQueue.offer(pw);
+        scheduleDrain();
+        return future;
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                ioExecutor.execute(this::drain);
+            } catch (RuntimeException e) {
+                // 执行器已关闭：队列里的写都无法完成
+                draining.set(false);
+                failQueued(new TransportException("tcp send exception: io executor rejected", e));
+            }
+        }
+    }
 
-                synchronized (sendLock) {       //避免写入顺序被破坏（interleaving）
-                    out.write(tmp);
-                    out.flush();
+    private void drain() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            PendingWrite pw;
+            while ((pw = writeQueue.poll()) != null) {
+                batch.add(pw);
+                int len = pw.length;
+                // 合并到不超过上限为止（至少一个）
+                while ((pw = writeQueue.peek()) != null && len + pw.length <= COALESCE_LIMIT) {
+                    batch.add(writeQueue.poll());
+                    len += pw.length;
                 }
-                return len;
+                writeBatch(batch, len);
+                batch.clear();
+            }
 
+            draining.set(false);
+            // 退出前复查：入队发生在 set(false) 之前但 CAS 失败的写不能被遗漏
+            if (writeQueue.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
 
-            } catch (IOException e) {
+    /**
+     * 一次 write + flush 写出整批
+     * 单个 heap buffer 直接写其底层数组；否则从 heap 缓冲池借临时数组拼接
+     */
+    private void writeBatch(List<PendingWrite> batch, int len) {
+        RefCountedBuffer scratch = null;
+        try {
+            OutputStream out = socket.getOutputStream();    //获取socket输出流
+
+            byte[] array;
+            int arrayOffset;
+            PendingWrite first = batch.get(0);
+            if (batch.size() == 1 && first.srcs.length == 1 && first.srcs[0].hasArray()) {
+                //零拷贝：直接写 heap buffer 的底层数组
+                ByteBuffer src = first.srcs[0];
+                array = src.array();
+                arrayOffset = src.arrayOffset() + src.position();
+                src.position(src.limit());
+            } else {
+                scratch = BufferPool.heap().acquire(len);     //借用暂用字节数组
+                ByteBuffer tmp = scratch.buffer();
+                for (PendingWrite pw : batch) {
+                    pw.drainTo(tmp);
+                }
+                array = tmp.array();
+                arrayOffset = tmp.arrayOffset();
+            }
 
-                throw new CompletionException(
-                        new TransportException("tcp send exception", e)
-                );
+            out.write(array, arrayOffset, len);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            TransportException error = new TransportException("tcp send exception", e);
+            for (PendingWrite pw : batch) {
+                writability.decr(pw.length);
+                pw.future.completeExceptionally(error);
+            }
+            return;
+        } finally {
+            if (scratch != null) {
+                scratch.release();
+            }
+        }
 
+        for (PendingWrite pw : batch) {
+            writability.decr(pw.length);
+            pw.future.complete(pw.length);
         }
+    }
 
-    }, IO_EXECUTOR);
+    private void failQueued(TransportException error) {
+        PendingWrite pw;
+        while ((pw = writeQueue.poll()) != null) {
+            writability.decr(pw.length);
+            pw.future.completeExceptionally(error);
+        }
     }
 
+    /**
+     * heap buffer 直接读入底层数组；direct buffer 经 heap 缓冲池的临时数组中转
+     */
     @Override
     public CompletableFuture<Integer> receiveAsync(ByteBuffer buffer) throws TransportException {
 
         return CompletableFuture.supplyAsync(() -> {
+            RefCountedBuffer scratch = null;
             try {
                 InputStream in = socket.getInputStream();
                 int max = buffer.remaining();
-                byte[] tmp = new byte[max];
 
-                synchronized (receiveLock) {        //防止字节所有权被破坏（stealing）
-                    int  len = in.read(tmp);
+                byte[] array;
+                int arrayOffset;
+                if (buffer.hasArray()) {
+                    array = buffer.array();
+                    arrayOffset = buffer.arrayOffset() + buffer.position();
+                } else {
+                    scratch = BufferPool.heap().acquire(max);
+                    array = scratch.buffer().array();
+                    arrayOffset = scratch.buffer().arrayOffset();
+                }
+
+                receiveLock.lock();        //防止字节所有权被破坏（stealing）
+                try {
+                    int  len = in.read(array, arrayOffset, max);
                     if (len == -1) {
                         return -1; //对端关闭
                     }
 
-                    buffer.put(tmp, 0, len);
+                    if (scratch == null) {
+                        buffer.position(buffer.position() + len);
+                    } else {
+                        buffer.put(array, arrayOffset, len);
+                    }
                     return len;
+                } finally {
+                    receiveLock.unlock();
                 }
 
 
@@ -106,10 +270,14 @@ public class JdkTcpConnection implements TcpConnection {
                         new TransportException("tcp receive exception", e)
                 );
 
+            } finally {
+                if (scratch != null) {
+                    scratch.release();
+                }
             }
 
 
-        }, IO_EXECUTOR);
+        }, ioExecutor);
     }
 
     @Override
@@ -0,0 +1,365 @@
+package cn.sonata.vpn.common.transport.tcp;
+
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.WritabilityTracker;
+import cn.sonata.vpn.common.transport.nio.NioChannelHandler;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 基于 SocketChannel + Selector 的非阻塞 TcpConnection
+ * <p>
+ * 与 JdkTcpConnection 的区别：
+ * - 不占用线程等待 IO，读写由所属 NioEventLoop 的就绪事件推进
+ * - 所有 CompletableFuture 均在 event loop 线程完成，回调（thenAccept 等）也运行在该线程
+ * <p>
+ * 约束：
+ * - 同一时刻最多一个 in-flight receiveAsync
+ * - sendAsync 可从任意线程调用，按提交顺序写出；积压的多次调用合并为一次 gathering write
+ */
+public class NioTcpConnection implements TcpConnection, NioChannelHandler {
+
+    // 单次 writev 最多携带的 buffer 数（远小于 IOV_MAX）
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+
+    // 关闭后 SocketChannel 无法再查询地址，这里提前缓存
+    private final SocketAddress localAddress;
+    private final SocketAddress remoteAddress;
+
+    /*=== 以下字段仅在 loop 线程访问 ===*/
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private CompletableFuture<Integer> readFuture;
+    private boolean shutdownPending = false;
+    private final Queue<PendingWrite> flushing = new ArrayDeque<>();
+    // 跨多个 PendingWrite 的 gathering write 向量，复用避免每次 flush 分配
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    /*=== 跨线程字段 ===*/
+    private final AtomicBoolean readPending = new AtomicBoolean(false);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Queue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    // 出站积压水位：按入队字节计，写出或失败后扣除
+    private final WritabilityTracker writability = new WritabilityTracker();
+
+    /**
+     * 包装一个已连接的 SocketChannel，并注册到指定 event loop
+     * @param channel 已连接的 channel（会被切换为非阻塞）
+     * @param eventLoop 负责该连接全部 IO 的事件循环
+     * @throws TransportException 配置 channel 失败
+     */
+    public NioTcpConnection(SocketChannel channel, NioEventLoop eventLoop) throws TransportException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        try {
+            channel.configureBlocking(false);
+            this.localAddress = channel.getLocalAddress();
+            this.remoteAddress = channel.getRemoteAddress();
+        } catch (IOException e) {
+            throw new TransportException("nio tcp configure exception", e);
+        }
+        eventLoop.execute(this::doRegister);
+    }
+
+    /**
+     * 客户端侧：阻塞完成 connect 后交给 event loop
+     * @param remote 服务端地址
+     * @param eventLoop 事件循环
+     * @return NioTcpConnection
+     * @throws TransportException 连接失败
+     */
+    public static NioTcpConnection connect(SocketAddress remote, NioEventLoop eventLoop) throws TransportException {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.connect(remote);
+            return new NioTcpConnection(channel, eventLoop);
+        } catch (IOException e) {
+            throw new TransportException("nio tcp connect exception " + remote, e);
+        }
+    }
+
+    public NioEventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * 回调固定在所属 event loop 上执行
+     */
+    @Override
+    public Executor callbackExecutor() {
+        return eventLoop;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected() && channel.isOpen();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writability.isWritable();
+    }
+
+    @Override
+    public void setWriteWatermarks(int low, int high) {
+        writability.setWatermarks(low, high);
+    }
+
+    @Override
+    public void setWritabilityListener(Consumer<Boolean> listener) {
+        writability.setListener(listener);
+    }
+
+    @Override
+    public CompletableFuture<Integer> sendAsync(ByteBuffer data) throws TransportException {
+        return sendAsync(new ByteBuffer[]{data});
+    }
+
+    /**
+     * gathering write：整组 buffer 通过 SocketChannel.write(ByteBuffer[]) 写出，不做中间拷贝
+     */
+    @Override
+    public CompletableFuture<Integer> sendAsync(ByteBuffer[] srcs) throws TransportException {
+        if (isClosed()) {
+            throw new TransportException("tcp send exception: connection closed");
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        PendingWrite pw = new PendingWrite(srcs, future);
+        writability.incr(pw.length);
+        writeQueue.offer(pw);
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Integer> receiveAsync(ByteBuffer buffer) throws TransportException {
+        if (isClosed()) {
+            throw new TransportException("tcp receive exception: connection closed");
+        }
+        if (!readPending.compareAndSet(false, true)) {
+            throw new TransportException("tcp receive exception: receive already pending");
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            readBuffer = buffer;
+            readFuture = future;
+            doRead();
+        });
+        return future;
+    }
+
+    @Override
+    public void shutdownAsync() throws TransportException {
+        if (isClosed()) {
+            throw new TransportException("tcp shutdown exception: connection closed");
+        }
+        // 放到 loop 内执行：保证排在已提交的写之后
+        eventLoop.execute(() -> {
+            shutdownPending = true;
+            flush();
+        });
+    }
+
+    @Override
+    public void closeAsync() throws TransportException {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new TransportException("tcp close exception", e);
+        } finally {
+            eventLoop.execute(this::failPending);
+        }
+    }
+
+    /*=== loop 线程 ===*/
+
+    @Override
+    public void onReady(SelectionKey key) {
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            doRead();
+        }
+    }
+
+    private void doRegister() {
+        try {
+            key = eventLoop.register(channel, 0, this);
+        } catch (IOException e) {
+            failPending();
+        }
+    }
+
+    private void doRead() {
+        if (readFuture == null) {
+            return;
+        }
+        if (key == null || !key.isValid()) {
+            completeRead(null, new TransportException("tcp receive exception: channel not registered"));
+            return;
+        }
+        if (!readBuffer.hasRemaining()) {
+            completeRead(0, null);
+            return;
+        }
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            completeRead(null, new TransportException("tcp receive exception", e));
+            return;
+        }
+        if (n == 0) {
+            // 等待可读事件
+            setInterest(SelectionKey.OP_READ, true);
+            return;
+        }
+        setInterest(SelectionKey.OP_READ, false);
+        completeRead(n, null);
+    }
+
+    private void completeRead(Integer n, Throwable error) {
+        CompletableFuture<Integer> future = readFuture;
+        readFuture = null;
+        readBuffer = null;
+        // 先释放 pending 标记，回调里可以立刻发起下一次 receiveAsync
+        readPending.set(false);
+        if (error != null) {
+            future.completeExceptionally(error);
+        } else {
+            future.complete(n);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null) {
+            return;
+        }
+
+        PendingWrite pw;
+        while ((pw = writeQueue.poll()) != null) {
+            flushing.offer(pw);
+        }
+
+        try {
+            while (!flushing.isEmpty()) {
+                // 把队列里多次 sendAsync 的 buffer 拼进同一个向量，一次 writev 写出
+                int count = 0;
+                for (PendingWrite queued : flushing) {
+                    if (!queued.hasRemaining()) {
+                        continue;
+                    }
+                    for (int i = queued.offset; i < queued.srcs.length && count < MAX_GATHER; i++) {
+                        gather[count++] = queued.srcs[i];
+                    }
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                boolean drained = true;
+                if (count > 0) {
+                    channel.write(gather, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        drained &= !gather[i].hasRemaining();
+                        gather[i] = null;
+                    }
+                }
+
+                // 按顺序完成已写完的调用，各自返回自己的字节数
+                while ((pw = flushing.peek()) != null && !pw.hasRemaining()) {
+                    flushing.poll();
+                    writability.decr(pw.length);
+                    pw.future.complete(pw.length);
+                }
+                if (!drained) {
+                    // socket 发送缓冲区已满，等待可写事件
+                    setInterest(SelectionKey.OP_WRITE, true);
+                    return;
+                }
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+
+            if (shutdownPending) {
+                shutdownPending = false;
+                channel.shutdownOutput();
+            }
+        } catch (IOException e) {
+            TransportException error = new TransportException("tcp send exception", e);
+            while ((pw = flushing.poll()) != null) {
+                writability.decr(pw.length);
+                pw.future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void setInterest(int op, boolean on) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        int next = on ? (ops | op) : (ops & ~op);
+        if (next != ops) {
+            key.interestOps(next);
+        }
+    }
+
+    private void failPending() {
+        TransportException error = new TransportException("tcp connection closed");
+        if (readFuture != null) {
+            completeRead(null, error);
+        }
+        PendingWrite pw;
+        while ((pw = writeQueue.poll()) != null) {
+            flushing.offer(pw);
+        }
+        while ((pw = flushing.poll()) != null) {
+            writability.decr(pw.length);
+            pw.future.completeExceptionally(error);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioTcpConnection{" +
+                "local=" + localAddress +
+                ", remote=" + remoteAddress +
+                '}';
+    }
+}
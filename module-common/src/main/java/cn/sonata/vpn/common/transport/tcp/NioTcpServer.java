@@ -0,0 +1,96 @@
+package cn.sonata.vpn.common.transport.tcp;
+
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.nio.NioEventLoopGroup;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reactor 风格的 TcpServer
+ * <p>
+ * - 一个 acceptor：调用 accept() 的线程阻塞在 ServerSocketChannel.accept()
+ * - N 个 IO loop：每个新连接按轮询分配到 NioEventLoopGroup 中的一个 loop，并终身固定
+ */
+public class NioTcpServer implements TcpServer {
+
+    private final NioEventLoopGroup ioGroup;
+    private final boolean ownsGroup;
+    private ServerSocketChannel server;
+
+    /**
+     * IO loop 数量默认为 CPU 核数
+     */
+    public NioTcpServer() throws TransportException {
+        this(NioEventLoopGroup.create("nio-io"), true);
+    }
+
+    /**
+     * @param ioThreads IO loop 数量
+     */
+    public NioTcpServer(int ioThreads) throws TransportException {
+        this(NioEventLoopGroup.create(ioThreads, "nio-io"), true);
+    }
+
+    /**
+     * 共享外部 loop group，close() 时不会关闭它
+     */
+    public NioTcpServer(NioEventLoopGroup ioGroup) {
+        this(ioGroup, false);
+    }
+
+    private NioTcpServer(NioEventLoopGroup ioGroup, boolean ownsGroup) {
+        this.ioGroup = ioGroup;
+        this.ownsGroup = ownsGroup;
+    }
+
+    public NioEventLoopGroup ioGroup() {
+        return ioGroup;
+    }
+
+    @Override
+    public void bind(SocketAddress endpoint) throws TransportException {
+        try {
+            this.server = ServerSocketChannel.open();
+            server.bind(endpoint);
+        } catch (IOException e) {
+            throw new TransportException("Tcp server bind exception" + endpoint, e);
+        }
+    }
+
+    /**
+     * 阻塞等待新连接，返回的连接已绑定到某个 IO loop
+     * @return NioTcpConnection
+     * @throws TransportException 自定义异常
+     */
+    @Override
+    public TcpConnection accept() throws TransportException {
+        if (server == null) {
+            throw new TransportException("server not bound exception");
+        }
+        try {
+            SocketChannel channel = server.accept();
+            return new NioTcpConnection(channel, ioGroup.next());
+        } catch (IOException e) {
+            throw new TransportException("Tcp server accept exception ", e);
+        }
+    }
+
+    @Override
+    public void close() throws TransportException {
+        if (server == null) {
+            throw new TransportException("server not bound exception");
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            throw new TransportException("Tcp server close exception", e);
+        } finally {
+            if (ownsGroup) {
+                ioGroup.close();
+            }
+        }
+    }
+}
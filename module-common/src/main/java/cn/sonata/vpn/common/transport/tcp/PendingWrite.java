@@ -0,0 +1,46 @@
+package cn.sonata.vpn.common.transport.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 一次待写出的 sendAsync 调用
+ * <p>
+ * 出站队列里的元素：写出完成后 future 以本次调用自己的字节数完成，
+ * 即使它和其它调用被合并进了同一次 write
+ */
+final class PendingWrite {
+
+    final ByteBuffer[] srcs;
+    final int length;
+    final CompletableFuture<Integer> future;
+    // 第一个仍有剩余数据的 buffer 下标
+    int offset = 0;
+
+    PendingWrite(ByteBuffer[] srcs, CompletableFuture<Integer> future) {
+        this.srcs = srcs;
+        int len = 0;
+        for (ByteBuffer src : srcs) {
+            len += src.remaining();
+        }
+        this.length = len;
+        this.future = future;
+    }
+
+    boolean hasRemaining() {
+        while (offset < srcs.length && !srcs[offset].hasRemaining()) {
+            offset++;
+        }
+        return offset < srcs.length;
+    }
+
+    /**
+     * 把剩余数据全部拷入 dst（dst 需有足够空间）
+     */
+    void drainTo(ByteBuffer dst) {
+        for (int i = offset; i < srcs.length; i++) {
+            dst.put(srcs[i]);
+        }
+        offset = srcs.length;
+    }
+}
@@ -1,9 +1,14 @@
 package cn.sonata.vpn.common.transport.tcp;
 
+import cn.sonata.vpn.common.packet.Packet;
 import cn.sonata.vpn.common.transport.TransportException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public interface TcpConnection {
 
@@ -39,6 +44,27 @@ public interface TcpConnection {
      */
     CompletableFuture<Integer> sendAsync(ByteBuffer data) throws TransportException;
 
+    /**
+     * 批量发送（gathering write）
+     * 按数组顺序整体写出，实现应尽量合并为一次系统调用
+     * 默认实现：合并为一个 buffer 后调用 sendAsync(ByteBuffer)
+     * @param srcs  待传数据，按顺序写出
+     * @return  CompletableFuture<Integer> 实际发送总大小
+     * @throws TransportException   传输层失败了
+     */
+    default CompletableFuture<Integer> sendAsync(ByteBuffer[] srcs) throws TransportException {
+        int total = 0;
+        for (ByteBuffer src : srcs) {
+            total += src.remaining();
+        }
+        ByteBuffer merged = ByteBuffer.allocate(total);
+        for (ByteBuffer src : srcs) {
+            merged.put(src);
+        }
+        merged.flip();
+        return sendAsync(merged);
+    }
+
     /**
      * 异步接收数据
      * 读取最多 buffer.remaining() 字节
@@ -63,6 +89,58 @@ public interface TcpConnection {
      */
     void closeAsync() throws TransportException;
 
+    /**
+     * 该连接 IO 回调所在的执行器
+     * 上层可用 thenXxxAsync(..., callbackExecutor()) 保证回调与 IO 在同一线程；
+     * session 的定时器回调也经它执行，因此它必须是串行的（单个 loop 线程，或 SerialExecutor）
+     * 默认：在完成 future 的线程内直接执行，只适用于不挂定时器的调用方
+     */
+    default Executor callbackExecutor() {
+        return Runnable::run;
+    }
+
+    /**
+     * 出站积压是否低于高水位
+     * 返回 false 时调用方应暂停生产（例如停止读取对端），等待 writability 回调恢复
+     * 默认：不做积压统计，始终可写
+     */
+    default boolean isWritable() {
+        return true;
+    }
+
+    /**
+     * 设置出站积压的高低水位线（字节）
+     * 积压超过 high 变为不可写，回落到 low 及以下恢复可写
+     * 默认：不支持，忽略
+     */
+    default void setWriteWatermarks(int low, int high) {
+    }
+
+    /**
+     * 可写状态翻转回调，参数为翻转后的状态
+     * 可能在任意 IO 线程或 sendAsync 调用线程上执行，回调内不要阻塞
+     * 默认：不支持，忽略
+     */
+    default void setWritabilityListener(Consumer<Boolean> listener) {
+    }
+
+    /**
+     * 设置对端地址迁移前的认证回调（datagram 模式下的连接迁移）
+     * 对端从新地址发来的 datagram，其中的记录通过 authenticator 校验、新地址又通过路径验证后，连接才改为与新地址收发；
+     * 回调在 callbackExecutor() 上执行
+     * 默认：连接不支持迁移，忽略
+     */
+    default void setPeerAuthenticator(Predicate<Packet> authenticator) {
+    }
+
+    /**
+     * 对端地址变化回调（datagram 模式下连接迁移完成时），参数为 (旧地址, 新地址)
+     * 按地址索引连接的上层据此更新索引；回调在 callbackExecutor() 上执行，回调内不要阻塞
+     * 默认：连接不会迁移，忽略
+     */
+    default void setMigrationListener(BiConsumer<SocketAddress, SocketAddress> listener) {
+    }
+
 
 
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.packet.PacketHeader;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 超过一个 datagram 的帧在 UDP 上分片发送，接收方在这里拼回整帧
+ * <p>
+ * 发送方把一个帧均分成 count 片（每片 ceil(total / count) 字节，最后一片补齐余数），
+ * 每片一个 datagram，分片头：[message id:4][index:1][count:1][total:2]。
+ * 分片与普通 datagram 一样经过 UdpReliability：可靠类的分片各自确认与重传，丢一片只重传一片；
+ * 尽力而为的分片丢了一片，整帧在 TIMEOUT 后丢弃。
+ * 帧在 IP 层之上分片，不依赖 IP 分片（有损路径上丢任何一个 IP 分片就丢整个 datagram，且无从重传）
+ * <p>
+ * 内存有上界：所有未拼完的帧合计不超过 budget 字节，超出时最早开始的尽力而为帧被挤出；
+ * 每次有新分片到达时顺带清理超过 TIMEOUT 仍未拼完的尽力而为帧，不额外占用定时器。
+ * 可靠分片由 UdpReliability 按序交付、迟早到齐，等待时间取决于重传而不是 TIMEOUT，
+ * 它们的帧既不超时也不被挤出。发送方连续发出一个帧的全部分片，按序交付下同一时刻只有一个未拼完的可靠帧，
+ * 超过 MAX_RELIABLE_PARTIALS 个、挤出全部尽力而为帧后仍放不进 budget、或后到的分片与先到的对不上，
+ * 都是对端违反协议：这些分片已被确认，丢掉就再也补不回来，add 抛出 IllegalArgumentException，由调用方断开连接
+ * <p>
+ * 只在 event loop 上访问
+ */
+final class FragmentReassembler {
+
+    /** 分片头长度：[message id:4][index:1][count:1][total:2] */
+    static final int FRAGMENT_HEADER_LENGTH = Integer.BYTES + 1 + 1 + Short.BYTES;
+    /** 一个帧最多分成多少片（收到的位图是一个 int） */
+    static final int MAX_FRAGMENTS = Integer.SIZE;
+    static final int DEFAULT_BUDGET = 256 * 1024;
+    /** 同时未拼完的可靠帧上限（正常只有一个，其余是余量） */
+    static final int MAX_RELIABLE_PARTIALS = 4;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int MAX_FRAME_LENGTH = PacketHeader.HEADER_LENGTH + PacketHeader.MAX_BODY_LENGTH;
+
+    private static final class Partial {
+        final RefCountedBuffer buffer;
+        final int count;
+        final int total;
+        final long createdAt;
+        final boolean reliable;
+        // 已收到的分片位图
+        int received;
+
+        Partial(RefCountedBuffer buffer, int count, int total, long createdAt, boolean reliable) {
+            this.buffer = buffer;
+            this.count = count;
+            this.total = total;
+            this.createdAt = createdAt;
+            this.reliable = reliable;
+        }
+    }
+
+    private final int budget;
+    // 按开始时间排序，头部最旧
+    private final LinkedHashMap<Integer, Partial> partials = new LinkedHashMap<>();
+    private int bytes = 0;
+    private int reliablePartials = 0;
+    private long discarded = 0;
+
+    FragmentReassembler() {
+        this(DEFAULT_BUDGET);
+    }
+
+    FragmentReassembler(int budget) {
+        if (budget < MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("reassembly budget smaller than one frame exception: " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * 每片字节数
+     */
+    static int chunk(int total, int count) {
+        return (total + count - 1) / count;
+    }
+
+    /**
+     * 写分片头（绝对位置，不移动 position）
+     */
+    static void writeHeader(ByteBuffer buf, int offset, int messageId, int index, int count, int total) {
+        buf.putInt(offset, messageId);
+        buf.put(offset + Integer.BYTES, (byte) index);
+        buf.put(offset + Integer.BYTES + 1, (byte) count);
+        buf.putShort(offset + Integer.BYTES + 2, (short) total);
+    }
+
+    /**
+     * 分片头与随后的分片数据是否自洽：片数、序号、总长在范围内，且本片长度与按 (total, count) 算出的一致
+     * @param offset 分片头的绝对位置，分片数据从它之后到 limit
+     */
+    static boolean isValid(ByteBuffer data, int offset) {
+        int count = data.get(offset + Integer.BYTES + 1) & 0xFF;
+        int index = data.get(offset + Integer.BYTES) & 0xFF;
+        int total = data.getShort(offset + Integer.BYTES + 2) & 0xFFFF;
+        if (count < 2 || count > MAX_FRAGMENTS || index >= count || total < count || total > MAX_FRAME_LENGTH) {
+            return false;
+        }
+        int chunk = chunk(total, count);
+        int expected = Math.min(chunk, total - index * chunk);
+        return expected > 0 && data.limit() - offset - FRAGMENT_HEADER_LENGTH == expected;
+    }
+
+    /**
+     * 收下一片尽力而为的分片，见 add(ByteBuffer, int, boolean)
+     */
+    RefCountedBuffer add(ByteBuffer data, int offset) {
+        return add(data, offset, false);
+    }
+
+    /**
+     * 收下一片（已经过 isValid 校验）
+     * @param offset 分片头的绝对位置
+     * @param reliable 分片经可靠子层按序交付：所在的帧不超时、不被挤出
+     * @return 拼完的整帧（position 0，limit 为帧长，调用方负责 release）；尚未拼完或被丢弃时返回 null
+     * @throws IllegalArgumentException 可靠帧超出上限或分片不一致（对端违反协议，应断开连接）
+     */
+    RefCountedBuffer add(ByteBuffer data, int offset, boolean reliable) {
+        long now = System.nanoTime();
+        expire(now);
+        int messageId = data.getInt(offset);
+        int index = data.get(offset + Integer.BYTES) & 0xFF;
+        int count = data.get(offset + Integer.BYTES + 1) & 0xFF;
+        int total = data.getShort(offset + Integer.BYTES + 2) & 0xFFFF;
+
+        Partial partial = partials.get(messageId);
+        if (partial == null) {
+            if (reliable && reliablePartials >= MAX_RELIABLE_PARTIALS) {
+                throw new IllegalArgumentException("reliable fragments exception: more than "
+                        + MAX_RELIABLE_PARTIALS + " partial frames");
+            }
+            while (bytes + total > budget) {
+                if (evictOldest()) {
+                    continue;
+                }
+                // 只剩可靠帧占着预算
+                if (reliable) {
+                    throw new IllegalArgumentException("reliable fragments exception: frame of " + total
+                            + " bytes exceeds reassembly budget, pending=" + bytes);
+                }
+                discarded++;
+                return null;
+            }
+            partial = new Partial(BufferPool.direct().acquire(total), count, total, now, reliable);
+            partials.put(messageId, partial);
+            bytes += total;
+            if (reliable) {
+                reliablePartials++;
+            }
+        } else if (partial.count != count || partial.total != total || partial.reliable != reliable) {
+            // 与先到的分片对不上：这个 id 的帧已不可信，整帧丢弃
+            remove(messageId, partial);
+            if (reliable || partial.reliable) {
+                throw new IllegalArgumentException("reliable fragments exception: inconsistent fragment of message "
+                        + messageId);
+            }
+            return null;
+        }
+        int bit = 1 << index;
+        if ((partial.received & bit) != 0) {
+            return null;
+        }
+        int payload = offset + FRAGMENT_HEADER_LENGTH;
+        int length = data.limit() - payload;
+        partial.buffer.buffer().put(index * chunk(total, count), data, payload, length);
+        partial.received |= bit;
+        if (partial.received != (count == MAX_FRAGMENTS ? -1 : (1 << count) - 1)) {
+            return null;
+        }
+        partials.remove(messageId);
+        bytes -= total;
+        if (partial.reliable) {
+            reliablePartials--;
+        }
+        ByteBuffer frame = partial.buffer.buffer();
+        frame.position(0).limit(total);
+        return partial.buffer;
+    }
+
+    private void expire(long now) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (partial.reliable) {
+                continue;
+            }
+            if (now - partial.createdAt < TIMEOUT_NANOS) {
+                return;
+            }
+            it.remove();
+            drop(partial);
+        }
+    }
+
+    /**
+     * 挤出最早开始的尽力而为帧
+     * @return 没有可挤出的帧时返回 false
+     */
+    private boolean evictOldest() {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (!partial.reliable) {
+                it.remove();
+                drop(partial);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(int messageId, Partial partial) {
+        partials.remove(messageId);
+        drop(partial);
+    }
+
+    private void drop(Partial partial) {
+        bytes -= partial.total;
+        if (partial.reliable) {
+            reliablePartials--;
+        }
+        discarded++;
+        partial.buffer.release();
+    }
+
+    /**
+     * 超时、挤出或分片不一致而丢弃的帧数（诊断用）
+     */
+    long discarded() {
+        return discarded;
+    }
+
+    /**
+     * 释放所有未拼完的帧（连接关闭时）
+     */
+    void clear() {
+        for (Partial partial : partials.values()) {
+            partial.buffer.release();
+        }
+        partials.clear();
+        bytes = 0;
+        reliablePartials = 0;
+    }
+}
@@ -4,13 +4,17 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 
 public class JdkUdpTransprot implements UdpTransport {
 
     DatagramSocket socket;
 
-
+    // 复用的 DatagramPacket：收发各一个，避免每个 datagram 分配一次
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+    // 非数组 buffer（direct / 只读）的中转区，按需扩容
+    private byte[] receiveScratch = new byte[0];
+    private byte[] sendScratch = new byte[0];
 
     @Override
     public void bind(InetSocketAddress localAddress) throws Exception {
@@ -30,10 +34,21 @@ public class JdkUdpTransprot implements UdpTransport {
         ensureOpen();
 
         int len = data.remaining();
-        byte[] bytes = new byte[len];
-        data.get(bytes);
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length, target);
-        socket.send(packet);
+        synchronized (sendPacket) {
+            if (data.hasArray()) {
+                // 直接发 buffer 的底层数组，不拷贝
+                sendPacket.setData(data.array(), data.arrayOffset() + data.position(), len);
+            } else {
+                if (sendScratch.length < len) {
+                    sendScratch = new byte[len];
+                }
+                data.get(data.position(), sendScratch, 0, len);
+                sendPacket.setData(sendScratch, 0, len);
+            }
+            sendPacket.setSocketAddress(target);
+            socket.send(sendPacket);
+        }
+        data.position(data.position() + len);
         return len;
     }
 
@@ -41,18 +56,31 @@ public class JdkUdpTransprot implements UdpTransport {
     public InetSocketAddress receive(ByteBuffer buffer) throws Exception {
         ensureOpen();
 
-        byte[] array = buffer.array();
-        DatagramPacket packet = new DatagramPacket(array, array.length);
-
-        socket.receive(packet);
-
-        buffer.clear();
-
-        buffer.put(packet.getData(), 0, packet.getLength());
-        buffer.flip();
-
-
-        return (InetSocketAddress) packet.getSocketAddress();
+        synchronized (receivePacket) {
+            buffer.clear();
+            int capacity = buffer.remaining();
+            boolean direct = !buffer.hasArray();
+            if (direct) {
+                if (receiveScratch.length < capacity) {
+                    receiveScratch = new byte[capacity];
+                }
+                receivePacket.setData(receiveScratch, 0, capacity);
+            } else {
+                // 内核直接写进 buffer 的底层数组，收完只需设置 limit
+                receivePacket.setData(buffer.array(), buffer.arrayOffset(), capacity);
+            }
+
+            socket.receive(receivePacket);
+
+            int len = receivePacket.getLength();
+            if (direct) {
+                buffer.put(receiveScratch, 0, len);
+            } else {
+                buffer.position(len);
+            }
+            buffer.flip();
+            return (InetSocketAddress) receivePacket.getSocketAddress();
+        }
     }
 
     @Override
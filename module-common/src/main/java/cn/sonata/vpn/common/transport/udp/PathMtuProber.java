@@ -0,0 +1,288 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketCodec;
+import cn.sonata.vpn.common.packet.PacketHeader;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.protocol.RttEstimator;
+import cn.sonata.vpn.common.timer.HierarchicalWheelTimer;
+import cn.sonata.vpn.common.timer.Timeout;
+import cn.sonata.vpn.common.transport.TransportException;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * datagram 模式的路径 MTU 探测（思路同 RFC 8899 DPLPMTUD，做了简化）
+ * <p>
+ * - 起点是任何 IPv6 路径都保证的 1280 字节 MTU（UDP 载荷 MIN_DATAGRAM），连接一建立就能用
+ * - 探测包是一个 PROBE 标志的 datagram，内含一个用零填充到目标大小的 PING 帧（body 前 8 字节为探测大小）；
+ *   对端的 UdpConnection 直接回一个小的 PONG（body 为同一大小），两者都不交给 session，不影响 RTT / idle 统计
+ * - 先探 1500 字节以太网 MTU 对应的上限，通过即结束；不通过再在 [已确认, 上限) 之间二分，
+ *   每个大小最多试 PROBE_ATTEMPTS 次（区分丢包与过大），区间小于 PROBE_STEP 时停止，
+ *   之后每 PROBE_INTERVAL 从上限重新探一次（路径可能变了）；已经用到上限时这一次探测就是对当前大小的确认
+ * - 路径 MTU 也会变小：确认失败，或可靠子层发现大 datagram 连续超时（黑洞，见 onBlackHole），
+ *   都退回 MIN_DATAGRAM 重新探测；此前按大尺寸组好的可靠 datagram 重传时由 UdpConnection 整体切片发出
+ * - 连接换了路径（server 侧迁移、client 侧 rebind）时 reset，从 MIN_DATAGRAM 重新探测
+ * - 探测超时取可靠子层的 RTO
+ * <p>
+ * -Dsonata.udp.mtu=N 直接按 IP MTU N 计算 datagram 大小，不探测；接收槽也按它分配，两端应配置一致
+ * <p>
+ * 注意：JDK 17 的 DatagramChannel 不能设置 DF 位（IP_DONTFRAGMENT 要 JDK 19+），探测包是否被 IP 分片取决于平台默认
+ * （Linux 对 UDP 默认置 DF，路径 MTU 不足时探测包被丢弃，探测即按不通过处理）
+ */
+final class PathMtuProber {
+
+    // IPv4 头 20 + UDP 头 8，IPv6 头 40 + UDP 头 8
+    private static final int IPV4_OVERHEAD = 20 + 8;
+    private static final int IPV6_OVERHEAD = 40 + 8;
+    /** 1280 字节 MTU 下的 UDP 载荷（IPv6 最小 MTU，按 IPv6 头计） */
+    static final int MIN_DATAGRAM = 1280 - IPV6_OVERHEAD;
+    private static final int ETHERNET_MTU = 1500;
+    private static final int PROBE_STEP = 16;
+    private static final int PROBE_ATTEMPTS = 2;
+    private static final long PROBE_INTERVAL_MINUTES = 10;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.udp=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.udp");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[udp] " + msg);
+        }
+    }
+
+    private final UdpConnection connection;
+    private final RttEstimator rtt;
+    private final int limit;
+    private final Integer mtu;
+    private final boolean fixed;
+
+    // 当前确认可用的 datagram 大小，发送方据此切分
+    private volatile int datagramSize;
+
+    /*=== 以下字段由 this 保护 ===*/
+    private boolean started = false;
+    private boolean closed = false;
+    // datagram 大小上限，随对端地址族变化
+    private int max;
+    // 二分区间：low 已确认，high 为尚未排除的上限
+    private int low;
+    private int high;
+    // 在途探测的大小，0 表示没有
+    private int probing = 0;
+    private int attempts = 0;
+    private Timeout timer;
+
+    /**
+     * @param remote 对端地址，决定 IP 头开销
+     * @param limit datagram 大小的硬上限（接收槽大小）
+     */
+    PathMtuProber(UdpConnection connection, RttEstimator rtt, InetSocketAddress remote, int limit) {
+        this.connection = connection;
+        this.rtt = rtt;
+        this.limit = limit;
+        this.mtu = Integer.getInteger("sonata.udp.mtu");
+        this.fixed = mtu != null;
+        init(remote);
+    }
+
+    private void init(InetSocketAddress remote) {
+        int overhead = remote != null && remote.getAddress() instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD;
+        max = Math.max(MIN_DATAGRAM, Math.min(limit, (fixed ? mtu : ETHERNET_MTU) - overhead));
+        datagramSize = fixed ? max : MIN_DATAGRAM;
+        low = datagramSize;
+        high = max;
+    }
+
+    /**
+     * 任何对端地址下 datagram 大小可能达到的上限（按较小的 IPv4 头计），datagram 模式的接收槽按它分配
+     */
+    static int maxDatagram() {
+        Integer mtu = Integer.getInteger("sonata.udp.mtu");
+        return Math.max(MIN_DATAGRAM, (mtu != null ? mtu : ETHERNET_MTU) - IPV4_OVERHEAD);
+    }
+
+    int datagramSize() {
+        return datagramSize;
+    }
+
+    /**
+     * 开始探测（对端已知 connection id 之后调用，重复调用无效）
+     */
+    synchronized void start() {
+        if (started || fixed || closed) {
+            return;
+        }
+        started = true;
+        if (high > low) {
+            probe(high);
+        }
+    }
+
+    /**
+     * 对端确认收到了 size 字节的探测
+     */
+    synchronized void onProbeAck(int size) {
+        if (closed || size != probing) {
+            return;
+        }
+        cancelTimer();
+        probing = 0;
+        if (size > low) {
+            low = size;
+            datagramSize = size;
+            dbg("pmtu " + connection.getRemoteAddress() + " datagram size -> " + size);
+        }
+        next();
+    }
+
+    private void next() {
+        if (high - low < PROBE_STEP) {
+            // 本轮结束，过一段时间从上限重新探（low 已是上限时即确认当前大小仍然可用）
+            high = max;
+            timer = HierarchicalWheelTimer.shared().schedule(this::restart, PROBE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+            return;
+        }
+        probe((low + high + 1) >>> 1);
+    }
+
+    private synchronized void restart() {
+        timer = null;
+        if (!closed && probing == 0) {
+            probe(high);
+        }
+    }
+
+    private void probe(int size) {
+        if (probing != size) {
+            probing = size;
+            attempts = 0;
+        }
+        attempts++;
+        RefCountedBuffer owner = BufferPool.direct().acquire(size);
+        ByteBuffer buf = owner.buffer();
+        buf.clear();
+        buf.put(Long.BYTES, (byte) UdpReliability.FLAG_PROBE).position(UdpReliability.BASE_HEADER_LENGTH);
+        int bodyLength = size - UdpReliability.BASE_HEADER_LENGTH - PacketHeader.HEADER_LENGTH;
+        ByteBuffer body = ByteBuffer.allocate(bodyLength).putLong(0, size);
+        PacketCodec.encodeInto(new Packet(new PacketHeader(PacketHeader.MAGIC, (short) 0, PacketType.PING, bodyLength), body), buf);
+        try {
+            connection.transmit(buf.flip()).whenComplete((n, error) -> owner.release());
+        } catch (TransportException e) {
+            owner.release();
+            return;
+        }
+        timer = HierarchicalWheelTimer.shared().schedule(() -> onTimeout(size), rtt.getRtoNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void onTimeout(int size) {
+        if (closed || probing != size) {
+            return;
+        }
+        timer = null;
+        if (attempts < PROBE_ATTEMPTS) {
+            probe(size);
+            return;
+        }
+        if (DEBUG) dbg("pmtu probe " + size + " to " + connection.getRemoteAddress() + " lost");
+        probing = 0;
+        high = size - 1;
+        if (size <= low) {
+            // 已确认的大小不再能通过：路径 MTU 变小了
+            fallBack();
+        }
+        next();
+    }
+
+    /**
+     * 可靠子层判定大于 MIN_DATAGRAM 的 datagram 被黑洞（连续超时），退回最小值重新探测
+     */
+    synchronized void onBlackHole() {
+        if (closed || fixed || datagramSize <= MIN_DATAGRAM) {
+            return;
+        }
+        fallBack();
+        high = max;
+        search();
+    }
+
+    /**
+     * 换了路径：按新对端地址重算上限，从最小值重新探测（尚未 start 时只重置状态）
+     */
+    synchronized void reset(InetSocketAddress remote) {
+        if (closed) {
+            return;
+        }
+        init(remote);
+        if (!fixed) {
+            search();
+        }
+    }
+
+    private void fallBack() {
+        low = MIN_DATAGRAM;
+        datagramSize = MIN_DATAGRAM;
+        dbg("pmtu " + connection.getRemoteAddress() + " datagram size -> " + MIN_DATAGRAM + " (fallback)");
+    }
+
+    private void search() {
+        cancelTimer();
+        probing = 0;
+        if (started && high > low) {
+            probe(high);
+        }
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        cancelTimer();
+    }
+
+    /*=== 对端侧 ===*/
+
+    /**
+     * 处理 PROBE datagram 中的帧：PING 回一个 PONG，PONG 交给 onProbeAck
+     * @param offset 帧的绝对位置（datagram 已校验为完整帧）
+     */
+    void onProbeDatagram(ByteBuffer data, int offset) {
+        short type = UdpConnection.frameType(data, offset);
+        int body = offset + PacketHeader.HEADER_LENGTH;
+        if (data.limit() - body < Long.BYTES) {
+            return;
+        }
+        long size = data.getLong(body);
+        if (type == PacketType.PONG.getCode()) {
+            onProbeAck((int) size);
+        } else if (type == PacketType.PING.getCode()) {
+            ByteBuffer reply = ByteBuffer.allocate(UdpReliability.BASE_HEADER_LENGTH + PacketHeader.HEADER_LENGTH + Long.BYTES);
+            reply.put(Long.BYTES, (byte) UdpReliability.FLAG_PROBE).position(UdpReliability.BASE_HEADER_LENGTH);
+            PacketCodec.encodeInto(Packet.pong(size), reply);
+            try {
+                connection.transmit(reply.flip());
+            } catch (TransportException ignore) {
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PathMtuProber{" +
+                "datagramSize=" + datagramSize +
+                ", max=" + max +
+                ", fixed=" + fixed +
+                ", probing=" + probing +
+                '}';
+    }
+}
@@ -0,0 +1,116 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketCodec;
+import cn.sonata.vpn.common.packet.PacketHeader;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.protocol.RttEstimator;
+import cn.sonata.vpn.common.transport.TransportException;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * 地址迁移前的路径验证（思路同 QUIC 的 PATH_CHALLENGE / PATH_RESPONSE）
+ * <p>
+ * 新地址上的记录通过认证只说明发送者拿到了一条有效记录，不说明新地址可达：
+ * 途中的攻击者可以把截获、尚未送达的记录抢先从别的地址发出，把会话引走。
+ * 所以 server 不在认证通过时直接切换，而是向新地址发一个 PATH 标志的 datagram，
+ * 内含一个 body 为 8 字节随机数的 PING；client 回一个 body 相同的 PONG，从新地址收到后才切换
+ * - 验证期间照常发往旧地址，新地址只收到挑战本身，不会被用来反射流量
+ * - 挑战丢失时，新地址上下一条通过认证的记录触发重发（同一地址每个 RTO 最多一次）
+ * - 同时只验证一个地址，新的候选地址替换旧的
+ * <p>
+ * 只在 event loop 上访问
+ */
+final class PathValidator {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.udp=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.udp");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[udp] " + msg);
+        }
+    }
+
+    private final UdpConnection connection;
+    private final RttEstimator rtt;
+
+    // 正在验证的地址，null 表示没有
+    private InetSocketAddress candidate;
+    private long token;
+    private long challengedAt;
+
+    PathValidator(UdpConnection connection, RttEstimator rtt) {
+        this.connection = connection;
+        this.rtt = rtt;
+    }
+
+    /**
+     * server 侧：sender 上到达了通过认证的记录，需要时向它发出挑战
+     */
+    void challenge(InetSocketAddress sender) {
+        long now = System.nanoTime();
+        if (!sender.equals(candidate)) {
+            candidate = sender;
+            token = RANDOM.nextLong();
+        } else if (now - challengedAt < rtt.getRtoNanos()) {
+            return;
+        }
+        challengedAt = now;
+        if (DEBUG) dbg("path challenge " + Long.toHexString(connection.getConnectionId()) + " -> " + sender);
+        send(Packet.ping(token), sender);
+    }
+
+    /**
+     * server 侧：sender 上到达了 PATH datagram
+     * @param offset 帧的绝对位置（datagram 已校验为完整帧）
+     * @return true 表示 sender 通过验证，可以切换过去
+     */
+    boolean onResponse(InetSocketAddress sender, ByteBuffer data, int offset) {
+        if (candidate == null || !candidate.equals(sender)
+                || UdpConnection.frameType(data, offset) != PacketType.PONG.getCode()
+                || data.getInt(offset + Integer.BYTES + Short.BYTES + Short.BYTES) != Long.BYTES
+                || data.getLong(offset + PacketHeader.HEADER_LENGTH) != token) {
+            return false;
+        }
+        candidate = null;
+        return true;
+    }
+
+    /**
+     * client 侧：收到挑战，原样回应（发往当前对端地址，NAT 之后即是 server 看到的新地址）
+     * @param offset 帧的绝对位置（datagram 已校验为完整帧）
+     */
+    void onChallenge(ByteBuffer data, int offset) {
+        if (UdpConnection.frameType(data, offset) != PacketType.PING.getCode()
+                || data.limit() - offset - PacketHeader.HEADER_LENGTH != Long.BYTES) {
+            return;
+        }
+        send(Packet.pong(data.getLong(offset + PacketHeader.HEADER_LENGTH)), null);
+    }
+
+    /**
+     * @param to null 表示当前对端地址
+     */
+    private void send(Packet packet, InetSocketAddress to) {
+        ByteBuffer buf = ByteBuffer.allocate(UdpReliability.BASE_HEADER_LENGTH + PacketHeader.HEADER_LENGTH + Long.BYTES);
+        buf.put(Long.BYTES, (byte) UdpReliability.FLAG_PATH).position(UdpReliability.BASE_HEADER_LENGTH);
+        PacketCodec.encodeInto(packet, buf);
+        try {
+            connection.transmit(buf.flip(), to);
+        } catch (TransportException ignore) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PathValidator{" +
+                "candidate=" + candidate +
+                '}';
+    }
+}
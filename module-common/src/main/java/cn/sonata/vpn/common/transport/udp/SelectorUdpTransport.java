@@ -0,0 +1,419 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.WritabilityTracker;
+import cn.sonata.vpn.common.transport.nio.NioChannelHandler;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 基于 DatagramChannel + NioEventLoop 的非阻塞 UDP 数据面
+ * <p>
+ * 收：一次可读事件把内核里排队的 datagram 连续读进预分配的接收环，凑满一环或读空后整批回调一次
+ * - 接收环是 ringSize 个从 direct 池借来的 RefCountedBuffer，稳态下收包不分配 buffer
+ * - handler 想在回调之后继续持有某个 datagram（例如零拷贝解出的 packet），对它的 buffer retain()；
+ *   回调返回后被 retain 的槽位交出所有权并换一块新 buffer，其余槽位原地复用
+ * - 每次就绪最多读 MAX_RECEIVE_ROUNDS 环，之后把 loop 让给其它 channel（selector 是水平触发，剩下的下一轮再读）
+ * <p>
+ * 发：sendAsync 任意线程入队，loop 线程一次 flush 连续发出队列里的 datagram（每轮最多 MAX_SEND_BURST 个），
+ * socket 发送缓冲区满时挂 OP_WRITE 等待；出站积压按 WritabilityTracker 高低水位通告
+ * <p>
+ * 与 UdpTransport 的两个阻塞实现相比：不占线程等待 IO，一次唤醒处理多个 datagram
+ */
+public final class SelectorUdpTransport implements NioChannelHandler, AutoCloseable {
+
+    /**
+     * 一批收到的 datagram，在 loop 线程上回调
+     */
+    public interface DatagramHandler {
+        void onDatagrams(DatagramBatch batch);
+    }
+
+    public static final int DEFAULT_RING_SIZE = 32;
+
+    /**
+     * 默认接收槽大小：容纳一个最大的 Packet 帧（16KB body + header），超出部分被内核截断
+     * （datagram 模式的连接按路径 MTU 上限另行指定，见 UdpConnection）
+     */
+    public static final int DEFAULT_SLOT_SIZE = 32 * 1024;
+
+    private static final int MAX_RECEIVE_ROUNDS = 4;
+    private static final int MAX_SEND_BURST = 256;
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.udp=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.udp");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[udp] " + msg);
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final NioEventLoop eventLoop;
+    private final DatagramHandler handler;
+    private final InetSocketAddress localAddress;
+    private final int slotSize;
+
+    /*=== 以下字段仅在 loop 线程访问 ===*/
+    private SelectionKey key;
+    private final RefCountedBuffer[] ring;
+    private final InetSocketAddress[] senders;
+    private final DatagramBatch batch = new DatagramBatch();
+    private long receivedDatagrams = 0;
+    private long receiveBatches = 0;
+
+    /*=== 跨线程字段 ===*/
+    private final Queue<PendingDatagram> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final WritabilityTracker writability = new WritabilityTracker();
+    private volatile long sentDatagrams = 0;
+
+    private static final class PendingDatagram {
+        final ByteBuffer data;
+        final InetSocketAddress target;
+        final CompletableFuture<Integer> future;
+        final int length;
+
+        PendingDatagram(ByteBuffer data, InetSocketAddress target, CompletableFuture<Integer> future) {
+            this.data = data;
+            this.target = target;
+            this.future = future;
+            this.length = data.remaining();
+        }
+    }
+
+    /**
+     * 一次回调内收到的 datagram，回调返回后失效（槽位会被下一轮覆盖）
+     */
+    public final class DatagramBatch {
+        private int size;
+
+        private DatagramBatch() {
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 第 i 个 datagram 的内容（读模式，position..limit）
+         */
+        public ByteBuffer data(int i) {
+            return ring[check(i)].buffer();
+        }
+
+        /**
+         * 第 i 个 datagram 所在的缓冲区，retain() 后可在回调之外继续使用
+         */
+        public RefCountedBuffer buffer(int i) {
+            return ring[check(i)];
+        }
+
+        public InetSocketAddress sender(int i) {
+            return senders[check(i)];
+        }
+
+        private int check(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("datagram index out of range exception: " + i + "/" + size);
+            }
+            return i;
+        }
+    }
+
+    private SelectorUdpTransport(DatagramChannel channel, NioEventLoop eventLoop, DatagramHandler handler,
+                                 int ringSize, int slotSize) throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.handler = handler;
+        this.slotSize = slotSize;
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        this.ring = new RefCountedBuffer[ringSize];
+        this.senders = new InetSocketAddress[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = BufferPool.direct().acquire(slotSize);
+        }
+    }
+
+    /**
+     * 静态工厂方法：默认接收环
+     * @param localAddress 本地地址（null 表示自动分配）
+     */
+    public static SelectorUdpTransport create(InetSocketAddress localAddress, NioEventLoop eventLoop,
+                                            DatagramHandler handler) throws TransportException {
+        return create(localAddress, eventLoop, handler, DEFAULT_RING_SIZE, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * @param localAddress 本地地址（null 表示自动分配）
+     * @param eventLoop 负责该 socket 全部 IO 的事件循环，handler 也在它上面执行
+     * @param ringSize 一批最多收多少个 datagram
+     * @param slotSize 单个 datagram 的最大字节数
+     * @throws TransportException socket 打开或绑定失败
+     */
+    public static SelectorUdpTransport create(InetSocketAddress localAddress, NioEventLoop eventLoop,
+                                            DatagramHandler handler, int ringSize, int slotSize)
+            throws TransportException {
+        if (ringSize <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("invalid udp ring exception: ringSize=" + ringSize + ", slotSize=" + slotSize);
+        }
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            // 突发流量先堆在内核里，等下一次唤醒整批读走
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            channel.bind(localAddress == null ? new InetSocketAddress(0) : localAddress);
+            SelectorUdpTransport transport = new SelectorUdpTransport(channel, eventLoop, handler, ringSize, slotSize);
+            eventLoop.execute(transport::doRegister);
+            return transport;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignore) {
+                }
+            }
+            throw new TransportException("udp bind exception " + localAddress, e);
+        }
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public NioEventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    public boolean isWritable() {
+        return writability.isWritable();
+    }
+
+    public void setWritabilityListener(Consumer<Boolean> listener) {
+        writability.setListener(listener);
+    }
+
+    /**
+     * 已收到的 datagram 数 / 回调批数（诊断用，loop 线程更新）
+     */
+    public long receivedDatagrams() {
+        return receivedDatagrams;
+    }
+
+    public long receiveBatches() {
+        return receiveBatches;
+    }
+
+    public long sentDatagrams() {
+        return sentDatagrams;
+    }
+
+    /**
+     * 发送一个 datagram，任意线程可调用
+     * data 在 future 完成前不得修改；future 在交给内核后完成（UDP 不保证送达）
+     * @return CompletableFuture<Integer> 发送的字节数
+     * @throws TransportException socket 已关闭
+     */
+    public CompletableFuture<Integer> sendAsync(ByteBuffer data, InetSocketAddress target) throws TransportException {
+        if (isClosed()) {
+            throw new TransportException("udp send exception: transport closed");
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        PendingDatagram pd = new PendingDatagram(data, target, future);
+        writability.incr(pd.length);
+        sendQueue.offer(pd);
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+        return future;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            dbg("close failed: " + e.getMessage());
+        } finally {
+            eventLoop.execute(this::failPending);
+        }
+    }
+
+    /*=== loop 线程 ===*/
+
+    @Override
+    public void onReady(SelectionKey key) {
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            drainReceive();
+        }
+    }
+
+    private void doRegister() {
+        try {
+            key = eventLoop.register(channel, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            failPending();
+            return;
+        }
+        // 注册前已入队的发送
+        flush();
+    }
+
+    private void drainReceive() {
+        for (int round = 0; round < MAX_RECEIVE_ROUNDS; round++) {
+            int n = 0;
+            try {
+                while (n < ring.length) {
+                    ByteBuffer slot = ring[n].buffer();
+                    slot.clear();
+                    SocketAddress from = channel.receive(slot);
+                    if (from == null) {
+                        break;      // 内核队列已读空
+                    }
+                    slot.flip();
+                    senders[n++] = (InetSocketAddress) from;
+                }
+            } catch (IOException e) {
+                // UDP 的接收错误（如 ICMP port unreachable）只影响单个 datagram，已读到的照常交付
+                dbg("receive failed: " + e.getMessage());
+            }
+            if (n == 0) {
+                return;
+            }
+            receivedDatagrams += n;
+            receiveBatches++;
+            batch.size = n;
+            try {
+                handler.onDatagrams(batch);
+            } catch (RuntimeException e) {
+                dbg("handler failed: " + e);
+            } finally {
+                batch.size = 0;
+                recycle(n);
+            }
+            if (n < ring.length) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 被 handler retain 的槽位交出去，换一块新 buffer
+     */
+    private void recycle(int n) {
+        for (int i = 0; i < n; i++) {
+            senders[i] = null;
+            if (ring[i].refCnt() != 1) {
+                ring[i].release();
+                ring[i] = BufferPool.direct().acquire(slotSize);
+            }
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null) {
+            return;
+        }
+        int burst = 0;
+        PendingDatagram pd;
+        try {
+            while ((pd = sendQueue.peek()) != null) {
+                if (burst == MAX_SEND_BURST) {
+                    // 让出 loop 给读事件，剩下的下一轮继续
+                    if (flushScheduled.compareAndSet(false, true)) {
+                        eventLoop.execute(this::flush);
+                    }
+                    return;
+                }
+                if (channel.send(pd.data, pd.target) == 0 && pd.length > 0) {
+                    // 发送缓冲区已满：datagram 整个没发出，等待可写事件（空 datagram 发出时同样返回 0）
+                    setInterest(SelectionKey.OP_WRITE, true);
+                    return;
+                }
+                sendQueue.poll();
+                burst++;
+                writability.decr(pd.length);
+                pd.future.complete(pd.length);
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+        } catch (IOException e) {
+            // 单个 datagram 失败（目标不可达等）不影响队列里的其它 datagram
+            pd = sendQueue.poll();
+            if (pd != null) {
+                writability.decr(pd.length);
+                pd.future.completeExceptionally(new TransportException("udp send exception " + pd.target, e));
+            }
+            if (channel.isOpen() && flushScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this::flush);
+            }
+        } finally {
+            if (burst > 0) {
+                sentDatagrams += burst;
+            }
+        }
+    }
+
+    private void setInterest(int op, boolean on) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        int next = on ? (ops | op) : (ops & ~op);
+        if (next != ops) {
+            key.interestOps(next);
+        }
+    }
+
+    private void failPending() {
+        TransportException error = new TransportException("udp transport closed");
+        PendingDatagram pd;
+        while ((pd = sendQueue.poll()) != null) {
+            writability.decr(pd.length);
+            pd.future.completeExceptionally(error);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] != null) {
+                ring[i].release();
+                ring[i] = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SelectorUdpTransport{" +
+                "local=" + localAddress +
+                ", received=" + receivedDatagrams +
+                ", sent=" + sentDatagrams +
+                '}';
+    }
+}
@@ -0,0 +1,926 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.crypto.RecordLayer;
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketHeader;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.protocol.RttEstimator;
+import cn.sonata.vpn.common.timer.HierarchicalWheelTimer;
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.WritabilityTracker;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * datagram 模式下与一个对端的"连接"，让 DefaultSession / ProtocolFSM 不加改动地跑在 UDP 上
+ * <p>
+ * 线路格式：[datagram 头][一个或多个完整的 PacketCodec 帧 | 一个帧的一片]
+ * （头以 connection id 开头，其后是 UdpReliability 的 flags / 序号 / ACK 块 / 分片头）
+ * - 发：sendAsync 收到的字节按帧边界切成不超过路径 MTU（PathMtuProber 探得）的 datagram，
+ *   可靠类（控制包）与尽力而为类（可配置的 DATA）的帧不混装，见 UdpReliability；
+ *   单帧装不下时切成等长的若干片，各占一个 datagram，接收方经 FragmentReassembler 拼回，不依赖 IP 分片；
+ *   路径 MTU 变小后，此前组好的大 datagram 重传时整体切片（SPLIT），接收方拼回后按原 datagram 处理
+ * - 收：datagram 先校验恰好由完整帧组成（magic / length），不合格的整个丢弃；
+ *   可靠子层开启时控制包总是可靠发送，装有 DATA 之外的帧的尽力而为 datagram（不占序号、最容易伪造）也整个丢弃；
+ *   可靠 datagram 去重、按序，尽力而为的到达即交付，首尾相接交给 receiveAsync，
+ *   session 看到的仍是帧对齐的字节流。丢一个尽力而为的 datagram 只会丢掉其中的帧，不会让后续字节错位
+ * - 带 FIN 标志、没有帧的 datagram 相当于 TCP 的 FIN：shutdownAsync 在已提交的数据之后发出一个
+ *   （可靠，等对端确认或 LINGER_MILLIS 后才关闭），对端读完已到达的 datagram 后 receiveAsync 返回 -1
+ * <p>
+ * connection id：server 为每个新 client 分配一个随机的非零 id，从携带 HELLO_ACK 的那个 datagram 起
+ * 每个 server 发出的 datagram 都带着它，client 收到后在之后的每个 datagram 中回带（此前为 0）。
+ * client 的地址变化（NAT 重新映射、换网）后 server 凭 id 找到原 session，
+ * 新地址上的记录经 session 认证（见 TcpConnection.setPeerAuthenticator）、新地址又通过路径验证（见 PathValidator）后
+ * 即改为与新地址收发，不需要重新握手；空闲的 client 靠 keepalive 的 PING（同样是加密记录）完成迁移
+ * <p>
+ * 多个 UdpConnection 可以共享一个 SelectorUdpTransport（server 侧一个 socket 服务全部 client，见 UdpServer），
+ * IO 与回调都在 transport 所属的 event loop 上执行。
+ * UDP 没有背压：session 暂停读取期间收件箱满了之后到达的 datagram 直接丢弃
+ * <p>
+ * 收件箱与可靠子层的乱序暂存直接持有接收环的槽位（不拷贝），所以接收槽只按路径 MTU 的上限分配（约 2KB），
+ * 而不是能装下最大帧的 DEFAULT_SLOT_SIZE：大帧本来就分片发送，满额暂存时每个连接也只占几百 KB
+ */
+public final class UdpConnection implements TcpConnection {
+
+    private static final int MAX_HEADER_LENGTH = UdpReliability.MAX_HEADER_LENGTH;
+
+    /** datagram 头的固定部分：connection id + flags */
+    public static final int HEADER_LENGTH = UdpReliability.BASE_HEADER_LENGTH;
+
+    // shutdownAsync 等待 FIN 被确认的上限
+    private static final long LINGER_MILLIS = 3000;
+
+    // 收件箱上限（datagram 个数），超出即丢弃
+    private static final int MAX_INBOX = 64;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.udp=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.udp");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[udp] " + msg);
+        }
+    }
+
+    private final NioEventLoop eventLoop;
+    private final boolean ownsTransport;
+    // 关闭时回调（server 侧从路由表移除）
+    private final Consumer<UdpConnection> onClosed;
+
+    // client 侧 rebind 时替换
+    private volatile SelectorUdpTransport transport;
+    // 迁移时替换
+    private volatile InetSocketAddress remoteAddress;
+    // server 侧创建时分配；client 侧为 0，直到收到 server 的第一个 datagram
+    private volatile long connectionId;
+    private volatile Predicate<Packet> authenticator;
+    private volatile BiConsumer<SocketAddress, SocketAddress> migrationListener;
+
+    private final WritabilityTracker writability = new WritabilityTracker();
+    private final UdpReliability reliability;
+    private final PathMtuProber mtu;
+    private final PathValidator path;
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+    // 一个帧的全部分片连续占用序号，不与其他线程的分片交错（接收方据此限制未拼完的可靠帧数）
+    private final Object fragmentLock = new Object();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean readPending = new AtomicBoolean(false);
+    // 最近一次发送，shutdownAsync 在它完成后关闭
+    private volatile CompletableFuture<Integer> lastSend = CompletableFuture.completedFuture(0);
+
+    /*=== 以下字段仅在 loop 线程访问 ===*/
+    private final ArrayDeque<RefCountedBuffer> inbox = new ArrayDeque<>();
+    // UdpReliability.receive 交出的按序 datagram，随即转入收件箱
+    private final List<RefCountedBuffer> ready = new ArrayList<>();
+    private final FragmentReassembler reassembler = new FragmentReassembler();
+    // SPLIT datagram 拼回的完整 datagram
+    private final FragmentReassembler splits = new FragmentReassembler();
+    private boolean probing = false;
+    private ByteBuffer readBuffer;
+    private CompletableFuture<Integer> readFuture;
+    private long dropped = 0;
+    private long migrations = 0;
+    // 对端已发来 FIN
+    private boolean peerShutdown = false;
+
+    UdpConnection(NioEventLoop eventLoop, SelectorUdpTransport transport, boolean ownsTransport,
+                  InetSocketAddress remoteAddress, long connectionId, int maxDatagram,
+                  Consumer<UdpConnection> onClosed) {
+        this.eventLoop = eventLoop;
+        this.transport = transport;
+        this.ownsTransport = ownsTransport;
+        this.remoteAddress = remoteAddress;
+        this.connectionId = connectionId;
+        this.onClosed = onClosed;
+        this.reliability = new UdpReliability(this, eventLoop, writability);
+        // maxDatagram 为接收槽大小（PathMtuProber.maxDatagram），实际发送大小由路径 MTU 探测决定
+        this.mtu = new PathMtuProber(this, reliability.rtt(), remoteAddress, maxDatagram);
+        this.path = new PathValidator(this, reliability.rtt());
+    }
+
+    /**
+     * 客户端侧：绑定一个临时端口，只接收来自 remote 的 datagram
+     * UDP 无需建连，返回时即可发送
+     * @param remote 服务端地址
+     * @param eventLoop 事件循环
+     * @return UdpConnection
+     * @throws TransportException socket 打开失败
+     */
+    public static UdpConnection connect(InetSocketAddress remote, NioEventLoop eventLoop) throws TransportException {
+        UdpConnection connection = new UdpConnection(eventLoop, null, true, remote, 0L,
+                PathMtuProber.maxDatagram(), null);
+        connection.transport = connection.openClientTransport();
+        return connection;
+    }
+
+    private SelectorUdpTransport openClientTransport() throws TransportException {
+        return SelectorUdpTransport.create(null, eventLoop, batch -> {
+            InetSocketAddress server = remoteAddress;
+            for (int i = 0; i < batch.size(); i++) {
+                // 其它来源的 datagram 一律丢弃
+                if (server.equals(batch.sender(i))) {
+                    onDatagram(batch.buffer(i));
+                }
+            }
+        }, SelectorUdpTransport.DEFAULT_RING_SIZE, PathMtuProber.maxDatagram());
+    }
+
+    /**
+     * 客户端侧：换一个本地端口继续收发（网络切换 / NAT 映射变化时调用，也可用来演练迁移）
+     * server 凭 connection id 认出同一 session，session 与握手状态都不受影响；
+     * 旧 socket 上尚未发出的 datagram 丢弃，与 UDP 丢包同等对待
+     * @throws TransportException server 侧连接不能 rebind，或新 socket 打开失败
+     */
+    public void rebind() throws TransportException {
+        if (!ownsTransport) {
+            throw new TransportException("udp rebind exception: not a client connection");
+        }
+        if (isClosed()) {
+            throw new TransportException("udp rebind exception: connection closed");
+        }
+        SelectorUdpTransport old = transport;
+        transport = openClientTransport();
+        old.close();
+        // 新的本地地址可能走不同的路径
+        mtu.reset(remoteAddress);
+        dbg("rebind " + old.getLocalAddress() + " -> " + transport.getLocalAddress());
+    }
+
+    public NioEventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    public long getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * 因格式错误或收件箱已满而丢弃的 datagram 数（诊断用）
+     */
+    public long droppedDatagrams() {
+        return dropped;
+    }
+
+    /**
+     * 对端地址迁移次数（诊断用）
+     */
+    public long migrations() {
+        return migrations;
+    }
+
+    /**
+     * 可靠 datagram 的重传次数（超时 + 快速重传，诊断用）
+     */
+    public long retransmits() {
+        return reliability.retransmits();
+    }
+
+    /**
+     * 收到的重复可靠 datagram 数（诊断用）
+     */
+    public long duplicateDatagrams() {
+        return reliability.duplicates();
+    }
+
+    /**
+     * 当前按路径 MTU 使用的 datagram 大小（UDP 载荷字节数）
+     */
+    public int getDatagramSize() {
+        return mtu.datagramSize();
+    }
+
+    /**
+     * 因超时、内存预算或分片不一致而没能拼回的帧数（诊断用）
+     */
+    public long reassemblyDiscarded() {
+        return reassembler.discarded();
+    }
+
+    /**
+     * 可靠子层按 ACK 采样的 RTT，独立于 ProtocolFSM 的 PING/PONG 估计
+     */
+    public RttEstimator rtt() {
+        return reliability.rtt();
+    }
+
+    /**
+     * 回调固定在 transport 所属 event loop 上执行
+     */
+    @Override
+    public Executor callbackExecutor() {
+        return eventLoop;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return transport.getLocalAddress();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !isClosed();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get() || transport.isClosed();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writability.isWritable();
+    }
+
+    @Override
+    public void setWriteWatermarks(int low, int high) {
+        writability.setWatermarks(low, high);
+    }
+
+    @Override
+    public void setWritabilityListener(Consumer<Boolean> listener) {
+        writability.setListener(listener);
+    }
+
+    @Override
+    public void setPeerAuthenticator(Predicate<Packet> authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public void setMigrationListener(BiConsumer<SocketAddress, SocketAddress> listener) {
+        this.migrationListener = listener;
+    }
+
+    @Override
+    public CompletableFuture<Integer> sendAsync(ByteBuffer data) throws TransportException {
+        return sendAsync(new ByteBuffer[]{data});
+    }
+
+    /**
+     * 整组字节拷入一块池化 direct buffer（前面留出 datagram 头），按帧边界与可靠性类别切成若干 datagram 发出
+     * 第一个 datagram 直接是这块 buffer 的切片；后续 datagram 与分片各自拷贝一次
+     * 返回的 future 在全部 datagram 首次交给内核时完成，不等对端确认
+     * @throws TransportException 已关闭，或字节不是完整的帧序列，或单帧超过 MAX_FRAGMENTS 片
+     */
+    @Override
+    public CompletableFuture<Integer> sendAsync(ByteBuffer[] srcs) throws TransportException {
+        if (isClosed()) {
+            throw new TransportException("udp send exception: connection closed");
+        }
+        int total = 0;
+        for (ByteBuffer src : srcs) {
+            total += src.remaining();
+        }
+        if (total == 0) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        RefCountedBuffer staging = BufferPool.direct().acquire(MAX_HEADER_LENGTH + total);
+        ByteBuffer out = staging.buffer();
+        out.clear().position(MAX_HEADER_LENGTH);
+        for (ByteBuffer src : srcs) {
+            out.put(src);
+        }
+        out.flip();
+
+        int length = total;
+        writability.incr(length);
+        CompletableFuture<Integer> result;
+        try {
+            result = sendFrames(staging, out, total);
+        } catch (TransportException e) {
+            writability.decr(length);
+            staging.release();
+            throw e;
+        }
+        result.whenComplete((n, error) -> {
+            writability.decr(length);
+            staging.release();
+        });
+        lastSend = result;
+        return result;
+    }
+
+    private CompletableFuture<Integer> sendFrames(RefCountedBuffer staging, ByteBuffer out, int total)
+            throws TransportException {
+        int limit = out.limit();
+        int room = mtu.datagramSize() - MAX_HEADER_LENGTH;
+        // 先整体校验，避免发出一半才发现后面的字节不成帧
+        for (int pos = MAX_HEADER_LENGTH; pos < limit; ) {
+            int frame = frameLength(out, pos, limit);
+            if (frame < 0) {
+                throw new TransportException("udp send exception: partial frame at " + pos + "/" + limit);
+            }
+            if (frame > room * FragmentReassembler.MAX_FRAGMENTS) {
+                throw new TransportException("udp send exception: frame of " + frame + " bytes exceeds "
+                        + FragmentReassembler.MAX_FRAGMENTS + " fragments");
+            }
+            pos += frame;
+        }
+
+        List<CompletableFuture<Integer>> sent = new ArrayList<>(2);
+        int start = MAX_HEADER_LENGTH;
+        while (start < limit) {
+            boolean reliable = reliability.isReliable(frameType(out, start));
+            int frame = frameLength(out, start, limit);
+            if (frame > room) {
+                fragment(out, start, frame, room, reliable, sent);
+                start += frame;
+                continue;
+            }
+            // 在不超过 datagram 大小的前提下尽量多装同一类的整帧
+            int end = start + frame;
+            while (end < limit && end + (frame = frameLength(out, end, limit)) - start <= room
+                    && reliability.isReliable(frameType(out, end)) == reliable) {
+                end += frame;
+            }
+            if (start == MAX_HEADER_LENGTH) {
+                // 第一段前面就是预留的头部空间，直接发 staging 的切片
+                sent.add(reliability.send(staging, out, start, end, reliable, 0));
+            } else {
+                RefCountedBuffer datagram = copy(out, start, end - start);
+                sent.add(sendOwned(datagram, MAX_HEADER_LENGTH, MAX_HEADER_LENGTH + end - start, reliable, 0));
+            }
+            start = end;
+        }
+        if (sent.size() == 1) {
+            return sent.get(0).thenApply(n -> total);
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).thenApply(v -> total);
+    }
+
+    /**
+     * 一个帧切成 count 片，每片带分片头单独发出（连续发出，见 fragmentLock）
+     */
+    private void fragment(ByteBuffer out, int start, int frame, int room, boolean reliable,
+                          List<CompletableFuture<Integer>> sent) throws TransportException {
+        int count = (frame + room - 1) / room;
+        int chunk = FragmentReassembler.chunk(frame, count);
+        int messageId = nextMessageId.getAndIncrement();
+        synchronized (fragmentLock) {
+            for (int index = 0; index < count; index++) {
+                int offset = index * chunk;
+                int length = Math.min(chunk, frame - offset);
+                RefCountedBuffer datagram = copy(out, start + offset, length);
+                int header = MAX_HEADER_LENGTH - FragmentReassembler.FRAGMENT_HEADER_LENGTH;
+                FragmentReassembler.writeHeader(datagram.buffer(), header, messageId, index, count, frame);
+                sent.add(sendOwned(datagram, header, MAX_HEADER_LENGTH + length, reliable, UdpReliability.FLAG_FRAGMENT));
+            }
+        }
+        if (DEBUG) dbg("frame of " + frame + " bytes sent as " + count + " fragments, id=" + messageId);
+    }
+
+    /**
+     * out[from, from + length) 拷进一块新的池化 buffer，前面留出头部空间
+     */
+    private static RefCountedBuffer copy(ByteBuffer out, int from, int length) {
+        RefCountedBuffer datagram = BufferPool.direct().acquire(MAX_HEADER_LENGTH + length);
+        ByteBuffer buf = datagram.buffer();
+        buf.clear();
+        buf.put(MAX_HEADER_LENGTH, out, from, length);
+        return datagram;
+    }
+
+    /**
+     * 发出 copy 得到的 datagram，首次交给内核后释放本方引用（可靠子层另有 retain）
+     */
+    private CompletableFuture<Integer> sendOwned(RefCountedBuffer datagram, int payloadStart, int payloadEnd,
+                                                 boolean reliable, int extraFlags) throws TransportException {
+        CompletableFuture<Integer> sent;
+        try {
+            sent = reliability.send(datagram, datagram.buffer(), payloadStart, payloadEnd, reliable, extraFlags);
+        } catch (TransportException e) {
+            datagram.release();
+            throw e;
+        }
+        sent.whenComplete((n, error) -> datagram.release());
+        return sent;
+    }
+
+    /**
+     * 发出一个完整的 datagram（可靠子层首发与重传都经过这里）：填入当前 connection id，发往当前对端地址
+     * 每次传 duplicate，重传时 datagram 本身的 position 不变
+     */
+    CompletableFuture<Integer> transmit(ByteBuffer datagram) throws TransportException {
+        return transmit(datagram, null);
+    }
+
+    /**
+     * 超过当前 datagram 大小的完整 datagram（路径 MTU 变小之前组好的可靠 datagram 重传时）切成若干 SPLIT datagram 发出，
+     * 对端拼回后按原 datagram 处理；每片拷贝一次，返回时原 datagram 已不再被引用
+     */
+    CompletableFuture<Integer> transmitSplit(ByteBuffer datagram) throws TransportException {
+        datagram.putLong(datagram.position(), connectionId);
+        int total = datagram.remaining();
+        int header = UdpReliability.BASE_HEADER_LENGTH + FragmentReassembler.FRAGMENT_HEADER_LENGTH;
+        int room = mtu.datagramSize() - header;
+        int count = (total + room - 1) / room;
+        int chunk = FragmentReassembler.chunk(total, count);
+        int messageId = nextMessageId.getAndIncrement();
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[count];
+        for (int index = 0; index < count; index++) {
+            int offset = index * chunk;
+            int length = Math.min(chunk, total - offset);
+            RefCountedBuffer piece = BufferPool.direct().acquire(header + length);
+            ByteBuffer buf = piece.buffer();
+            buf.clear();
+            buf.put(Long.BYTES, (byte) UdpReliability.FLAG_SPLIT);
+            FragmentReassembler.writeHeader(buf, UdpReliability.BASE_HEADER_LENGTH, messageId, index, count, total);
+            buf.put(header, datagram, datagram.position() + offset, length);
+            try {
+                sent[index] = transmit(buf.slice(0, header + length)).whenComplete((n, error) -> piece.release());
+            } catch (TransportException e) {
+                piece.release();
+                throw e;
+            }
+        }
+        if (DEBUG) dbg("datagram of " + total + " bytes resent as " + count + " pieces, id=" + messageId);
+        return CompletableFuture.allOf(sent).thenApply(v -> total);
+    }
+
+    /**
+     * 同 transmit(ByteBuffer)，发往指定地址（路径验证的挑战发往尚未切换过去的新地址）
+     * @param to null 表示当前对端地址
+     */
+    CompletableFuture<Integer> transmit(ByteBuffer datagram, InetSocketAddress to) throws TransportException {
+        datagram.putLong(0, connectionId);
+        return transport.sendAsync(datagram.duplicate(), to == null ? remoteAddress : to);
+    }
+
+    /**
+     * UDP 的接收语义：已到达的 datagram 首尾相接拷入 buffer（装不下的留到下一次），没有 datagram 时等待
+     * @return CompletableFuture<Integer> 实际接收大小，-1 表示连接已关闭
+     */
+    @Override
+    public CompletableFuture<Integer> receiveAsync(ByteBuffer buffer) throws TransportException {
+        if (isClosed()) {
+            throw new TransportException("udp receive exception: connection closed");
+        }
+        if (!readPending.compareAndSet(false, true)) {
+            throw new TransportException("udp receive exception: receive already pending");
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            readBuffer = buffer;
+            readFuture = future;
+            drainInbox();
+        });
+        return future;
+    }
+
+    /**
+     * 已提交的 datagram 交给内核后再发一个 FIN 通知对端；
+     * 可靠子层启用时等它与之前的可靠 datagram 全部被确认（最多 LINGER_MILLIS）再关闭
+     */
+    @Override
+    public void shutdownAsync() throws TransportException {
+        if (isClosed()) {
+            throw new TransportException("udp shutdown exception: connection closed");
+        }
+        lastSend.whenComplete((n, error) -> {
+            RefCountedBuffer fin = BufferPool.direct().acquire(MAX_HEADER_LENGTH);
+            ByteBuffer buf = fin.buffer().clear();
+            try {
+                reliability.send(fin, buf, MAX_HEADER_LENGTH, MAX_HEADER_LENGTH, true, UdpReliability.FLAG_FIN)
+                        .whenComplete((m, e) -> {
+                            fin.release();
+                            reliability.drained().whenComplete((v, t) -> doClose());
+                        });
+            } catch (TransportException e) {
+                fin.release();
+                doClose();
+                return;
+            }
+            HierarchicalWheelTimer.shared().schedule(this::doClose, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    @Override
+    public void closeAsync() throws TransportException {
+        doClose();
+    }
+
+    /**
+     * 可靠子层判定大 datagram 被路径黑洞（持有可靠子层的锁调用；PathMtuProber 不会反过来进入可靠子层）
+     */
+    void onBlackHole() {
+        mtu.onBlackHole();
+    }
+
+    /**
+     * 可靠子层判定对端不可达，或对端违反协议
+     */
+    void abort() {
+        dbg("abort " + this + ", " + reliability);
+        doClose();
+    }
+
+    private void doClose() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        dbg("close " + this);
+        if (onClosed != null) {
+            onClosed.accept(this);
+        }
+        reliability.close();
+        mtu.close();
+        if (ownsTransport) {
+            transport.close();
+        }
+        eventLoop.execute(this::failPending);
+    }
+
+    /*=== loop 线程 ===*/
+
+    /**
+     * server 侧：同一 connection id 的 datagram 从新地址到达
+     * - 带记录的 datagram：其中每一帧都是记录（见 RecordLayer.isRecord）且都经 session 认证通过才交付，
+     *   并向新地址发起路径验证；有明文帧或认证不通过（伪造、重放、未协商 AEAD）的 datagram 丢弃
+     * - PATH datagram：与在途挑战相符时切换到新地址并通知 migrationListener
+     *   （UdpServer 随后按 getRemoteAddress 更新路由表），本身不交付
+     * 验证完成之前 remoteAddress 不变，发送仍去旧地址
+     * @param data datagram（读模式，position 在 datagram 头），不移动 position
+     * @return true 表示 datagram 可照常交付
+     */
+    boolean migrate(InetSocketAddress sender, ByteBuffer data) {
+        Predicate<Packet> auth = authenticator;
+        int pos = data.position();
+        int headerLength = headerLength(data, pos);
+        int start = pos + headerLength;
+        int limit = data.limit();
+        if (auth == null || closed.get() || headerLength < 0 || !isWholeFrames(data, start)) {
+            return false;
+        }
+        if ((UdpReliability.flags(data, pos) & UdpReliability.FLAG_PATH) != 0) {
+            if (path.onResponse(sender, data, start)) {
+                InetSocketAddress previous = remoteAddress;
+                remoteAddress = sender;
+                migrations++;
+                mtu.reset(sender);
+                dbg("connection " + Long.toHexString(connectionId) + " migrated " + previous + " -> " + sender);
+                BiConsumer<SocketAddress, SocketAddress> listener = migrationListener;
+                if (listener != null) {
+                    listener.accept(previous, sender);
+                }
+            }
+            return false;
+        }
+        for (int frame = start; frame < limit; frame += frameLength(data, frame, limit)) {
+            PacketType type = recordType(frameType(data, frame));
+            if (type == null) {
+                return false;
+            }
+            int length = data.getInt(frame + Integer.BYTES + Short.BYTES + Short.BYTES);
+            PacketHeader header = new PacketHeader(data.getInt(frame), data.getShort(frame + Integer.BYTES), type, length);
+            // 只读 body：认证只解到临时 buffer，不改动接收环里的密文
+            Packet record = new Packet(header, data.slice(frame + PacketHeader.HEADER_LENGTH, length));
+            if (!auth.test(record)) {
+                return false;
+            }
+        }
+        path.challenge(sender);
+        return true;
+    }
+
+    /**
+     * 协商了 AEAD 时以加密记录发送、可用来认证迁移的帧类型；握手包或未知类型返回 null
+     */
+    private static PacketType recordType(short code) {
+        for (PacketType type : PacketType.values()) {
+            if (type.getCode() == code) {
+                return RecordLayer.isRecord(type) ? type : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 可靠子层开启时尽力而为的帧只能是 DATA（offset 到 limit 已校验为完整帧）
+     */
+    private boolean isBestEffort(ByteBuffer data, int offset) {
+        if (!reliability.isEnabled()) {
+            return true;
+        }
+        int limit = data.limit();
+        for (int frame = offset; frame < limit; frame += frameLength(data, frame, limit)) {
+            if (frameType(data, frame) != PacketType.DATA.getCode()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * transport 回调：datagram 校验通过后才处理捎带的 ACK、PMTU 探测与路径验证的挑战，再进收件箱（retain 接收环的槽位，不拷贝）
+     */
+    void onDatagram(RefCountedBuffer datagram) {
+        if (closed.get()) {
+            return;
+        }
+        ByteBuffer data = datagram.buffer();
+        int pos = data.position();
+        int header = headerLength(data, pos);
+        if (header < 0) {
+            dropped++;
+            return;
+        }
+        long id = data.getLong(pos);
+        if (connectionId == 0 && id != 0) {
+            // client 侧：server 分配的 connection id，之后每个 datagram 都带上
+            connectionId = id;
+            dbg("connection id assigned: " + Long.toHexString(id));
+        }
+        if (!probing && connectionId != 0) {
+            probing = true;
+            mtu.start();
+        }
+        int flags = UdpReliability.flags(data, pos);
+        if ((flags & UdpReliability.FLAG_SPLIT) != 0) {
+            onSplit(data, pos + header, flags);
+            return;
+        }
+        int payload = pos + header;
+        boolean fin = (flags & UdpReliability.FLAG_FIN) != 0;
+        if (fin == payload < data.limit()) {
+            // 没有帧的非 FIN datagram 是单独的 ACK；带帧的 FIN 不合法，其 ACK 也不采信
+            if (fin) {
+                dropped++;
+            } else {
+                onAck(data, pos, flags);
+            }
+            return;
+        }
+        // 可靠 datagram 不受尽力而为的类型限制；PROBE / PATH datagram 不交给 session，其中的 PING / PONG 也不受限
+        boolean exempt = (flags & (UdpReliability.FLAG_RELIABLE | UdpReliability.FLAG_PROBE | UdpReliability.FLAG_PATH)) != 0;
+        boolean valid = fin
+                || ((flags & UdpReliability.FLAG_FRAGMENT) != 0
+                ? FragmentReassembler.isValid(data, payload - FragmentReassembler.FRAGMENT_HEADER_LENGTH)
+                : isWholeFrames(data, payload) && (exempt || isBestEffort(data, payload)));
+        if (!valid) {
+            dropped++;
+            if (DEBUG) dbg("malformed datagram dropped from " + remoteAddress + ", bytes=" + data.remaining());
+            return;
+        }
+        onAck(data, pos, flags);
+        if ((flags & UdpReliability.FLAG_PROBE) != 0) {
+            mtu.onProbeDatagram(data, payload);
+            return;
+        }
+        if ((flags & UdpReliability.FLAG_PATH) != 0) {
+            path.onChallenge(data, payload);
+            return;
+        }
+        if ((flags & UdpReliability.FLAG_RELIABLE) != 0) {
+            reliability.receive(UdpReliability.sequence(data, pos), datagram, inbox.size() < MAX_INBOX, ready);
+            if (fin) {
+                // 对端在等 FIN 的确认才关闭，不等本轮 IO 结束
+                reliability.flushAck();
+            }
+            for (RefCountedBuffer buf : ready) {
+                deliver(buf);
+            }
+            ready.clear();
+        } else if (inbox.size() >= MAX_INBOX) {
+            dropped++;
+            if (DEBUG) dbg("inbox full, datagram dropped from " + remoteAddress);
+            return;
+        } else {
+            deliver(datagram.retain());
+        }
+        drainInbox();
+    }
+
+    /**
+     * 捎带的 ACK 交给可靠子层；只在 datagram 校验通过后调用，畸形 datagram 里的 ACK 不能确认或触发重传
+     */
+    private void onAck(ByteBuffer data, int pos, int flags) {
+        if ((flags & UdpReliability.FLAG_ACK) != 0) {
+            reliability.onAck(data, UdpReliability.ackOffset(flags, pos));
+        }
+    }
+
+    /**
+     * SPLIT datagram：拼回原 datagram 后照常处理（原 datagram 本身不能再是 SPLIT）
+     * @param payload 分片数据的绝对位置
+     */
+    private void onSplit(ByteBuffer data, int payload, int flags) {
+        int offset = payload - FragmentReassembler.FRAGMENT_HEADER_LENGTH;
+        if (flags != UdpReliability.FLAG_SPLIT || payload >= data.limit() || !FragmentReassembler.isValid(data, offset)) {
+            dropped++;
+            return;
+        }
+        RefCountedBuffer whole = splits.add(data, offset);
+        if (whole == null) {
+            return;
+        }
+        ByteBuffer inner = whole.buffer();
+        if (headerLength(inner, 0) >= 0 && (UdpReliability.flags(inner, 0) & UdpReliability.FLAG_SPLIT) == 0) {
+            onDatagram(whole);
+        } else {
+            dropped++;
+        }
+        whole.release();
+    }
+
+    /**
+     * 已校验、按序的 datagram（position 在 datagram 头）进收件箱：FIN 标记对端关闭，分片交给 reassembler
+     * 可靠分片违反协议（见 FragmentReassembler）时断开连接：已确认的分片丢掉就补不回来，字节流不能再继续
+     */
+    private void deliver(RefCountedBuffer datagram) {
+        if (closed.get()) {
+            datagram.release();
+            return;
+        }
+        ByteBuffer data = datagram.buffer();
+        int pos = data.position();
+        int flags = UdpReliability.flags(data, pos);
+        int payload = pos + headerLength(data, pos);
+        if ((flags & UdpReliability.FLAG_FIN) != 0) {
+            // 按序排在它之前的 datagram 都已进收件箱
+            peerShutdown = true;
+            datagram.release();
+            return;
+        }
+        if ((flags & UdpReliability.FLAG_FRAGMENT) == 0) {
+            data.position(payload);
+            inbox.offer(datagram);
+            return;
+        }
+        RefCountedBuffer frame;
+        try {
+            frame = reassembler.add(data, payload - FragmentReassembler.FRAGMENT_HEADER_LENGTH,
+                    (flags & UdpReliability.FLAG_RELIABLE) != 0);
+        } catch (IllegalArgumentException e) {
+            dbg("reassembly failed: " + e.getMessage() + ", aborting " + this);
+            abort();
+            return;
+        } finally {
+            datagram.release();
+        }
+        if (frame == null) {
+            return;
+        }
+        if (!isWholeFrames(frame.buffer(), 0)
+                || ((flags & UdpReliability.FLAG_RELIABLE) == 0 && !isBestEffort(frame.buffer(), 0))) {
+            frame.release();
+            dropped++;
+            return;
+        }
+        inbox.offer(frame);
+    }
+
+    private void drainInbox() {
+        if (readFuture == null) {
+            return;
+        }
+        if (closed.get()) {
+            completeRead(-1);
+            return;
+        }
+        if (inbox.isEmpty()) {
+            if (peerShutdown) {
+                completeRead(-1);
+            }
+            return;
+        }
+        ByteBuffer dst = readBuffer;
+        int copied = 0;
+        RefCountedBuffer head;
+        while (dst.hasRemaining() && (head = inbox.peek()) != null) {
+            ByteBuffer src = head.buffer();
+            int n = Math.min(src.remaining(), dst.remaining());
+            dst.put(dst.position(), src, src.position(), n);
+            dst.position(dst.position() + n);
+            src.position(src.position() + n);
+            copied += n;
+            if (!src.hasRemaining()) {
+                inbox.poll().release();
+            }
+        }
+        completeRead(copied);
+    }
+
+    private void completeRead(int n) {
+        CompletableFuture<Integer> future = readFuture;
+        readFuture = null;
+        readBuffer = null;
+        // 先释放 pending 标记，回调里可以立刻发起下一次 receiveAsync
+        readPending.set(false);
+        future.complete(n);
+    }
+
+    private void failPending() {
+        RefCountedBuffer buf;
+        while ((buf = inbox.poll()) != null) {
+            buf.release();
+        }
+        reassembler.clear();
+        splits.clear();
+        if (readFuture != null) {
+            completeRead(-1);
+        }
+    }
+
+    /*=== 帧边界 ===*/
+
+    /**
+     * data 从 offset 到 limit 是否恰好由若干完整帧组成（不移动 position）
+     */
+    static boolean isWholeFrames(ByteBuffer data, int offset) {
+        int limit = data.limit();
+        if (offset >= limit) {
+            return false;
+        }
+        while (offset < limit) {
+            int frame = frameLength(data, offset, limit);
+            if (frame < 0) {
+                return false;
+            }
+            offset += frame;
+        }
+        return true;
+    }
+
+    /**
+     * offset 处 datagram 头的总长度，头不合法时返回 -1
+     */
+    static int headerLength(ByteBuffer data, int offset) {
+        return UdpReliability.headerLength(data, offset);
+    }
+
+    /**
+     * offset 处帧的类型码
+     */
+    static short frameType(ByteBuffer data, int offset) {
+        return data.getShort(offset + Integer.BYTES + Short.BYTES);
+    }
+
+    /**
+     * offset 处整帧的长度（header + body）；header 非法或帧不完整时返回 -1
+     */
+    private static int frameLength(ByteBuffer data, int offset, int limit) {
+        if (limit - offset < PacketHeader.HEADER_LENGTH || data.getInt(offset) != PacketHeader.MAGIC) {
+            return -1;
+        }
+        int length = data.getInt(offset + Integer.BYTES + Short.BYTES + Short.BYTES);
+        if (length < 0 || length > PacketHeader.MAX_BODY_LENGTH
+                || limit - offset - PacketHeader.HEADER_LENGTH < length) {
+            return -1;
+        }
+        return PacketHeader.HEADER_LENGTH + length;
+    }
+
+    @Override
+    public String toString() {
+        return "UdpConnection{" +
+                "id=" + Long.toHexString(connectionId) +
+                ", local=" + transport.getLocalAddress() +
+                ", remote=" + remoteAddress +
+                ", reliable=" + reliability.isEnabled() +
+                ", datagramSize=" + mtu.datagramSize() +
+                '}';
+    }
+}
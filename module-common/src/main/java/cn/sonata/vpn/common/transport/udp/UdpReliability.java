@@ -0,0 +1,659 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.protocol.RttEstimator;
+import cn.sonata.vpn.common.timer.HierarchicalWheelTimer;
+import cn.sonata.vpn.common.timer.Timeout;
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.WritabilityTracker;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UdpConnection 的可靠传输子层：位于 ProtocolFSM 之下、socket 之上，按 PacketType 决定每个帧走哪一类
+ * <p>
+ * - 控制包（HELLO / HELLO_ACK / CLOSE / PING / PONG / WINDOW_UPDATE）总是可靠；
+ *   DATA 默认也可靠（MUX 流与 FLOW 信用丢一个就错位），-Dsonata.udp.reliableData=false 时改为尽力而为，
+ *   适合承载自带重传的 IP 报文
+ * - 一个 datagram 只装同一类的帧，序号按 datagram 编：datagram 是丢失与重传的最小单位，逐帧编号只会多占字节
+ * - 可靠 datagram 带 32 位序号，发出后留在有界重传缓冲区（最多 MAX_IN_FLIGHT 个）直到被确认；
+ *   窗口满时后续 datagram 排队，排队与未确认的字节都计入 writability，上游随之背压
+ * - 接收方回 ACK：累计确认 + 最多 MAX_SACK_RANGES 段 SACK。优先捎带在反方向的 datagram 上，
+ *   否则本轮 IO 处理完后单独发一个只有 ACK 的 datagram（一批 datagram 只回一个 ACK）
+ * - RTO 取自 RttEstimator（RFC 6298；Karn：重传过的 datagram 不采样），超时重传并退避；
+ *   SACK 显示某个空洞之后已有 DUP_THRESHOLD 个 datagram 到达时立即快速重传，不等 RTO；
+ *   连续 MAX_TIMEOUTS 次超时没有任何进展视为对端不可达，关闭连接；
+ *   大于 MIN_DATAGRAM 的 datagram 连续 BLACK_HOLE_TIMEOUTS 次超时、期间没有大 datagram 被确认，
+ *   视为路径 MTU 变小（黑洞），交给 PathMtuProber 退回最小值并撤销退避，当轮重传即按新大小发出。
+ *   超过当前 datagram 大小的重传整体切片发出
+ * - 接收方按序号去重，可靠 datagram 按序交付（乱序到达的在 REORDER_WINDOW 内暂存）；
+ *   尽力而为的 DATA 不占序号、到达即交付，不会被前面丢失的控制包挡住
+ * <p>
+ * -Dsonata.udp.reliable=false 关闭整个子层：所有 datagram 尽力而为，不回 ACK
+ * <p>
+ * datagram 头：[connection id:8][flags:1][seq:4，RELIABLE 时]
+ *             [ACK 块，ACK 时：累计确认:4][SACK 段数:1][段数 × (起始序号:4, 长度:2)]
+ *             [分片头，FRAGMENT 时，见 FragmentReassembler]
+ * SPLIT 标志的 datagram 只有 [connection id:8][flags:1][分片头]，载荷是另一个完整 datagram 的一片（见 UdpConnection.transmitSplit）
+ * PROBE 标志的 datagram 是 PMTU 探测（见 PathMtuProber），PATH 标志的是地址迁移时的路径验证（见 PathValidator），都不经过本子层
+ * <p>
+ * 状态由一把锁保护：发送可在任意线程，ACK / 接收 / 定时器回调在 event loop 上
+ */
+final class UdpReliability {
+
+    static final int FLAG_RELIABLE = 0x01;
+    static final int FLAG_ACK = 0x02;
+    static final int FLAG_FIN = 0x04;
+    static final int FLAG_FRAGMENT = 0x08;
+    static final int FLAG_PROBE = 0x10;
+    static final int FLAG_PATH = 0x20;
+    static final int FLAG_SPLIT = 0x40;
+    private static final int FLAG_MASK = FLAG_RELIABLE | FLAG_ACK | FLAG_FIN | FLAG_FRAGMENT | FLAG_PROBE | FLAG_PATH
+            | FLAG_SPLIT;
+
+    /** datagram 头的固定部分：connection id + flags */
+    static final int BASE_HEADER_LENGTH = Long.BYTES + 1;
+    static final int MAX_SACK_RANGES = 4;
+    private static final int SACK_RANGE_LENGTH = Integer.BYTES + Short.BYTES;
+    private static final int MAX_ACK_LENGTH = Integer.BYTES + 1 + MAX_SACK_RANGES * SACK_RANGE_LENGTH;
+    /** datagram 头的最大长度，发送方在帧前预留这么多 */
+    static final int MAX_HEADER_LENGTH = BASE_HEADER_LENGTH + Integer.BYTES + MAX_ACK_LENGTH
+            + FragmentReassembler.FRAGMENT_HEADER_LENGTH;
+
+    // 重传缓冲区与乱序暂存的容量（datagram 个数，2 的幂）
+    static final int MAX_IN_FLIGHT = 128;
+    static final int REORDER_WINDOW = MAX_IN_FLIGHT;
+    private static final int MASK = MAX_IN_FLIGHT - 1;
+    // 空洞之后到达这么多个 datagram 即快速重传
+    private static final int DUP_THRESHOLD = 3;
+    private static final int MAX_TIMEOUTS = 8;
+    // 大于 MIN_DATAGRAM 的 datagram 连续这么多次超时即视为 PMTU 黑洞
+    private static final int BLACK_HOLE_TIMEOUTS = 3;
+
+    static final boolean DEFAULT_ENABLED = !"false".equalsIgnoreCase(System.getProperty("sonata.udp.reliable"));
+    static final boolean DEFAULT_RELIABLE_DATA = !"false".equalsIgnoreCase(System.getProperty("sonata.udp.reliableData"));
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.udp=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.udp");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[udp] " + msg);
+        }
+    }
+
+    /**
+     * 一个可靠 datagram：owner 被 retain 到确认或关闭为止
+     */
+    private static final class Outgoing {
+        final int seq;
+        final RefCountedBuffer owner;
+        // 完整 datagram（含头），index 0 为 connection id
+        final ByteBuffer datagram;
+        final CompletableFuture<Integer> firstSend = new CompletableFuture<>();
+        long sentAt;
+        int transmissions;
+        boolean fastRetransmitted;
+
+        Outgoing(int seq, RefCountedBuffer owner, ByteBuffer datagram) {
+            this.seq = seq;
+            this.owner = owner;
+            this.datagram = datagram;
+        }
+    }
+
+    private final UdpConnection connection;
+    private final NioEventLoop eventLoop;
+    private final WritabilityTracker writability;
+    private final boolean enabled;
+    private final boolean reliableData;
+    private final RttEstimator rtt = new RttEstimator();
+
+    /*=== 发送方向 ===*/
+    // 下一个分配的序号
+    private int nextSeq = 0;
+    // 最小的未确认序号；[sndUna, sndNxt) 在 inFlight 中，[sndNxt, nextSeq) 在 backlog 中
+    private int sndUna = 0;
+    private int sndNxt = 0;
+    private final Outgoing[] inFlight = new Outgoing[MAX_IN_FLIGHT];
+    private final ArrayDeque<Outgoing> backlog = new ArrayDeque<>();
+    private Timeout rtoTimer;
+    private int timeouts = 0;
+    private int largeTimeouts = 0;
+    private CompletableFuture<Void> drained;
+
+    /*=== 接收方向 ===*/
+    // 下一个按序交付的序号，即累计确认
+    private int rcvNext = 0;
+    private final RefCountedBuffer[] reorder = new RefCountedBuffer[REORDER_WINDOW];
+    private int buffered = 0;
+    private boolean ackPending = false;
+    private boolean ackScheduled = false;
+    // 本次 ACK 块的 SACK 段（collectSackRanges 填充）
+    private final int[] sackStarts = new int[MAX_SACK_RANGES];
+    private final int[] sackLengths = new int[MAX_SACK_RANGES];
+
+    private boolean closed = false;
+    private long retransmits = 0;
+    private long duplicates = 0;
+
+    UdpReliability(UdpConnection connection, NioEventLoop eventLoop, WritabilityTracker writability) {
+        this(connection, eventLoop, writability, DEFAULT_ENABLED, DEFAULT_RELIABLE_DATA);
+    }
+
+    UdpReliability(UdpConnection connection, NioEventLoop eventLoop, WritabilityTracker writability,
+                   boolean enabled, boolean reliableData) {
+        this.connection = connection;
+        this.eventLoop = eventLoop;
+        this.writability = writability;
+        this.enabled = enabled;
+        this.reliableData = reliableData;
+    }
+
+    /**
+     * 该类型的帧是否走可靠通道
+     */
+    boolean isReliable(short type) {
+        return enabled && (reliableData || type != PacketType.DATA.getCode());
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    RttEstimator rtt() {
+        return rtt;
+    }
+
+    synchronized long retransmits() {
+        return retransmits;
+    }
+
+    synchronized long duplicates() {
+        return duplicates;
+    }
+
+    /*=== 发送 ===*/
+
+    /**
+     * 在帧前写 datagram 头并发出（connection id 在每次发出时由 UdpConnection.transmit 填写）
+     * @param owner buf 所属的池化 buffer，可靠 datagram 在确认前额外 retain
+     * @param buf 帧位于 [payloadStart, payloadEnd)，payloadStart 前至少留出 MAX_HEADER_LENGTH；
+     *            分片时 payloadStart 指向调用方已写好的分片头
+     * @param reliable 是否占序号、等待确认（未启用子层时忽略）
+     * @param extraFlags FLAG_FIN（没有帧）或 FLAG_FRAGMENT，其余为 0
+     * @return 首次交给内核时完成
+     * @throws TransportException 尽力而为的 datagram 发送失败（transport 已关闭）
+     */
+    synchronized CompletableFuture<Integer> send(RefCountedBuffer owner, ByteBuffer buf, int payloadStart,
+                                                 int payloadEnd, boolean reliable, int extraFlags)
+            throws TransportException {
+        reliable &= enabled;
+        boolean queued = reliable && (!backlog.isEmpty() || sndNxt - sndUna >= MAX_IN_FLIGHT);
+        // 进了 backlog 的 datagram 不知何时发出，ACK 不捎带在它上面
+        boolean ack = ackPending && !queued && !closed;
+        int ranges = ack ? collectSackRanges() : 0;
+        int headerLength = BASE_HEADER_LENGTH + (reliable ? Integer.BYTES : 0)
+                + (ack ? Integer.BYTES + 1 + ranges * SACK_RANGE_LENGTH : 0);
+        int start = payloadStart - headerLength;
+        int flags = (reliable ? FLAG_RELIABLE : 0) | (ack ? FLAG_ACK : 0) | extraFlags;
+        buf.put(start + Long.BYTES, (byte) flags);
+        int offset = start + BASE_HEADER_LENGTH;
+        if (reliable) {
+            buf.putInt(offset, nextSeq);
+            offset += Integer.BYTES;
+        }
+        if (ack) {
+            writeAck(buf, offset, ranges);
+        }
+        ByteBuffer datagram = buf.slice(start, payloadEnd - start);
+        if (!reliable) {
+            return connection.transmit(datagram);
+        }
+        if (closed) {
+            return CompletableFuture.failedFuture(new TransportException("udp send exception: connection closed"));
+        }
+
+        Outgoing out = new Outgoing(nextSeq++, owner.retain(), datagram);
+        writability.incr(datagram.remaining());
+        if (queued) {
+            backlog.offer(out);
+        } else {
+            place(out);
+        }
+        return out.firstSend;
+    }
+
+    /**
+     * 放入重传缓冲区并首次发出
+     */
+    private void place(Outgoing out) {
+        inFlight[out.seq & MASK] = out;
+        sndNxt = out.seq + 1;
+        transmit(out, System.nanoTime());
+        if (rtoTimer == null) {
+            armTimer(rtt.getRtoNanos());
+        }
+    }
+
+    private void transmit(Outgoing out, long now) {
+        out.sentAt = now;
+        out.transmissions++;
+        // 每次发出都 retain：datagram 仍在 transport 队列里时 owner 不会被确认或关闭回收
+        out.owner.retain();
+        try {
+            // 组包之后路径 MTU 变小了：整体切片发出
+            CompletableFuture<Integer> sent = out.datagram.remaining() > connection.getDatagramSize()
+                    ? connection.transmitSplit(out.datagram)
+                    : connection.transmit(out.datagram);
+            sent.whenComplete((n, error) -> {
+                out.owner.release();
+                if (error == null) {
+                    out.firstSend.complete(n);
+                } else {
+                    out.firstSend.completeExceptionally(error);
+                }
+            });
+        } catch (TransportException e) {
+            out.owner.release();
+            out.firstSend.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 所有可靠 datagram（含 FIN）都被确认时完成；关闭时也完成
+     */
+    synchronized CompletableFuture<Void> drained() {
+        if (closed || sndUna == nextSeq) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (drained == null) {
+            drained = new CompletableFuture<>();
+        }
+        return drained;
+    }
+
+    /*=== 确认 ===*/
+
+    /**
+     * 处理对端的 ACK 块（loop 线程）
+     * @param offset ACK 块在 data 中的绝对位置，已由 headerLength 校验过长度
+     */
+    synchronized void onAck(ByteBuffer data, int offset) {
+        if (closed) {
+            return;
+        }
+        int cumulative = data.getInt(offset);
+        int count = data.get(offset + Integer.BYTES) & 0xFF;
+        // 确认了尚未发出的序号：伪造或错乱的 ACK，整个忽略
+        if (cumulative - sndNxt > 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long sentAt = Long.MIN_VALUE;
+        boolean progress = false;
+
+        for (int seq = sndUna; seq - cumulative < 0; seq++) {
+            Outgoing out = inFlight[seq & MASK];
+            if (out != null) {
+                sentAt = Math.max(sentAt, acked(out));
+                progress = true;
+            }
+        }
+        int highest = cumulative - 1;
+        int pos = offset + Integer.BYTES + 1;
+        for (int i = 0; i < count; i++, pos += SACK_RANGE_LENGTH) {
+            int start = data.getInt(pos);
+            int end = start + (data.getShort(pos + Integer.BYTES) & 0xFFFF);
+            // 只看与 [sndUna, sndNxt) 相交的部分
+            if (start - sndUna < 0) {
+                start = sndUna;
+            }
+            if (end - sndNxt > 0) {
+                end = sndNxt;
+            }
+            for (int seq = start; seq - end < 0; seq++) {
+                Outgoing out = inFlight[seq & MASK];
+                if (out != null) {
+                    sentAt = Math.max(sentAt, acked(out));
+                    progress = true;
+                }
+                if (seq - highest > 0) {
+                    highest = seq;
+                }
+            }
+        }
+        while (sndUna != sndNxt && inFlight[sndUna & MASK] == null) {
+            sndUna++;
+        }
+
+        // 空洞之后已有 DUP_THRESHOLD 个到达：不等 RTO，每个空洞快速重传一次
+        for (int seq = sndUna; highest - seq >= DUP_THRESHOLD; seq++) {
+            Outgoing out = inFlight[seq & MASK];
+            if (out != null && !out.fastRetransmitted) {
+                out.fastRetransmitted = true;
+                retransmits++;
+                if (DEBUG) dbg("fast retransmit seq=" + seq + " " + connection);
+                transmit(out, now);
+            }
+        }
+
+        if (!progress) {
+            return;
+        }
+        timeouts = 0;
+        if (sentAt != Long.MIN_VALUE) {
+            rtt.update(now - sentAt);
+        }
+        while (!backlog.isEmpty() && sndNxt - sndUna < MAX_IN_FLIGHT) {
+            place(backlog.poll());
+        }
+        if (sndUna == nextSeq && drained != null) {
+            drained.complete(null);
+            drained = null;
+        }
+    }
+
+    /**
+     * 移出重传缓冲区
+     * @return 只发过一次的 datagram 返回发出时刻（RTT 样本），重传过的返回 Long.MIN_VALUE
+     */
+    private long acked(Outgoing out) {
+        inFlight[out.seq & MASK] = null;
+        if (out.datagram.remaining() > PathMtuProber.MIN_DATAGRAM) {
+            largeTimeouts = 0;
+        }
+        writability.decr(out.datagram.remaining());
+        out.owner.release();
+        return out.transmissions == 1 ? out.sentAt : Long.MIN_VALUE;
+    }
+
+    /*=== 重传定时器 ===*/
+
+    private void armTimer(long delayNanos) {
+        rtoTimer = HierarchicalWheelTimer.shared().schedule(() -> eventLoop.execute(this::onTimer),
+                delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void onTimer() {
+        boolean failed = false;
+        boolean blackHole = false;
+        synchronized (this) {
+            rtoTimer = null;
+            if (closed || sndUna == sndNxt) {
+                return;
+            }
+            long now = System.nanoTime();
+            long rto = rtt.getRtoNanos();
+            boolean expired = false;
+            boolean large = false;
+            for (int seq = sndUna; seq != sndNxt; seq++) {
+                Outgoing out = inFlight[seq & MASK];
+                if (out != null && now - out.sentAt >= rto) {
+                    expired = true;
+                    large |= out.datagram.remaining() > PathMtuProber.MIN_DATAGRAM;
+                }
+            }
+            if (expired) {
+                // 已经退到最小 datagram 时大 datagram 超时只是丢包
+                blackHole = large && connection.getDatagramSize() > PathMtuProber.MIN_DATAGRAM
+                        && ++largeTimeouts == BLACK_HOLE_TIMEOUTS;
+                if (blackHole) {
+                    // 先退回最小 datagram，本轮重传就按新大小切片发出，不再多等一个 RTO；
+                    // 此前的超时是尺寸造成的，撤销退避，超时计数也重新开始
+                    connection.onBlackHole();
+                    rtt.resetBackoff();
+                    timeouts = 0;
+                    largeTimeouts = 0;
+                } else {
+                    rtt.backoff();
+                    failed = ++timeouts > MAX_TIMEOUTS;
+                }
+            }
+            long next = Math.min(rto, rtt.getRtoNanos());
+            for (int seq = sndUna; seq != sndNxt; seq++) {
+                Outgoing out = inFlight[seq & MASK];
+                if (out == null) {
+                    continue;
+                }
+                long age = now - out.sentAt;
+                if (age >= rto) {
+                    retransmits++;
+                    transmit(out, now);
+                } else {
+                    next = Math.min(next, rto - age);
+                }
+            }
+            if (expired) {
+                if (DEBUG) dbg("rto expired, retransmit from seq=" + sndUna + ", rto=" + rtt.getRtoNanos() / 1_000_000
+                        + "ms, timeouts=" + timeouts + (blackHole ? ", black hole " : " ") + connection);
+            }
+            if (!failed) {
+                armTimer(next);
+            }
+        }
+        if (failed) {
+            dbg("peer unreachable after " + MAX_TIMEOUTS + " timeouts, closing " + connection);
+            connection.abort();
+        }
+    }
+
+    /*=== 接收 ===*/
+
+    /**
+     * 可靠 datagram 到达（loop 线程）：去重、暂存乱序，按序可交付的依次放进 ready（已 retain）
+     * @param room 收件箱是否还有空间；没有时新 datagram 不登记也不确认，由对端重传
+     */
+    synchronized void receive(int seq, RefCountedBuffer datagram, boolean room, List<RefCountedBuffer> ready) {
+        if (closed) {
+            return;
+        }
+        int offset = seq - rcvNext;
+        if (offset < 0 || (offset < REORDER_WINDOW && reorder[seq & MASK] != null)) {
+            // 重复：多半是 ACK 丢了，再确认一次
+            duplicates++;
+            scheduleAck();
+            return;
+        }
+        if (offset >= REORDER_WINDOW || !room) {
+            return;
+        }
+        scheduleAck();
+        if (offset > 0) {
+            reorder[seq & MASK] = datagram.retain();
+            buffered++;
+            return;
+        }
+        ready.add(datagram.retain());
+        rcvNext++;
+        RefCountedBuffer next;
+        while (buffered > 0 && (next = reorder[rcvNext & MASK]) != null) {
+            reorder[rcvNext & MASK] = null;
+            buffered--;
+            ready.add(next);
+            rcvNext++;
+        }
+    }
+
+    private void scheduleAck() {
+        ackPending = true;
+        if (!ackScheduled) {
+            ackScheduled = true;
+            // 排在本轮 IO 之后：这一批 datagram 只回一个 ACK，期间有反向 datagram 则直接捎带
+            eventLoop.execute(this::flushAck);
+        }
+    }
+
+    /**
+     * 还没被捎带出去的 ACK 单独发一个 datagram
+     */
+    synchronized void flushAck() {
+        ackScheduled = false;
+        if (!ackPending || closed) {
+            return;
+        }
+        int ranges = collectSackRanges();
+        int length = BASE_HEADER_LENGTH + Integer.BYTES + 1 + ranges * SACK_RANGE_LENGTH;
+        RefCountedBuffer owner = BufferPool.direct().acquire(length);
+        ByteBuffer buf = owner.buffer();
+        buf.clear();
+        buf.put(Long.BYTES, (byte) FLAG_ACK);
+        writeAck(buf, BASE_HEADER_LENGTH, ranges);
+        try {
+            connection.transmit(buf.slice(0, length)).whenComplete((n, error) -> owner.release());
+        } catch (TransportException e) {
+            owner.release();
+        }
+    }
+
+    private void writeAck(ByteBuffer buf, int offset, int ranges) {
+        buf.putInt(offset, rcvNext);
+        buf.put(offset + Integer.BYTES, (byte) ranges);
+        int pos = offset + Integer.BYTES + 1;
+        for (int i = 0; i < ranges; i++, pos += SACK_RANGE_LENGTH) {
+            buf.putInt(pos, sackStarts[i]);
+            buf.putShort(pos + Integer.BYTES, (short) sackLengths[i]);
+        }
+        ackPending = false;
+    }
+
+    /**
+     * 从乱序暂存区收集 rcvNext 之后已收到的连续段，最多 MAX_SACK_RANGES 段
+     */
+    private int collectSackRanges() {
+        int ranges = 0;
+        int remaining = buffered;
+        for (int i = 1; i < REORDER_WINDOW && remaining > 0 && ranges < MAX_SACK_RANGES; i++) {
+            if (reorder[(rcvNext + i) & MASK] == null) {
+                continue;
+            }
+            int start = rcvNext + i;
+            int length = 0;
+            while (i < REORDER_WINDOW && reorder[(rcvNext + i) & MASK] != null) {
+                length++;
+                i++;
+            }
+            sackStarts[ranges] = start;
+            sackLengths[ranges] = length;
+            ranges++;
+            remaining -= length;
+        }
+        return ranges;
+    }
+
+    /*=== 关闭 ===*/
+
+    /**
+     * 先把欠对端的 ACK 发掉（对端不必为已经到达的 CLOSE / FIN 白白重传），再释放两个方向上持有的 buffer
+     */
+    void close() {
+        flushAck();
+        CompletableFuture<Void> waiting;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (rtoTimer != null) {
+                rtoTimer.cancel();
+                rtoTimer = null;
+            }
+            TransportException error = new TransportException("udp send exception: connection closed");
+            for (int seq = sndUna; seq != sndNxt; seq++) {
+                Outgoing out = inFlight[seq & MASK];
+                if (out != null) {
+                    acked(out);
+                    out.firstSend.completeExceptionally(error);
+                }
+            }
+            Outgoing out;
+            while ((out = backlog.poll()) != null) {
+                writability.decr(out.datagram.remaining());
+                out.owner.release();
+                out.firstSend.completeExceptionally(error);
+            }
+            sndUna = sndNxt = nextSeq;
+            for (int i = 0; i < REORDER_WINDOW; i++) {
+                if (reorder[i] != null) {
+                    reorder[i].release();
+                    reorder[i] = null;
+                }
+            }
+            buffered = 0;
+            waiting = drained;
+            drained = null;
+        }
+        if (waiting != null) {
+            waiting.complete(null);
+        }
+    }
+
+    /*=== datagram 头 ===*/
+
+    /**
+     * offset 处 datagram 头的总长度（含分片头）；头不完整、含未知 flag 或 SACK 段数超限时返回 -1
+     */
+    static int headerLength(ByteBuffer data, int offset) {
+        int available = data.limit() - offset;
+        if (available < BASE_HEADER_LENGTH) {
+            return -1;
+        }
+        int flags = data.get(offset + Long.BYTES);
+        if ((flags & ~FLAG_MASK) != 0) {
+            return -1;
+        }
+        int length = BASE_HEADER_LENGTH + ((flags & FLAG_RELIABLE) != 0 ? Integer.BYTES : 0);
+        if ((flags & FLAG_ACK) != 0) {
+            if (available < length + Integer.BYTES + 1) {
+                return -1;
+            }
+            int count = data.get(offset + length + Integer.BYTES) & 0xFF;
+            if (count > MAX_SACK_RANGES) {
+                return -1;
+            }
+            length += Integer.BYTES + 1 + count * SACK_RANGE_LENGTH;
+        }
+        if ((flags & (FLAG_FRAGMENT | FLAG_SPLIT)) != 0) {
+            length += FragmentReassembler.FRAGMENT_HEADER_LENGTH;
+        }
+        return available < length ? -1 : length;
+    }
+
+    static int flags(ByteBuffer data, int offset) {
+        return data.get(offset + Long.BYTES);
+    }
+
+    /**
+     * 可靠 datagram 的序号
+     */
+    static int sequence(ByteBuffer data, int offset) {
+        return data.getInt(offset + BASE_HEADER_LENGTH);
+    }
+
+    /**
+     * ACK 块的绝对位置
+     */
+    static int ackOffset(int flags, int offset) {
+        return offset + BASE_HEADER_LENGTH + ((flags & FLAG_RELIABLE) != 0 ? Integer.BYTES : 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UdpReliability{" +
+                "enabled=" + enabled +
+                ", reliableData=" + reliableData +
+                ", inFlight=" + (sndNxt - sndUna) +
+                ", backlog=" + backlog.size() +
+                ", retransmits=" + retransmits +
+                ", duplicates=" + duplicates +
+                ", " + rtt +
+                '}';
+    }
+}
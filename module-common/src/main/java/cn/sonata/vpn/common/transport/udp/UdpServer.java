@@ -0,0 +1,219 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+import cn.sonata.vpn.common.transport.tcp.TcpServer;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * datagram 模式的 TcpServer：一个 UDP socket 服务全部 client
+ * <p>
+ * - 所有 client 共用一个 SelectorUdpTransport，不为每个 client 占用 fd，也没有 accept 握手
+ * - 收到的 datagram 按 connection id（握手之后）或源地址（握手期间 id 为 0）在 ConcurrentHashMap 中
+ *   查到对应的 UdpConnection，O(1)、无全局锁
+ * - id 为 0 的未知源地址只有首帧为 HELLO 时才建立新连接，分配随机 connection id，经 accept() 交给上层
+ *   （SessionRegistry 照常为它建 session），其余直接丢弃，不会被随手发来的 datagram 撑出 session
+ * - 已知 id 从新地址到达：datagram 中的记录经该 session 认证后照常交付，新地址通过路径验证后连接迁移过去，
+ *   路由表随之更新（见 UdpConnection.migrate）
+ * - 连接关闭时从路由表移除
+ * <p>
+ * 全部 IO 与 session 回调都在同一个 event loop 上执行
+ */
+public class UdpServer implements TcpServer {
+
+    // 尚未被 accept() 取走的新连接上限，超出时新 client 的 HELLO 被丢弃（对端会重试或超时）
+    private static final int MAX_PENDING_ACCEPT = 1024;
+
+    // 关闭时塞进 accepted 队列，唤醒阻塞在 accept() 上的线程
+    private static final UdpConnection CLOSED = new UdpConnection(null, null, false, null, 0L, 0, null);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final NioEventLoop eventLoop;
+    private final boolean ownsLoop;
+    private SelectorUdpTransport transport;
+
+    private final ConcurrentMap<InetSocketAddress, UdpConnection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, UdpConnection> byId = new ConcurrentHashMap<>();
+    private final BlockingQueue<UdpConnection> accepted = new LinkedBlockingQueue<>(MAX_PENDING_ACCEPT);
+    private volatile boolean closed = false;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.udp=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.udp");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[udp] " + msg);
+        }
+    }
+
+    /**
+     * 自建一个 event loop，close() 时一并关闭
+     */
+    public UdpServer() throws TransportException {
+        this(NioEventLoop.create("udp-io"), true);
+    }
+
+    /**
+     * 共享外部 event loop，close() 时不会关闭它
+     */
+    public UdpServer(NioEventLoop eventLoop) {
+        this(eventLoop, false);
+    }
+
+    private UdpServer(NioEventLoop eventLoop, boolean ownsLoop) {
+        this.eventLoop = eventLoop;
+        this.ownsLoop = ownsLoop;
+    }
+
+    public NioEventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return transport == null ? null : transport.getLocalAddress();
+    }
+
+    /**
+     * 当前活跃的 client 数
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    @Override
+    public void bind(SocketAddress endpoint) throws TransportException {
+        if (transport != null) {
+            throw new TransportException("udp server already bound exception");
+        }
+        // 接收槽按路径 MTU 上限分配，见 UdpConnection
+        transport = SelectorUdpTransport.create((InetSocketAddress) endpoint, eventLoop, this::onDatagrams,
+                SelectorUdpTransport.DEFAULT_RING_SIZE, PathMtuProber.maxDatagram());
+    }
+
+    /**
+     * 阻塞等待新 client（首个 HELLO datagram 到达）
+     * @return UdpConnection，该 client 的后续 datagram 已在其收件箱中排队
+     * @throws TransportException 未绑定、已关闭或等待被中断
+     */
+    @Override
+    public TcpConnection accept() throws TransportException {
+        if (transport == null) {
+            throw new TransportException("server not bound exception");
+        }
+        try {
+            UdpConnection connection = accepted.take();
+            if (connection == CLOSED) {
+                accepted.offer(CLOSED);
+                throw new TransportException("udp server closed exception");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransportException("udp server accept exception", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (UdpConnection connection : byId.values()) {
+            try {
+                connection.closeAsync();
+            } catch (TransportException ignore) {
+            }
+        }
+        if (transport != null) {
+            transport.close();
+        }
+        accepted.clear();
+        accepted.offer(CLOSED);
+        if (ownsLoop) {
+            eventLoop.close();
+        }
+    }
+
+    /*=== loop 线程 ===*/
+
+    private void onDatagrams(SelectorUdpTransport.DatagramBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            InetSocketAddress sender = batch.sender(i);
+            ByteBuffer data = batch.data(i);
+            if (data.remaining() < UdpConnection.HEADER_LENGTH) {
+                continue;
+            }
+            long id = data.getLong(data.position());
+            UdpConnection connection = id == 0 ? connections.get(sender) : byId.get(id);
+            if (connection == null) {
+                if (id != 0 || (connection = open(sender, data)) == null) {
+                    if (DEBUG) dbg("stray datagram from " + sender + " dropped, id=" + Long.toHexString(id));
+                    continue;
+                }
+            } else if (!sender.equals(connection.getRemoteAddress())) {
+                InetSocketAddress previous = (InetSocketAddress) connection.getRemoteAddress();
+                boolean accepted = id != 0 && connection.migrate(sender, data);
+                if (sender.equals(connection.getRemoteAddress())) {
+                    // 路径验证完成，已切换到新地址
+                    connections.remove(previous, connection);
+                    connections.put(sender, connection);
+                }
+                if (!accepted) {
+                    if (DEBUG) dbg("datagram for " + Long.toHexString(id) + " from unvalidated " + sender + " not delivered");
+                    continue;
+                }
+            }
+            connection.onDatagram(batch.buffer(i));
+        }
+    }
+
+    private UdpConnection open(InetSocketAddress sender, ByteBuffer data) {
+        int header = UdpConnection.headerLength(data, data.position());
+        int start = data.position() + header;
+        if (closed || header < 0 || !UdpConnection.isWholeFrames(data, start)
+                || UdpConnection.frameType(data, start) != PacketType.HELLO.getCode()) {
+            return null;
+        }
+        long id;
+        UdpConnection connection;
+        do {
+            id = RANDOM.nextLong();
+            connection = new UdpConnection(eventLoop, transport, false, sender, id,
+                    PathMtuProber.maxDatagram(), this::onClosed);
+        } while (id == 0 || byId.putIfAbsent(id, connection) != null);
+        if (!accepted.offer(connection)) {
+            byId.remove(id, connection);
+            dbg("accept backlog full, HELLO from " + sender + " dropped");
+            return null;
+        }
+        connections.put(sender, connection);
+        dbg("new client " + sender + ", id=" + Long.toHexString(id) + ", active=" + connections.size());
+        return connection;
+    }
+
+    private void onClosed(UdpConnection connection) {
+        byId.remove(connection.getConnectionId(), connection);
+        connections.remove((InetSocketAddress) connection.getRemoteAddress(), connection);
+        dbg("client " + connection.getRemoteAddress() + " closed, active=" + byId.size());
+    }
+
+    @Override
+    public String toString() {
+        return "UdpServer{" +
+                "local=" + getLocalAddress() +
+                ", clients=" + byId.size() +
+                '}';
+    }
+}
@@ -0,0 +1,118 @@
+package cn.sonata.vpn.common.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplayWindowTest {
+
+    // 位图环的总位数（WINDOW_SIZE 之外还有 top 所在的一个字）
+    private static final int RING_BITS = ReplayWindow.WINDOW_SIZE + Long.SIZE;
+
+    @Test
+    void acceptsInOrderAndRejectsReplay() {
+        ReplayWindow window = new ReplayWindow();
+        assertEquals(-1, window.top());
+        for (long seq = 0; seq < 200; seq++) {
+            assertTrue(window.accept(seq), "seq " + seq);
+        }
+        assertEquals(199, window.top());
+        for (long seq = 0; seq < 200; seq++) {
+            assertFalse(window.isFresh(seq), "replayed seq " + seq);
+            assertFalse(window.accept(seq), "replayed seq " + seq);
+        }
+        assertEquals(199, window.top());
+    }
+
+    @Test
+    void rejectsNegativeSequence() {
+        ReplayWindow window = new ReplayWindow();
+        assertFalse(window.isFresh(-1));
+        assertFalse(window.accept(-1));
+        assertEquals(-1, window.top());
+    }
+
+    @Test
+    void isFreshDoesNotRecord() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.isFresh(7));
+        assertTrue(window.isFresh(7));
+        assertEquals(-1, window.top());
+        assertTrue(window.accept(7));
+        assertFalse(window.isFresh(7));
+    }
+
+    @Test
+    void acceptsOutOfOrderWithinWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(100));
+        assertTrue(window.accept(40));
+        assertTrue(window.accept(99));
+        assertFalse(window.accept(40));
+        assertFalse(window.accept(99));
+        // 中间没见过的序号仍然可以接受
+        assertTrue(window.isFresh(41));
+        assertTrue(window.accept(41));
+        assertEquals(100, window.top());
+    }
+
+    @Test
+    void windowEdge() {
+        ReplayWindow window = new ReplayWindow();
+        long top = 10 * ReplayWindow.WINDOW_SIZE + 17;
+        assertTrue(window.accept(top));
+        // 窗口内最旧的一个可以判断
+        long oldest = top - ReplayWindow.WINDOW_SIZE + 1;
+        assertTrue(window.isFresh(oldest));
+        assertTrue(window.accept(oldest));
+        assertFalse(window.accept(oldest));
+        // 再旧一个就在窗口之外，一律拒绝
+        assertFalse(window.isFresh(top - ReplayWindow.WINDOW_SIZE));
+        assertFalse(window.accept(top - ReplayWindow.WINDOW_SIZE));
+        assertFalse(window.accept(0));
+    }
+
+    @Test
+    void slidesAcrossRingBoundary() {
+        ReplayWindow window = new ReplayWindow();
+        // 逐个前移绕环三圈：每个字被清空、复用多次
+        long end = 3L * RING_BITS + 5;
+        for (long seq = 0; seq <= end; seq++) {
+            assertTrue(window.accept(seq), "seq " + seq);
+        }
+        for (long seq = end - ReplayWindow.WINDOW_SIZE + 1; seq <= end; seq++) {
+            assertFalse(window.isFresh(seq), "replayed seq " + seq);
+        }
+        assertFalse(window.isFresh(end - ReplayWindow.WINDOW_SIZE));
+        assertTrue(window.accept(end + 1));
+    }
+
+    @Test
+    void jumpClearsReusedWords() {
+        ReplayWindow window = new ReplayWindow();
+        for (long seq = 0; seq < Long.SIZE; seq++) {
+            assertTrue(window.accept(seq));
+        }
+        // 跳过好几圈：新 top 的前一个字与序号 0..63 落在环上同一个字，旧位必须已被清掉
+        long top = 5L * RING_BITS + Long.SIZE + 5;
+        assertTrue(window.accept(top));
+        long sameWord = top - Long.SIZE;
+        assertEquals(0, (sameWord % RING_BITS) / Long.SIZE);
+        assertTrue(window.isFresh(sameWord));
+        assertTrue(window.accept(sameWord));
+        assertFalse(window.accept(sameWord));
+    }
+
+    @Test
+    void jumpWithinRingKeepsRecentBits() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(1000));
+        // 前移不到一整圈：仍在窗口内的已见序号不能因清字而被重新接受
+        assertTrue(window.accept(1000 + ReplayWindow.WINDOW_SIZE - 1));
+        assertFalse(window.accept(1000));
+        assertTrue(window.accept(1000 + ReplayWindow.WINDOW_SIZE));
+        assertFalse(window.isFresh(1000));
+    }
+}
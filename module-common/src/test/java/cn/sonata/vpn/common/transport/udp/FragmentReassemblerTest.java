@@ -0,0 +1,218 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.packet.PacketHeader;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FragmentReassemblerTest {
+
+    // 允许的最小 budget：恰好一个最大帧
+    private static final int MIN_BUDGET = PacketHeader.HEADER_LENGTH + PacketHeader.MAX_BODY_LENGTH;
+
+    private final Random random = new Random(1);
+
+    @Test
+    void chunksCoverFrame() {
+        assertEquals(4, FragmentReassembler.chunk(10, 3));
+        assertEquals(5, FragmentReassembler.chunk(10, 2));
+        for (int count = 2; count <= FragmentReassembler.MAX_FRAGMENTS; count++) {
+            int total = 1000 + count;
+            int sum = 0;
+            for (int index = 0; index < count; index++) {
+                ByteBuffer fragment = fragment(7, index, count, new byte[total]);
+                assertTrue(FragmentReassembler.isValid(fragment, 0), "count " + count + " index " + index);
+                sum += fragment.remaining() - FragmentReassembler.FRAGMENT_HEADER_LENGTH;
+            }
+            assertEquals(total, sum);
+        }
+    }
+
+    @Test
+    void rejectsInconsistentHeader() {
+        byte[] frame = new byte[10];
+        ByteBuffer fragment = fragment(1, 2, 3, frame);
+        // 最后一片应为 2 字节
+        fragment.limit(fragment.limit() - 1);
+        assertFalse(FragmentReassembler.isValid(fragment, 0));
+
+        ByteBuffer single = fragment(1, 0, 3, frame);
+        FragmentReassembler.writeHeader(single, 0, 1, 0, 1, frame.length);
+        assertFalse(FragmentReassembler.isValid(single, 0));
+
+        ByteBuffer outOfRange = fragment(1, 0, 3, frame);
+        FragmentReassembler.writeHeader(outOfRange, 0, 1, 3, 3, frame.length);
+        assertFalse(FragmentReassembler.isValid(outOfRange, 0));
+
+        ByteBuffer tooMany = fragment(1, 0, 3, frame);
+        FragmentReassembler.writeHeader(tooMany, 0, 1, 0, FragmentReassembler.MAX_FRAGMENTS + 1, frame.length);
+        assertFalse(FragmentReassembler.isValid(tooMany, 0));
+    }
+
+    @Test
+    void reassemblesOutOfOrder() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] frame = frame(1000);
+        assertNull(reassembler.add(fragment(3, 2, 3, frame), 0));
+        assertNull(reassembler.add(fragment(3, 0, 3, frame), 0));
+        // 重复的分片不计数
+        assertNull(reassembler.add(fragment(3, 0, 3, frame), 0));
+        assertFrame(frame, reassembler.add(fragment(3, 1, 3, frame), 0));
+        assertEquals(0, reassembler.discarded());
+    }
+
+    @Test
+    void reassemblesMaxFragments() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        int count = FragmentReassembler.MAX_FRAGMENTS;
+        byte[] frame = frame(count * 100 + 1);
+        for (int index = count - 1; index > 0; index--) {
+            assertNull(reassembler.add(fragment(9, index, count, frame), 0, true));
+        }
+        assertFrame(frame, reassembler.add(fragment(9, 0, count, frame), 0, true));
+    }
+
+    @Test
+    void evictsOldestBestEffortOverBudget() {
+        FragmentReassembler reassembler = new FragmentReassembler(MIN_BUDGET);
+        byte[] first = frame(MIN_BUDGET / 2);
+        byte[] second = frame(MIN_BUDGET / 2);
+        byte[] third = frame(MIN_BUDGET / 2);
+        assertNull(reassembler.add(fragment(1, 0, 2, first), 0));
+        assertNull(reassembler.add(fragment(2, 0, 2, second), 0));
+        // 放不下第三个：挤出最早开始的 1
+        assertNull(reassembler.add(fragment(3, 0, 2, third), 0));
+        assertEquals(1, reassembler.discarded());
+        assertFrame(second, reassembler.add(fragment(2, 1, 2, second), 0));
+        assertFrame(third, reassembler.add(fragment(3, 1, 2, third), 0));
+        // 1 的后一片重新开始一个帧，等不到前一片
+        assertNull(reassembler.add(fragment(1, 1, 2, first), 0));
+        reassembler.clear();
+    }
+
+    @Test
+    void reliablePartialIsNotEvicted() {
+        FragmentReassembler reassembler = new FragmentReassembler(MIN_BUDGET);
+        byte[] reliable = frame(MIN_BUDGET / 2 + 1);
+        byte[] bestEffort = frame(MIN_BUDGET / 2);
+        assertNull(reassembler.add(fragment(1, 0, 2, reliable), 0, true));
+        // 尽力而为的帧放不下时自己被丢弃，不挤出可靠帧
+        assertNull(reassembler.add(fragment(2, 0, 2, bestEffort), 0));
+        assertEquals(1, reassembler.discarded());
+        assertFrame(reliable, reassembler.add(fragment(1, 1, 2, reliable), 0, true));
+    }
+
+    @Test
+    void reliableEvictsBestEffort() {
+        FragmentReassembler reassembler = new FragmentReassembler(MIN_BUDGET);
+        byte[] bestEffort = frame(MIN_BUDGET / 2 + 1);
+        byte[] reliable = frame(MIN_BUDGET / 2);
+        assertNull(reassembler.add(fragment(1, 0, 2, bestEffort), 0));
+        assertNull(reassembler.add(fragment(2, 0, 2, reliable), 0, true));
+        assertEquals(1, reassembler.discarded());
+        assertFrame(reliable, reassembler.add(fragment(2, 1, 2, reliable), 0, true));
+    }
+
+    @Test
+    void limitsReliablePartials() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] frame = frame(100);
+        for (int id = 0; id < FragmentReassembler.MAX_RELIABLE_PARTIALS; id++) {
+            assertNull(reassembler.add(fragment(id, 0, 2, frame), 0, true));
+        }
+        int extra = FragmentReassembler.MAX_RELIABLE_PARTIALS;
+        assertThrows(IllegalArgumentException.class, () -> reassembler.add(fragment(extra, 0, 2, frame), 0, true));
+        // 拼完一个之后又有名额
+        assertFrame(frame, reassembler.add(fragment(0, 1, 2, frame), 0, true));
+        assertNull(reassembler.add(fragment(extra, 0, 2, frame), 0, true));
+        // 尽力而为的帧不占可靠名额
+        assertNull(reassembler.add(fragment(extra + 1, 0, 2, frame), 0));
+        reassembler.clear();
+        for (int id = 0; id < FragmentReassembler.MAX_RELIABLE_PARTIALS; id++) {
+            assertNull(reassembler.add(fragment(id, 0, 2, frame), 0, true));
+        }
+        reassembler.clear();
+    }
+
+    @Test
+    void rejectsReliableOverBudget() {
+        FragmentReassembler reassembler = new FragmentReassembler(MIN_BUDGET);
+        byte[] first = frame(MIN_BUDGET / 2 + 1);
+        byte[] second = frame(MIN_BUDGET / 2);
+        assertNull(reassembler.add(fragment(1, 0, 2, first), 0, true));
+        assertThrows(IllegalArgumentException.class, () -> reassembler.add(fragment(2, 0, 2, second), 0, true));
+        reassembler.clear();
+    }
+
+    @Test
+    void inconsistentFragmentDropsFrame() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] frame = frame(1000);
+        assertNull(reassembler.add(fragment(5, 0, 3, frame), 0));
+        // 同一个 id 换了片数：尽力而为的帧整帧丢弃
+        assertNull(reassembler.add(fragment(5, 1, 2, frame), 0));
+        assertEquals(1, reassembler.discarded());
+        assertNull(reassembler.add(fragment(5, 1, 3, frame), 0));
+        assertNull(reassembler.add(fragment(5, 2, 3, frame), 0));
+        reassembler.clear();
+    }
+
+    @Test
+    void inconsistentReliableFragmentThrows() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] frame = frame(1000);
+        assertNull(reassembler.add(fragment(5, 0, 3, frame), 0, true));
+        assertThrows(IllegalArgumentException.class, () -> reassembler.add(fragment(5, 1, 2, frame), 0, true));
+
+        byte[] other = frame(999);
+        assertNull(reassembler.add(fragment(6, 0, 3, frame), 0, true));
+        assertThrows(IllegalArgumentException.class, () -> reassembler.add(fragment(6, 1, 3, other), 0, true));
+
+        // 可靠与尽力而为混用同一个 id
+        assertNull(reassembler.add(fragment(7, 0, 3, frame), 0));
+        assertThrows(IllegalArgumentException.class, () -> reassembler.add(fragment(7, 1, 3, frame), 0, true));
+        reassembler.clear();
+    }
+
+    /**
+     * 第 index 片：分片头在 position 0，之后是分片数据
+     */
+    private static ByteBuffer fragment(int messageId, int index, int count, byte[] frame) {
+        int chunk = FragmentReassembler.chunk(frame.length, count);
+        int offset = index * chunk;
+        int length = Math.min(chunk, frame.length - offset);
+        ByteBuffer buf = ByteBuffer.allocate(FragmentReassembler.FRAGMENT_HEADER_LENGTH + length);
+        FragmentReassembler.writeHeader(buf, 0, messageId, index, count, frame.length);
+        buf.put(FragmentReassembler.FRAGMENT_HEADER_LENGTH, frame, offset, length);
+        return buf;
+    }
+
+    private byte[] frame(int length) {
+        byte[] frame = new byte[length];
+        random.nextBytes(frame);
+        return frame;
+    }
+
+    private static void assertFrame(byte[] expected, RefCountedBuffer actual) {
+        assertNotNull(actual, "frame not reassembled");
+        try {
+            ByteBuffer buf = actual.buffer();
+            assertEquals(0, buf.position());
+            byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            assertArrayEquals(expected, bytes);
+        } finally {
+            actual.release();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package cn.sonata.vpn.common.transport.udp;
+
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketCodec;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * 对端是一个裸 DatagramSocket：按线上格式手工构造可靠 datagram 与 ACK 块，观察 UdpConnection 回出的 ACK 与重传
+ * connection id 始终为 0，client 侧不启动 PMTU 探测，线上只有被测的 datagram
+ */
+class UdpReliabilityTest {
+
+    private static final int TIMEOUT_MILLIS = 2000;
+    // 远小于初始 RTO（1s）：这段时间内出现的重传只能是快速重传
+    private static final long SETTLE_MILLIS = 100;
+
+    private NioEventLoop eventLoop;
+    private DatagramSocket peer;
+    private UdpConnection connection;
+    private SocketAddress connectionAddress;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        eventLoop = NioEventLoop.create("udp-reliability-test");
+        peer = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        peer.setSoTimeout(TIMEOUT_MILLIS);
+        connection = UdpConnection.connect((InetSocketAddress) peer.getLocalSocketAddress(), eventLoop);
+        int port = ((InetSocketAddress) connection.getLocalAddress()).getPort();
+        connectionAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        connection.closeAsync();
+        eventLoop.close();
+        peer.close();
+    }
+
+    @Test
+    void acksOutOfOrderWithSackRanges() throws Exception {
+        sendReliable(0, 2, 3, 5);
+        awaitAck(1, 2, 2, 5, 1);
+
+        // 补上空洞：累计确认越过已暂存的段
+        sendReliable(1);
+        awaitAck(4, 5, 1);
+        sendReliable(4);
+        awaitAck(6);
+    }
+
+    @Test
+    void reportsAtMostMaxSackRanges() throws Exception {
+        sendReliable(0, 2, 4, 6, 8, 10);
+        assertEquals(4, UdpReliability.MAX_SACK_RANGES);
+        // 第五段 10 放不下，留给下一次 ACK
+        awaitAck(1, 2, 1, 4, 1, 6, 1, 8, 1);
+        sendReliable(1);
+        awaitAck(3, 4, 1, 6, 1, 8, 1, 10, 1);
+    }
+
+    @Test
+    void reacksDuplicate() throws Exception {
+        sendReliable(0, 1);
+        awaitAck(2);
+        sendReliable(0);
+        awaitAck(2);
+        assertEquals(1, connection.duplicateDatagrams());
+    }
+
+    @Test
+    void fastRetransmitsHoleOnce() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            connection.sendAsync(PacketCodec.encode(Packet.ping(i)));
+        }
+        for (int seq = 0; seq < 5; seq++) {
+            assertEquals(seq, sequence(receive()));
+        }
+
+        // 空洞 1 之后只有两个到达：不够 DUP_THRESHOLD，不重传
+        sendAck(1, 2, 2);
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals(0, connection.retransmits());
+
+        // 第三个到达：立即重传空洞，不等 RTO
+        sendAck(1, 2, 3);
+        assertEquals(1, sequence(receive()));
+        assertEquals(1, connection.retransmits());
+
+        // 同样的 ACK 再来一次：每个空洞只快速重传一次
+        sendAck(1, 2, 3);
+        sendAck(5);
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals(1, connection.retransmits());
+    }
+
+    @Test
+    void ignoresAckInMalformedDatagram() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            connection.sendAsync(PacketCodec.encode(Packet.ping(i)));
+        }
+        for (int seq = 0; seq < 5; seq++) {
+            assertEquals(seq, sequence(receive()));
+        }
+
+        // 足以触发快速重传的 ACK 后面跟着半个帧：整个 datagram 丢弃，ACK 也不采信
+        ByteBuffer malformed = ByteBuffer.allocate(UdpReliability.BASE_HEADER_LENGTH + Integer.BYTES + 1
+                + Integer.BYTES + Short.BYTES + 3);
+        malformed.putLong(0).put((byte) UdpReliability.FLAG_ACK).putInt(1).put((byte) 1).putInt(2).putShort((short) 3);
+        send(malformed);
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals(0, connection.retransmits());
+        assertEquals(1, connection.droppedDatagrams());
+
+        sendAck(1, 2, 3);
+        assertEquals(1, sequence(receive()));
+    }
+
+    /*=== 对端 ===*/
+
+    /**
+     * 每个序号一个可靠 datagram，内容是一个 PING 帧
+     */
+    private void sendReliable(int... seqs) throws Exception {
+        for (int seq : seqs) {
+            ByteBuffer frame = PacketCodec.encode(Packet.ping(seq));
+            ByteBuffer datagram = ByteBuffer.allocate(UdpReliability.BASE_HEADER_LENGTH + Integer.BYTES + frame.remaining());
+            datagram.putLong(0).put((byte) UdpReliability.FLAG_RELIABLE).putInt(seq).put(frame);
+            send(datagram);
+        }
+    }
+
+    /**
+     * 单独的 ACK datagram
+     * @param ack 累计确认，随后每两个数一段 SACK：起始序号、长度
+     */
+    private void sendAck(int... ack) throws Exception {
+        int ranges = (ack.length - 1) / 2;
+        ByteBuffer datagram = ByteBuffer.allocate(UdpReliability.BASE_HEADER_LENGTH + Integer.BYTES + 1
+                + ranges * (Integer.BYTES + Short.BYTES));
+        datagram.putLong(0).put((byte) UdpReliability.FLAG_ACK).putInt(ack[0]).put((byte) ranges);
+        for (int i = 1; i < ack.length; i += 2) {
+            datagram.putInt(ack[i]).putShort((short) ack[i + 1]);
+        }
+        send(datagram);
+    }
+
+    private void send(ByteBuffer datagram) throws Exception {
+        byte[] bytes = datagram.array();
+        peer.send(new DatagramPacket(bytes, bytes.length, connectionAddress));
+    }
+
+    private ByteBuffer receive() throws Exception {
+        byte[] bytes = new byte[PathMtuProber.maxDatagram()];
+        DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+        peer.receive(packet);
+        return ByteBuffer.wrap(bytes, 0, packet.getLength()).slice();
+    }
+
+    private static int sequence(ByteBuffer datagram) {
+        assertTrue((UdpReliability.flags(datagram, 0) & UdpReliability.FLAG_RELIABLE) != 0, "not reliable");
+        return UdpReliability.sequence(datagram, 0);
+    }
+
+    /**
+     * 等到内容为 expected（累计确认 + SACK 段）的 ACK；一批 datagram 可能分几轮处理，之前的 ACK 跳过
+     */
+    private void awaitAck(int... expected) throws Exception {
+        List<String> seen = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            ByteBuffer datagram;
+            try {
+                datagram = receive();
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+            int flags = UdpReliability.flags(datagram, 0);
+            if ((flags & UdpReliability.FLAG_ACK) == 0) {
+                continue;
+            }
+            int[] ack = ack(datagram, UdpReliability.ackOffset(flags, 0));
+            if (Arrays.equals(expected, ack)) {
+                return;
+            }
+            seen.add(Arrays.toString(ack));
+        }
+        fail("ACK " + Arrays.toString(expected) + " not received, seen " + seen);
+    }
+
+    private static int[] ack(ByteBuffer datagram, int offset) {
+        int count = datagram.get(offset + Integer.BYTES) & 0xFF;
+        int[] ack = new int[1 + 2 * count];
+        ack[0] = datagram.getInt(offset);
+        int pos = offset + Integer.BYTES + 1;
+        for (int i = 0; i < count; i++, pos += Integer.BYTES + Short.BYTES) {
+            ack[1 + 2 * i] = datagram.getInt(pos);
+            ack[2 + 2 * i] = datagram.getShort(pos + Integer.BYTES) & 0xFFFF;
+        }
+        return ack;
+    }
+}
@@ -1,91 +1,76 @@
 package cn.sonata.vpn.server.app;
 
-import cn.sonata.vpn.common.protocol.ProtocolFSM;
 import cn.sonata.vpn.common.session.DefaultSession;
+import cn.sonata.vpn.common.session.SessionListener;
 import cn.sonata.vpn.common.transport.TransportException;
-import cn.sonata.vpn.common.transport.tcp.JdkTcpConnection;
-import cn.sonata.vpn.common.transport.tcp.JdkTcpServer;
+import cn.sonata.vpn.common.transport.nio.NioEventLoop;
+import cn.sonata.vpn.common.transport.tcp.NioTcpConnection;
+import cn.sonata.vpn.common.transport.tcp.NioTcpServer;
 import cn.sonata.vpn.common.transport.tcp.TcpConnection;
 import cn.sonata.vpn.common.transport.tcp.TcpServer;
-import cn.sonata.vpn.server.core.ServerSession;
+import cn.sonata.vpn.common.transport.udp.UdpConnection;
+import cn.sonata.vpn.common.transport.udp.UdpServer;
+import cn.sonata.vpn.server.core.SessionRegistry;
 import cn.sonata.vpn.server.io.ServerSessionListenerImpl;
-import cn.sonata.vpn.server.proxy.ProxyService;
 
-import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.time.Duration;
-import java.util.concurrent.TimeoutException;
 
 
 
 public class Main {
 
-    public static void main(String[] args)
-            throws InterruptedException, TimeoutException {
-
-        ServerSession serverSession = ServerSession.create(createSession());
-        if (serverSession == null) return;
-
-        serverSession.start();
-
-        ServerSession.StepResult step = ServerSession.StepResult.NOOP;
-
-        while (true) {
-            step = serverSession.driveOnce();
-            switch (step) {
-                case NOOP:
-                    serverSession.awaitReady(Duration.ofNanos(100));
-                    break;
-                case PROGRESSED:
-                    //TODO:未来可以细化握手
-                    serverSession.markReady();
-                    break;
-                case CLOSED:
-                    System.out.println("ServerSession has been closed");
-                    return;
-                case ERROR:
-                    System.out.println("ServerSession error");
-                    return;
-                default:
-                    throw new IllegalStateException("Unexpected value: " + step);
+    private static final InetSocketAddress LISTEN = new InetSocketAddress("127.0.0.1", 9000);
+    private static final InetSocketAddress UPSTREAM = new InetSocketAddress("127.0.0.1", 9001);
+    // -Dsonata.transport=udp：client 与 server 之间走 datagram 模式
+    private static final boolean UDP = "udp".equalsIgnoreCase(System.getProperty("sonata.transport"));
 
+    public static void main(String[] args) {
+        try {
+            TcpServer tcpServer;
+            if (UDP) {
+                // 一个 UDP socket 服务全部 client，按源地址路由到各自的 session
+                tcpServer = new UdpServer();
+            } else {
+                // IO loop 数量默认 CPU 核数，可用 -Dsonata.server.ioThreads=N 指定
+                int ioThreads = Integer.getInteger("sonata.server.ioThreads", Runtime.getRuntime().availableProcessors());
+                tcpServer = new NioTcpServer(ioThreads);
             }
+            tcpServer.bind(LISTEN);
+            System.out.println("[server] listening on " + (UDP ? "udp " : "") + LISTEN + ", waiting for clients...");
 
+            SessionRegistry registry = SessionRegistry.create(tcpServer, new ProxySessionFactory());
+            //持续 accept，每个 client 一个 session；session 的读循环自我驱动
+            registry.serve();
+        } catch (TransportException e) {
+            e.printStackTrace();
         }
     }
 
-    private static DefaultSession createSession() {
-        try {
+    /**
+     * 每个 client：按需建立 upstream 连接
+     * 未协商多路复用时整个 session 一条，否则每条逻辑流一条
+     */
+    private static final class ProxySessionFactory implements SessionRegistry.SessionFactory {
 
-            /**
-             * 绑定client
-             */
-            InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9000);
-            TcpServer tcpServer = new JdkTcpServer();
-            tcpServer.bind(address);
-            System.out.println("[server] listening on " + address + ", waiting for client...");
-
-            TcpConnection conn = tcpServer.accept();
-            System.out.println("[server] client connected: " + conn);
+        @Override
+        public SessionListener createListener(long sessionId, TcpConnection conn) throws TransportException {
+            System.out.println("[server] client connected: session#" + sessionId + " " + conn);
 
             /**
              * 绑定upstream
+             * 与 client 连接固定在同一个 loop 上，整条隧道单线程推进
              */
-            InetSocketAddress upstreamAddress = new InetSocketAddress("127.0.0.1", 9001);
-            Socket upstreamSocket = new Socket();
-            upstreamSocket.connect(upstreamAddress);
-            TcpConnection upstreamConn = new JdkTcpConnection(upstreamSocket);
-            return DefaultSession.create(
-                    conn,
-                    ProtocolFSM.create(),
-                    ServerSessionListenerImpl.create(new ProxyService(upstreamConn, conn))     //Listener实现回调机制
-            );
-        } catch (TransportException e) {
-            e.printStackTrace();
-            return null;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            NioEventLoop loop = conn instanceof UdpConnection udp
+                    ? udp.eventLoop()
+                    : ((NioTcpConnection) conn).eventLoop();
+            return ServerSessionListenerImpl.create(conn,
+                    () -> NioTcpConnection.connect(UPSTREAM, loop));     //Listener实现回调机制
+        }
+
+        @Override
+        public void sessionCreated(long sessionId, DefaultSession session, SessionListener listener) {
+            // upstream 积压过高时暂停读取 client
+            ((ServerSessionListenerImpl) listener).attachSession(session);
         }
     }
 
@@ -0,0 +1,236 @@
+package cn.sonata.vpn.server.core;
+
+import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.protocol.ProtocolFSM;
+import cn.sonata.vpn.common.session.DefaultSession;
+import cn.sonata.vpn.common.session.SessionCloseReason;
+import cn.sonata.vpn.common.session.SessionListener;
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+import cn.sonata.vpn.common.transport.tcp.TcpServer;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SessionRegistry
+ *
+ * server 侧的多 session 管理：持续 accept，每个 client 一个 ServerSession。
+ *
+ * 设计目标：
+ * - accept 循环只负责建连与登记，不驱动任何 session
+ *   （DefaultSession 的读循环自我驱动，不需要每个 session 一个线程）
+ * - session 表按 id 与远端地址双索引，ConcurrentHashMap，无全局锁，O(1) 查找
+ * - session 关闭（onSessionClosed）时自动从两个索引中移除
+ * - datagram 模式下连接迁移到新地址后（TcpConnection.setMigrationListener），远端地址索引随之改到新地址
+ */
+public final class SessionRegistry implements AutoCloseable {
+
+    /**
+     * 为新连接构建应用层资源（upstream / proxy / listener）
+     */
+    public interface SessionFactory {
+
+        /**
+         * 为新连接创建应用层 listener
+         * 抛出异常时该连接会被关闭，不影响 accept 循环
+         */
+        SessionListener createListener(long sessionId, TcpConnection connection) throws TransportException;
+
+        /**
+         * session 已创建、尚未启动时回调（例如绑定背压）
+         */
+        default void sessionCreated(long sessionId, DefaultSession session, SessionListener listener) {
+        }
+    }
+
+    private final TcpServer server;
+    private final SessionFactory factory;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentMap<Long, ServerSession> byId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SocketAddress, ServerSession> byRemote = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.registry=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.registry");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[registry] " + msg);
+        }
+    }
+
+    private SessionRegistry(TcpServer server, SessionFactory factory) {
+        this.server = Objects.requireNonNull(server, "server must not be null");
+        this.factory = Objects.requireNonNull(factory, "factory must not be null");
+    }
+
+    /**
+     * 静态工厂方法
+     * @param server 已 bind 的 TcpServer
+     * @param factory 为每个连接构建应用层资源
+     */
+    public static SessionRegistry create(TcpServer server, SessionFactory factory) {
+        return new SessionRegistry(server, factory);
+    }
+
+    /**
+     * accept 循环，阻塞直到 close()
+     * 单个连接的初始化失败只关闭该连接
+     */
+    public void serve() {
+        while (running) {
+            TcpConnection connection;
+            try {
+                connection = server.accept();
+            } catch (TransportException e) {
+                if (!running) {
+                    return;
+                }
+                System.err.println("[registry] accept failed: " + e.getMessage());
+                continue;
+            }
+            register(connection);
+        }
+    }
+
+    private void register(TcpConnection connection) {
+        long id = nextId.getAndIncrement();
+        SocketAddress remote = connection.getRemoteAddress();
+
+        SessionListener appListener;
+        try {
+            appListener = factory.createListener(id, connection);
+        } catch (TransportException | RuntimeException e) {
+            System.err.println("[registry] session#" + id + " init failed, closing " + remote + ": " + e.getMessage());
+            try {
+                connection.closeAsync();
+            } catch (TransportException ignore) {
+            }
+            return;
+        }
+
+        TrackingListener tracking = new TrackingListener(id, remote, appListener);
+        DefaultSession session = DefaultSession.create(
+                connection,
+                ProtocolFSM.create(),
+                tracking
+        );
+        ServerSession serverSession = ServerSession.create(session);
+
+        // 先登记再启动：第一批数据到达时 session 已可被查到
+        byId.put(id, serverSession);
+        if (remote != null) {
+            byRemote.put(remote, serverSession);
+        }
+        connection.setMigrationListener(tracking::onMigrated);
+        factory.sessionCreated(id, session, appListener);
+
+        serverSession.start();
+        serverSession.driveOnce();      //启动读循环，之后自我驱动
+        dbg("session#" + id + " registered: remote=" + remote + ", active=" + byId.size());
+    }
+
+    /*=== 查询 ===*/
+
+    public ServerSession get(long sessionId) {
+        return byId.get(sessionId);
+    }
+
+    public ServerSession get(SocketAddress remote) {
+        return byRemote.get(remote);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * 当前全部 session 的弱一致视图
+     */
+    public Collection<ServerSession> sessions() {
+        return byId.values();
+    }
+
+    /**
+     * 停止 accept 并关闭全部 session
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (Exception e) {
+            System.err.println("[registry] server close failed: " + e.getMessage());
+        }
+        for (ServerSession s : byId.values()) {
+            s.getSession().close();
+        }
+    }
+
+    private void unregister(long id, SocketAddress remote, SessionCloseReason reason) {
+        ServerSession removed = byId.remove(id);
+        if (removed != null && remote != null) {
+            byRemote.remove(remote, removed);
+        }
+        dbg("session#" + id + " closed: reason=" + reason + ", active=" + byId.size());
+    }
+
+    /**
+     * 包装应用层 listener：转发全部回调，关闭时从 registry 移除；连接迁移时更新远端地址索引
+     */
+    private final class TrackingListener implements SessionListener {
+
+        private final long id;
+        // 迁移后改为新地址
+        private volatile SocketAddress remote;
+        private final SessionListener delegate;
+
+        TrackingListener(long id, SocketAddress remote, SessionListener delegate) {
+            this.id = id;
+            this.remote = remote;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void exposeReceived(List<Packet> packets) {
+            delegate.exposeReceived(packets);
+        }
+
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+            delegate.onWritabilityChanged(writable);
+        }
+
+        @Override
+        public void onSessionClosed(SessionCloseReason reason) {
+            try {
+                delegate.onSessionClosed(reason);
+            } finally {
+                unregister(id, remote, reason);
+            }
+        }
+
+        void onMigrated(SocketAddress previous, SocketAddress current) {
+            remote = current;
+            ServerSession session = byId.get(id);
+            if (session == null) {
+                return;
+            }
+            byRemote.remove(previous, session);
+            byRemote.put(current, session);
+            if (!byId.containsKey(id)) {
+                // 与关闭并发：unregister 可能按旧地址移除过了
+                byRemote.remove(current, session);
+            }
+            dbg("session#" + id + " migrated: " + previous + " -> " + current);
+        }
+    }
+}
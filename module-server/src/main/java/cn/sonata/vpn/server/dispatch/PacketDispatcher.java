@@ -1,24 +1,367 @@
 package cn.sonata.vpn.server.dispatch;
 
+import cn.sonata.vpn.common.mux.StreamFrame;
 import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.protocol.ProtocolFeatures;
+import cn.sonata.vpn.common.session.DefaultSession;
+import cn.sonata.vpn.common.transport.IoThreads;
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+import cn.sonata.vpn.server.proxy.ProxyService;
+import cn.sonata.vpn.server.proxy.UpstreamConnector;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * TODO:用于解析包内容含有的特殊语义
- * ddl下暂时仅关注直接转发，不对特殊语义进行操作。
+ * 入站 DATA 的分发：按 session 协商结果选择转发方式
+ * <p>
+ * - 协商了 MUX：DATA body 是 StreamFrame，按 streamId 分到各自的 upstream 连接
+ *   OPEN 建连，DATA 转发，CLOSE 关闭；upstream 关闭时回发 CLOSE
+ * - 未协商：整个 session 视为一条流（ProxyService.RAW_STREAM），首个 DATA 到达时建连
+ * <p>
+ * upstream 建连在 IO 执行器上异步完成，不阻塞 session 的读循环；
+ * 建连完成前到达的数据先复制进该流的待发队列，积压过多时暂停读取 client
+ * <p>
+ * 协商了 FLOW 时，被丢弃的数据（未知流 / 流已关闭）也要归还信用，否则对端的 session 窗口会永久缩小
  */
 public class PacketDispatcher {
 
-    private final List<Packet> packets;
+    // 建连期间单条流最多缓存的字节数，超过后暂停读取 client 直到建连完成
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
 
-    private PacketDispatcher(List<Packet> packets) {
-        this.packets = packets;
+    private final TcpConnection clientConnection;
+    private final UpstreamConnector connector;
+    private final Map<Integer, StreamRelay> streams = new ConcurrentHashMap<>();
+
+    private volatile DefaultSession session;
+    private volatile boolean closed = false;
+
+    // Debug flag: enable with JVM arg -Dsonata.debug.dispatch=true
+    private static final boolean DEBUG = Boolean.getBoolean("sonata.debug.dispatch");
+
+    private static void dbg(String msg) {
+        if (DEBUG) {
+            System.out.println("[dispatch] " + msg);
+        }
+    }
+
+    private PacketDispatcher(TcpConnection clientConnection, UpstreamConnector connector) {
+        this.clientConnection = clientConnection;
+        this.connector = connector;
+    }
+
+    public static PacketDispatcher create(TcpConnection clientConnection, UpstreamConnector connector) {
+        return new PacketDispatcher(clientConnection, connector);
+    }
+
+    /**
+     * 绑定 session：用于读取协商结果、回发 CLOSE 帧与背压
+     */
+    public void attachSession(DefaultSession session) {
+        this.session = session;
+    }
+
+    /**
+     * 当前打开的流数量（含 RAW）
+     */
+    public int streamCount() {
+        return streams.size();
+    }
+
+    /**
+     * 分发一个入站 packet，仅处理 DATA
+     * 在 session 的读回调内调用：packet 只在本次调用内有效
+     */
+    public void dispatch(Packet packet) {
+        if (closed || packet.getHeader().getType() != PacketType.DATA) {
+            return;
+        }
+        DefaultSession s = session;
+        if (s != null && s.getFsm().hasFeature(ProtocolFeatures.MUX)) {
+            dispatchFrame(packet);
+        } else {
+            streams.computeIfAbsent(ProxyService.RAW_STREAM, this::openRelay).send(packet);
+        }
+    }
+
+    private void dispatchFrame(Packet packet) {
+        StreamFrame frame;
+        try {
+            frame = StreamFrame.decode(packet);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[dispatch] drop malformed stream frame: " + e.getMessage());
+            return;
+        }
+        int id = frame.getStreamId();
+        dbg("recv " + frame);
+
+        switch (frame.getKind()) {
+            case OPEN -> {
+                if (id < 0 || streams.containsKey(id)) {
+                    // 流 id 冲突：拒绝新流，已有的流不受影响
+                    sendToClient(StreamFrame.close(id));
+                    return;
+                }
+                streams.computeIfAbsent(id, this::openRelay);
+            }
+            case DATA -> {
+                StreamRelay relay = streams.get(id);
+                if (relay == null) {
+                    // 未知或已关闭的流：丢弃并告知对端
+                    consumed(id, frame.getPayload().remaining());
+                    sendToClient(StreamFrame.close(id));
+                    return;
+                }
+                relay.send(Packet.data(frame.getPayload()));
+            }
+            case CLOSE -> {
+                StreamRelay relay = streams.remove(id);
+                if (relay != null) {
+                    relay.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * client 连接可写状态翻转：所有流的 pump 共用这条连接
+     */
+    public void onClientWritabilityChanged(boolean writable) {
+        for (StreamRelay relay : streams.values()) {
+            relay.onClientWritabilityChanged(writable);
+        }
+    }
+
+    /**
+     * 关闭全部流（session 关闭时调用）
+     */
+    public void closeAll() {
+        closed = true;
+        for (StreamRelay relay : streams.values()) {
+            relay.close();
+        }
+        streams.clear();
+    }
+
+    private StreamRelay openRelay(int id) {
+        StreamRelay relay = new StreamRelay(id);
+        IoThreads.sharedExecutor().execute(relay::connect);
+        dbg("stream " + id + " opening, streams=" + (streams.size() + 1));
+        return relay;
+    }
+
+    /**
+     * upstream 方向结束：多路复用下告知 client 该流已关闭
+     */
+    private void onRelayClosed(StreamRelay relay) {
+        if (!streams.remove(relay.id, relay)) {
+            return;     //client 主动关闭，已移除
+        }
+        dbg("stream " + relay.id + " closed by upstream");
+        if (relay.id != ProxyService.RAW_STREAM) {
+            closeStreamToClient(relay.id);
+        }
     }
 
-    public static PacketDispatcher create(List<Packet> packets) {
-        return new PacketDispatcher(packets);
+    /**
+     * 本端关闭一条流：注销流控窗口（唤醒阻塞的 pump）并通知 client
+     */
+    private void closeStreamToClient(int id) {
+        DefaultSession s = session;
+        if (s != null) {
+            s.getFlow().closeStream(id);
+        }
+        sendToClient(StreamFrame.close(id));
     }
 
-    //TODO :处理特殊语义，调用AppIO
+    /**
+     * 数据已写出或被丢弃：归还对端的发送信用（未协商 FLOW 时为 no-op）
+     */
+    private void consumed(int id, int bytes) {
+        DefaultSession s = session;
+        if (s != null) {
+            s.onDataConsumed(id, bytes);
+        }
+    }
+
+    private void sendToClient(Packet packet) {
+        DefaultSession s = session;
+        if (s == null) {
+            return;
+        }
+        try {
+            s.send(List.of(packet));
+        } catch (TransportException e) {
+            dbg("send to client failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 一条逻辑流：upstream 建连完成前缓存数据，完成后按序交给 ProxyService
+     */
+    private final class StreamRelay {
+
+        final int id;
+
+        // 以下字段由 this 保护
+        private ProxyService proxy;
+        private List<Packet> pending = new ArrayList<>();
+        private int pendingBytes = 0;
+        private boolean pausedClient = false;
+        private boolean relayClosed = false;
+
+        StreamRelay(int id) {
+            this.id = id;
+        }
+
+        void send(Packet packet) {
+            ProxyService target;
+            synchronized (this) {
+                if (relayClosed) {
+                    consumed(id, packet.bodyLength());
+                    return;
+                }
+                if (proxy == null) {
+                    // 建连中：复制一份（packet 是读缓冲区的 slice，回调结束即失效）
+                    Packet copy = Packet.data(copyBody(packet));
+                    pending.add(copy);
+                    pendingBytes += copy.bodyLength();
+                    if (pendingBytes > MAX_PENDING_BYTES && !pausedClient && session != null) {
+                        pausedClient = true;
+                        session.pauseReading();
+                    }
+                    return;
+                }
+                target = proxy;
+            }
+            forward(target, packet);
+        }
+
+        void connect() {
+            ProxyService created;
+            try {
+                TcpConnection upstream = connector.connect();
+                created = new ProxyService(upstream, clientConnection, id);
+            } catch (TransportException | RuntimeException e) {
+                System.err.println("[dispatch] stream " + id + " upstream connect failed: " + e.getMessage());
+                onConnectFailed();
+                return;
+            }
+
+            DefaultSession s = session;
+            if (s != null) {
+                created.attachSession(s);
+            }
+            created.onUpstreamClosed(() -> onRelayClosed(this));
+
+            List<Packet> drained;
+            boolean resume;
+            synchronized (this) {
+                if (relayClosed) {
+                    created.close();
+                    return;
+                }
+                drained = pending;
+                pending = null;
+                pendingBytes = 0;
+                resume = pausedClient;
+                pausedClient = false;
+                // 先把缓存数据按序写出，再开放直通，保证顺序
+                for (Packet p : drained) {
+                    forward(created, p);
+                }
+                proxy = created;
+            }
+            created.start();
+            if (resume && s != null) {
+                s.resumeReading();
+            }
+            dbg("stream " + id + " connected, flushed=" + drained.size());
+        }
+
+        private void onConnectFailed() {
+            boolean resume;
+            int dropped;
+            synchronized (this) {
+                relayClosed = true;
+                dropped = pendingBytes;
+                pending = null;
+                pendingBytes = 0;
+                resume = pausedClient;
+            }
+            consumed(id, dropped);
+            streams.remove(id, this);
+            DefaultSession s = session;
+            if (id == ProxyService.RAW_STREAM) {
+                // 未多路复用：没有 upstream 这个 session 就没有意义
+                if (s != null) {
+                    s.close();
+                }
+                return;
+            }
+            closeStreamToClient(id);
+            if (resume && s != null) {
+                s.resumeReading();
+            }
+        }
+
+        void close() {
+            ProxyService target;
+            int dropped;
+            boolean resume;
+            synchronized (this) {
+                relayClosed = true;
+                dropped = pendingBytes;
+                pending = null;
+                pendingBytes = 0;
+                resume = pausedClient;
+                pausedClient = false;
+                target = proxy;
+            }
+            consumed(id, dropped);
+            DefaultSession s = session;
+            if (resume && s != null) {
+                s.resumeReading();
+            }
+            if (target != null) {
+                target.close();
+            }
+        }
+
+        void onClientWritabilityChanged(boolean writable) {
+            ProxyService target;
+            synchronized (this) {
+                target = proxy;
+            }
+            if (target != null) {
+                target.onClientWritabilityChanged(writable);
+            }
+        }
+
+        private void forward(ProxyService target, Packet packet) {
+            try {
+                target.send(packet);
+            } catch (TransportException e) {
+                System.err.println("[dispatch] stream " + id + " forward failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * body 复制到堆上：读缓冲区在回调结束后复用
+     */
+    private static ByteBuffer copyBody(Packet packet) {
+        ByteBuffer body = packet.getBody();
+        ByteBuffer copy = ByteBuffer.allocate(body == null ? 0 : body.remaining());
+        if (body != null) {
+            copy.put(body);
+        }
+        copy.flip();
+        return copy;
+    }
 }
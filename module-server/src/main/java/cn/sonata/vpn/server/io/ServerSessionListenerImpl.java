@@ -1,10 +1,13 @@
 package cn.sonata.vpn.server.io;
 
 import cn.sonata.vpn.common.packet.Packet;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.session.DefaultSession;
 import cn.sonata.vpn.common.session.SessionCloseReason;
 import cn.sonata.vpn.common.session.SessionListener;
-import cn.sonata.vpn.common.transport.TransportException;
-import cn.sonata.vpn.server.proxy.ProxyService;
+import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+import cn.sonata.vpn.server.dispatch.PacketDispatcher;
+import cn.sonata.vpn.server.proxy.UpstreamConnector;
 
 import java.util.List;
 
@@ -25,14 +28,18 @@ import java.util.List;
 public class ServerSessionListenerImpl implements SessionListener {
 
     private final AppIO appIO = new StringAppIO();
-    private final ProxyService proxyService;
+    private final PacketDispatcher dispatcher;
 
-    private ServerSessionListenerImpl(ProxyService proxyService) {
-        this.proxyService = proxyService;
+    private ServerSessionListenerImpl(PacketDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
     }
 
-    public static ServerSessionListenerImpl create(ProxyService proxyService) {
-        return new ServerSessionListenerImpl(proxyService);
+    /**
+     * @param clientConnection client 连接（upstream 回包写回这里）
+     * @param connector 每条逻辑流建立 upstream 连接的方式
+     */
+    public static ServerSessionListenerImpl create(TcpConnection clientConnection, UpstreamConnector connector) {
+        return new ServerSessionListenerImpl(PacketDispatcher.create(clientConnection, connector));
     }
 
     @Override
@@ -41,19 +48,32 @@ public class ServerSessionListenerImpl implements SessionListener {
 
         for (Packet packet : packets) {
             System.out.println("[server][listener] received packet: " + packet);
+            if (packet.getHeader().getType() != PacketType.DATA) {
+                continue;
+            }
             appIO.onPacket(packet);
 
-            // 最小可跑：收到就转发到 upstream
-            try {
-                proxyService.send(appIO);
-            } catch (TransportException e) {
-                System.out.println("[server][listener] proxy send failed: " + e.getMessage());
-            }
+            // 收到就转发：按是否协商多路复用分到对应的 upstream
+            dispatcher.dispatch(packet);
         }
     }
 
+    /**
+     * 绑定 session：upstream 积压过高时暂停读取该 client
+     */
+    public void attachSession(DefaultSession session) {
+        dispatcher.attachSession(session);
+    }
+
+    @Override
+    public void onWritabilityChanged(boolean writable) {
+        dispatcher.onClientWritabilityChanged(writable);
+    }
+
     @Override
     public void onSessionClosed(SessionCloseReason reason) {
         System.out.println("[server][listener] session closed: " + reason);
+        // upstream 连接归属于 session 的各条流，随 session 一起释放
+        dispatcher.closeAll();
     }
 }
@@ -39,7 +39,12 @@ public class StringAppIO implements AppIO {
         receivedMessages.add(message);
 
         // 让 proxy 层能拿到“最近一次入站包”用于转发
-        receivedPacket = packet;
+        // packet 可能是零拷贝 slice：持有期间 retain，替换时释放旧的
+        Packet previous = receivedPacket;
+        receivedPacket = packet.retain();
+        if (previous != null) {
+            previous.release();
+        }
     }
 
 
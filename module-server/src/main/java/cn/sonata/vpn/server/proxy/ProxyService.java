@@ -1,47 +1,184 @@
 package cn.sonata.vpn.server.proxy;
 
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.mux.StreamFrame;
+import cn.sonata.vpn.common.packet.FrameDecoder;
 import cn.sonata.vpn.common.packet.Packet;
 import cn.sonata.vpn.common.packet.PacketCodec;
+import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.session.DefaultSession;
+import cn.sonata.vpn.common.transport.IoThreads;
 import cn.sonata.vpn.common.transport.TransportException;
 import cn.sonata.vpn.common.transport.tcp.TcpConnection;
-import cn.sonata.vpn.server.io.AppIO;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 此类用于构造一个最小代理供server使用
  *<p>
  * ddl取舍暂时将从AppIO里取得的数据转存到文件
  *<p>转发到一个本地端口
+ *<p>
+ * 背压（两个方向都按对侧连接的写水位控制读取）：
+ * - upstream 不可写：暂停读取 client session，恢复后继续
+ * - client 不可写：pump 暂停读取 upstream，恢复后继续
+ *<p>
+ * 两种模式：
+ * - RAW_STREAM：session 未协商 MUX，upstream 回包原样转给 client
+ * - streamId >= 0：session 的一条逻辑流，upstream 回包的 body 包装成该流的 StreamFrame.DATA
+ *<p>
+ * 协商了 FLOW 时（仅多路复用模式）：
+ * - 写往 upstream 的数据写出完成后才向 client 归还信用
+ * - 发往 client 的每帧先取得发送信用，信用耗尽时 pump 阻塞，只影响本条流
  */
 public class ProxyService {
 
+    /** 未协商多路复用：一个 session 对应一条 upstream 连接 */
+    public static final int RAW_STREAM = -1;
+
     private final TcpConnection upstreamConnection;
     private final TcpConnection clientConnection;
+    private final int streamId;
+
+    // pump 退出（upstream 关闭 / 出错）时回调一次
+    private volatile Runnable upstreamClosedHook;
 
-    // upstream 回包是 TCP stream：需要累积处理半包/粘包
-    private ByteBuffer upstreamAcc = ByteBuffer.allocate(64 * 1024);
-    private final ByteBuffer upstreamReadBuf = ByteBuffer.allocate(8 * 1024);
+    // upstream 回包是 TCP stream：半包/粘包交给 FrameDecoder
+    // 读缓冲从缓冲池借用，pump 退出时归还
+    private final FrameDecoder upstreamDecoder = new FrameDecoder();
+    private RefCountedBuffer upstreamReadBuf;
 
     private volatile boolean pumpStarted = false;
 
+    // client -> upstream 方向的读取方，upstream 不可写时暂停它
+    private volatile DefaultSession clientSession;
+
+    // pump 等待 client 恢复可写（ReentrantLock：虚拟线程下不钉住载体线程）
+    private final ReentrantLock writableLock = new ReentrantLock();
+    private final Condition clientWritable = writableLock.newCondition();
+
     public ProxyService(TcpConnection upstreamConnection, TcpConnection clientConnection) {
+        this(upstreamConnection, clientConnection, RAW_STREAM);
+    }
+
+    /**
+     * @param streamId 逻辑流 id；RAW_STREAM 表示不做多路复用封装
+     */
+    public ProxyService(TcpConnection upstreamConnection, TcpConnection clientConnection, int streamId) {
         this.upstreamConnection = upstreamConnection;
         this.clientConnection = clientConnection;
+        this.streamId = streamId;
+        upstreamConnection.setWritabilityListener(this::onUpstreamWritabilityChanged);
+    }
+
+    public int getStreamId() {
+        return streamId;
     }
 
-    public void send(AppIO appIO) throws TransportException {
-        //捕捉从session捕捉到的packet
-        Packet packet = appIO.packetSnapshot();
-        if (packet == null) {
-            System.err.println("[proxy] skip send: packetSnapshot() returned null");
+    /**
+     * upstream 方向结束（对端关闭或出错）时回调，在 pump 线程上执行
+     */
+    public void onUpstreamClosed(Runnable hook) {
+        this.upstreamClosedHook = hook;
+    }
+
+    /**
+     * 绑定读取 client 的 session，upstream 积压超过高水位时暂停其读取
+     */
+    public void attachSession(DefaultSession session) {
+        this.clientSession = session;
+        if (!upstreamConnection.isWritable()) {
+            session.pauseReading();
+        }
+    }
+
+    /**
+     * 关闭 upstream 连接，pump 随之退出
+     */
+    public void close() {
+        if (upstreamConnection.isClosed()) {
+            return;
+        }
+        try {
+            upstreamConnection.closeAsync();
+        } catch (TransportException e) {
+            System.err.println("[proxy] upstream close failed: " + e.getMessage());
+        }
+    }
+
+    private void onUpstreamWritabilityChanged(boolean writable) {
+        DefaultSession session = clientSession;
+        if (session == null) {
             return;
         }
+        if (writable) {
+            session.resumeReading();
+        } else {
+            session.pauseReading();
+        }
+    }
 
+    /**
+     * client 连接可写状态翻转（由 session listener 转发）
+     */
+    public void onClientWritabilityChanged(boolean writable) {
+        if (!writable) {
+            return;
+        }
+        writableLock.lock();
+        try {
+            clientWritable.signalAll();
+        } finally {
+            writableLock.unlock();
+        }
+    }
+
+    /**
+     * client 积压过高时阻塞 pump，期间不再读取 upstream
+     * 带超时轮询：连接关闭时也能退出
+     */
+    private void awaitClientWritable() throws InterruptedException {
+        if (clientConnection.isWritable()) {
+            return;
+        }
+        writableLock.lock();
+        try {
+            while (!clientConnection.isWritable() && !clientConnection.isClosed()) {
+                clientWritable.await(100, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            writableLock.unlock();
+        }
+    }
+
+    /**
+     * 转发一个 DATA 到 upstream
+     * 编码时同步复制 body，调用返回后 packet 即可释放
+     */
+    public void send(Packet packet) throws TransportException {
         startPumpIfNeeded();
 
-        upstreamConnection.sendAsync(PacketCodec.encode(packet));
+        int length = packet.bodyLength();
+        CompletableFuture<Integer> written = upstreamConnection.sendAsync(PacketCodec.encode(packet));
+        DefaultSession session = clientSession;
+        if (streamId != RAW_STREAM && session != null && session.isFlowControlled()) {
+            // 写出（或失败丢弃）后数据不再占用本端内存，归还信用
+            written.whenComplete((n, error) -> session.onDataConsumed(streamId, length));
+        }
+    }
+
+    /**
+     * 立即启动 upstream -> client 的 pump（否则在第一次 send 时启动）
+     */
+    public void start() {
+        startPumpIfNeeded();
     }
 
     private void startPumpIfNeeded() {
@@ -52,13 +189,29 @@ public class ProxyService {
 
         /**
          * 新开线程
+         * -Dsonata.io.virtual=true 时为虚拟线程，阻塞在 receiveAsync().get() 不占平台线程
          */
-        Thread t = new Thread(this::pumpLoop, "proxy-upstream-pump");
-        t.setDaemon(true);
-        t.start();
+        IoThreads.start(streamId == RAW_STREAM ? "proxy-upstream-pump" : "proxy-upstream-pump-" + streamId, this::pumpLoop);
     }
 
     private void pumpLoop() {
+        upstreamReadBuf = BufferPool.direct().acquire(8 * 1024);
+        try {
+            pump();
+        } finally {
+            upstreamDecoder.reset();
+            upstreamReadBuf.release();
+            Runnable hook = upstreamClosedHook;
+            if (hook != null) {
+                hook.run();
+            }
+        }
+    }
+
+    private void pump() {
+        ByteBuffer readBuf = upstreamReadBuf.buffer();
+        List<Packet> packets = new ArrayList<>();
+        List<Packet> frames = new ArrayList<>();
         while (true) {
             try {
                 if (clientConnection == null || clientConnection.isClosed()) {
@@ -68,9 +221,11 @@ public class ProxyService {
                     return;
                 }
 
-                upstreamReadBuf.clear();
+                awaitClientWritable();
+
+                readBuf.clear();
                 //阻塞线程
-                int n = upstreamConnection.receiveAsync(upstreamReadBuf).get();
+                int n = upstreamConnection.receiveAsync(readBuf).get();
                 if (n <= 0) {
                     // 0: 暂时没读到；<0: closed（实现可能不同，但都退出）
                     if (n < 0) {
@@ -79,22 +234,22 @@ public class ProxyService {
                     continue;
                 }
 
-                upstreamReadBuf.flip();
-                upstreamAcc = append(upstreamAcc, upstreamReadBuf);
-
-                upstreamAcc.flip();
-                List<Packet> packets = PacketCodec.decode(upstreamAcc);
-                upstreamAcc.compact();
+                readBuf.flip();
+                // readBuf 每轮复用，body 需要拷贝出来
+                packets.clear();
+                upstreamDecoder.decode(readBuf, packets);
 
                 if (packets.isEmpty()) {
                     continue;
                 }
                 for (Packet p : packets) {
-                    if (p == null) continue;
                     System.out.println("[proxy] upstream->client packet: " + p);
-                    clientConnection.sendAsync(PacketCodec.encode(p));
                 }
+                toClient(packets, frames);
             } catch (Exception e) {
+                if (upstreamConnection.isClosed()) {
+                    return;     //session 关闭时主动关闭了 upstream，正常退出
+                }
                 System.err.println("[proxy] pump upstream->client failed: " + e.getMessage());
                 return;
             }
@@ -102,28 +257,47 @@ public class ProxyService {
     }
 
     /**
-     * 把新数据追加到累积缓冲区；空间不足时扩容。
+     * RAW：原样转发；多路复用：DATA body 包装成本流的 StreamFrame，其它类型丢弃
+     * 未受流控时本次读到的所有包合并为一次 gathering write；
+     * 受流控时每帧取得信用后立即写出，已取得信用的数据不会滞留在本地
      */
-    private static ByteBuffer append(ByteBuffer acc, ByteBuffer incoming) {
-        if (incoming == null || !incoming.hasRemaining()) {
-            return acc;
+    private void toClient(List<Packet> packets, List<Packet> frames) throws TransportException {
+        if (streamId == RAW_STREAM) {
+            clientConnection.sendAsync(PacketCodec.encodeAll(packets));
+            return;
         }
-
-        int need = incoming.remaining();
-
-        // acc write mode
-        if (acc.remaining() >= need) {
-            acc.put(incoming);
-            return acc;
+        DefaultSession session = clientSession;
+        boolean credited = session != null && session.isFlowControlled();
+        frames.clear();
+        for (Packet p : packets) {
+            if (p.getHeader().getType() != PacketType.DATA || p.bodyLength() == 0) {
+                continue;
+            }
+            if (!credited) {
+                StreamFrame.appendData(streamId, p.getBody(), frames);
+                continue;
+            }
+            ByteBuffer src = p.getBody();
+            while (src.hasRemaining()) {
+                int n = session.acquireSendCredit(streamId, Math.min(src.remaining(), StreamFrame.MAX_PAYLOAD));
+                Packet frame = StreamFrame.data(streamId, src.slice(src.position(), n));
+                src.position(src.position() + n);
+                toSession(session, List.of(frame));
+            }
         }
+        if (!frames.isEmpty()) {
+            toSession(session, frames);
+        }
+    }
 
-        int minCap = acc.position() + need;
-        int newCap = Math.max(acc.capacity() * 2, minCap);
-        ByteBuffer bigger = ByteBuffer.allocate(newCap);
-
-        acc.flip();
-        bigger.put(acc);
-        bigger.put(incoming);
-        return bigger;
+    /**
+     * 流帧经 session 发出（协商了 AEAD 时由 session 加密）；session 尚未绑定时直接写连接
+     */
+    private void toSession(DefaultSession session, List<Packet> frames) throws TransportException {
+        if (session != null) {
+            session.send(frames);
+        } else {
+            clientConnection.sendAsync(PacketCodec.encodeAll(frames));
+        }
     }
 }
@@ -0,0 +1,19 @@
+package cn.sonata.vpn.server.proxy;
+
+import cn.sonata.vpn.common.transport.TransportException;
+import cn.sonata.vpn.common.transport.tcp.TcpConnection;
+
+/**
+ * 建立一条到 upstream 的连接
+ * 每条逻辑流（或未协商多路复用的 session）各用一条
+ */
+@FunctionalInterface
+public interface UpstreamConnector {
+
+    /**
+     * 阻塞直到连接建立，调用方保证不在 IO loop 线程上调用
+     * @return 已连接的 upstream
+     * @throws TransportException 连接失败
+     */
+    TcpConnection connect() throws TransportException;
+}
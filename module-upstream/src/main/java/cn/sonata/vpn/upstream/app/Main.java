@@ -1,9 +1,13 @@
 package cn.sonata.vpn.upstream.app;
 
+import cn.sonata.vpn.common.buffer.BufferPool;
+import cn.sonata.vpn.common.buffer.RefCountedBuffer;
+import cn.sonata.vpn.common.packet.FrameDecoder;
 import cn.sonata.vpn.common.packet.Packet;
 import cn.sonata.vpn.common.packet.PacketCodec;
 import cn.sonata.vpn.common.packet.PacketHeader;
 import cn.sonata.vpn.common.packet.PacketType;
+import cn.sonata.vpn.common.transport.IoThreads;
 import cn.sonata.vpn.common.transport.TransportException;
 import cn.sonata.vpn.common.transport.tcp.JdkTcpServer;
 import cn.sonata.vpn.common.transport.tcp.TcpConnection;
@@ -17,18 +21,20 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Main {
 
     private static final InetSocketAddress LISTEN = new InetSocketAddress("127.0.0.1", 9001);
 
     // MAX16kb
-    private static final int MAX_BODY_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = PacketHeader.MAX_BODY_LENGTH;
 
-    // TCP 是流：需要累积 buffer 处理半包/粘包
-    private static final int ACC_INITIAL_CAPACITY = 64 * 1024;
+    // 多条连接并发写文件时区分文件名
+    private static final AtomicLong FILE_SEQ = new AtomicLong();
 
     public static void main(String[] args) {
         try {
@@ -38,113 +44,97 @@ public class Main {
         }
     }
 
-    private static void run() throws TransportException, IOException, ExecutionException, InterruptedException {
+    private static void run() throws TransportException, IOException {
         TcpServer server = new JdkTcpServer();
         server.bind(LISTEN);
         System.out.println("[upstream] listening on " + LISTEN);
 
-        TcpConnection conn = server.accept();
-        System.out.println("[upstream] accepted: " + conn.getRemoteAddress());
-
         File outDir = new File("upstream-out");
         if (!outDir.exists() && !outDir.mkdirs()) {
             throw new IOException("Failed to create dir: " + outDir.getAbsolutePath());
         }
 
-        ByteBuffer acc = ByteBuffer.allocate(ACC_INITIAL_CAPACITY);
-        ByteBuffer readBuf = ByteBuffer.allocate(8 * 1024);
-
+        // server 的每条逻辑流各建一条连接：持续 accept，每条连接一个线程
         while (true) {
-            //把packet写到readBuf里做进一步处理
-            readBuf.clear();
-            int n = conn.receiveAsync(readBuf).get();
-            if (n < 0) {
-                System.out.println("[upstream] stream closed");
-                break;
-            }
-            if (n == 0) {
-                continue;
-            }
-
-            //读取完成，切换读取模式
-            readBuf.flip();
-            acc = append(acc, readBuf);
-
-            // 尝试从累积区解出尽可能多的 packet
-            acc.flip();
-            List<Packet> packets;
-            try {
-                packets = PacketCodec.decode(acc);
-            } catch (Exception decodeError) {
-                // 解码异常：为了不死循环，丢弃当前累积数据
-                System.out.println("[upstream] decode failed, drop accumulator: " + decodeError.getMessage());
-                acc.clear();
-                continue;
-            }
-
-            // decode 内部使用 mark/reset，退出时 position 会停在“已消费”的末尾
-            // compact 把剩余未消费的数据前移，继续累积
-            acc.compact();
+            TcpConnection conn = server.accept();
+            System.out.println("[upstream] accepted: " + conn.getRemoteAddress());
+            IoThreads.start("upstream-conn-" + conn.getRemoteAddress(), () -> {
+                try {
+                    serve(conn, outDir);
+                } catch (Exception e) {
+                    System.out.println("[upstream] connection failed: " + e.getMessage());
+                }
+            });
+        }
+    }
 
-            if (packets.isEmpty()) {
-                continue;
-            }
+    private static void serve(TcpConnection conn, File outDir) throws TransportException, IOException, ExecutionException, InterruptedException {
+        // TCP 是流：半包/粘包交给 FrameDecoder，读缓冲从缓冲池借用
+        FrameDecoder decoder = new FrameDecoder();
+        List<Packet> packets = new ArrayList<>();
+        RefCountedBuffer readRef = BufferPool.direct().acquire(8 * 1024);
+        ByteBuffer readBuf = readRef.buffer();
 
-            for (Packet packet : packets) {
-                PacketHeader header = (packet == null) ? null : packet.getHeader();
-                if (header == null) {
+        try {
+            while (true) {
+                //把packet写到readBuf里做进一步处理
+                readBuf.clear();
+                int n = conn.receiveAsync(readBuf).get();
+                if (n < 0) {
+                    System.out.println("[upstream] stream closed");
+                    break;
+                }
+                if (n == 0) {
                     continue;
                 }
 
-                // 只处理 DATA，其它忽略
-                if (header.getType() != PacketType.DATA) {
-                    continue;
+                //读取完成，切换读取模式
+                readBuf.flip();
+                // readBuf 每轮复用，body 拷贝解码
+                packets.clear();
+                try {
+                    decoder.decode(readBuf, packets);
+                } catch (Exception decodeError) {
+                    // 解码异常：为了不死循环，丢弃半包状态，已解出的 packet 照常处理
+                    System.out.println("[upstream] decode failed, drop partial frame: " + decodeError.getMessage());
+                    decoder.reset();
                 }
 
-                if (header.getLength() < 0 || header.getLength() > MAX_BODY_BYTES) {
-                    System.out.println("[upstream] drop abnormal DATA length=" + header.getLength());
+                if (packets.isEmpty()) {
                     continue;
                 }
 
-                byte[] bodyBytes = PacketBodyExtractor.toBytes(packet);
+                for (Packet packet : packets) {
+                    PacketHeader header = (packet == null) ? null : packet.getHeader();
+                    if (header == null) {
+                        continue;
+                    }
 
-                String fileName = "packet-" + Instant.now().toEpochMilli() + ".txt";
-                File outFile = new File(outDir, fileName);
-                PacketFileWriter.writeBytes(outFile, bodyBytes);
-                System.out.println("[upstream] saved " + outFile.getName() + " (" + bodyBytes.length + " bytes)");
+                    // 只处理 DATA，其它忽略
+                    if (header.getType() != PacketType.DATA) {
+                        continue;
+                    }
 
-                Packet ack = AckFactory.okFileSaved(header, fileName);
-                conn.sendAsync(PacketCodec.encode(ack));
-            }
-        }
-    }
+                    if (header.getLength() < 0 || header.getLength() > MAX_BODY_BYTES) {
+                        System.out.println("[upstream] drop abnormal DATA length=" + header.getLength());
+                        continue;
+                    }
 
-    /**
-     * 把新读到的数据追加到累积缓冲区；空间不足时自动扩容。
-     */
-    private static ByteBuffer append(ByteBuffer acc, ByteBuffer incoming) {
-        if (incoming == null || !incoming.hasRemaining()) {
-            return acc;
-        }
+                    byte[] bodyBytes = PacketBodyExtractor.toBytes(packet);
 
-        int need = incoming.remaining();
+                    String fileName = "packet-" + Instant.now().toEpochMilli() + "-" + FILE_SEQ.incrementAndGet() + ".txt";
+                    File outFile = new File(outDir, fileName);
+                    PacketFileWriter.writeBytes(outFile, bodyBytes);
+                    System.out.println("[upstream] saved " + outFile.getName() + " (" + bodyBytes.length + " bytes)");
 
-        // acc 此时应为 write mode（position=已写入，limit=capacity）
-        if (acc.remaining() >= need) {
-            acc.put(incoming);
-            return acc;
+                    Packet ack = AckFactory.okFileSaved(header, fileName);
+                    conn.sendAsync(PacketCodec.encode(ack));
+                }
+            }
+        } finally {
+            decoder.reset();
+            readRef.release();
+            conn.closeAsync();
         }
-
-
-        //确保最小容量
-        int minCap = acc.position() + need;
-        int newCap = Math.max(acc.capacity() * 2, minCap);
-        ByteBuffer bigger = ByteBuffer.allocate(newCap);
-
-
-        acc.flip();
-        bigger.put(acc);
-        bigger.put(incoming);
-        return bigger;
     }
 }